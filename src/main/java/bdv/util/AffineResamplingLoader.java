@@ -0,0 +1,373 @@
+/*-
+ * #%L
+ * BigDataViewer-Playground
+ * %%
+ * Copyright (C) 2019 - 2025 Nicolas Chiaruttini, EPFL - Robert Haase, MPI CBG - Christian Tischer, EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package bdv.util;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.ByteAccess;
+import net.imglib2.img.basictypeaccess.DoubleAccess;
+import net.imglib2.img.basictypeaccess.FloatAccess;
+import net.imglib2.img.basictypeaccess.IntAccess;
+import net.imglib2.img.basictypeaccess.ShortAccess;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Loads the cells of a resampled image whose voxels map to the origin voxels
+ * through an affine transform. This gives the same values as an
+ * interpolated, zero-extended, affine view of the origin, but without going
+ * through it for each voxel: the origin coordinate is stepped along each row
+ * of the cell, voxels are read directly from the accesses of the origin cells
+ * when the pixel type allows it, and linear interpolation is computed in
+ * double precision. Cells which don't sample the origin are left to zero
+ * without evaluating any voxel.
+ *
+ * @param <T> pixel type of the origin and of the resampled image
+ * @author Nicolas Chiaruttini
+ */
+public class AffineResamplingLoader<T extends RealType<T>> implements
+	CellLoader<T>
+{
+
+	private final RandomAccessibleInterval<T> origin;
+
+	private final AffineTransform3D modelToOrigin;
+
+	private final boolean linear;
+
+	private final long[] min, max;
+
+	/**
+	 * @param origin image resampled
+	 * @param modelToOrigin transform from the voxels of the resampled image to
+	 *          the voxels of the origin
+	 * @param linear n-linear interpolation if true, nearest neighbor otherwise
+	 */
+	public AffineResamplingLoader(RandomAccessibleInterval<T> origin,
+		AffineTransform3D modelToOrigin, boolean linear)
+	{
+		this.origin = origin;
+		this.modelToOrigin = modelToOrigin.copy();
+		this.linear = linear;
+		this.min = new long[] { origin.min(0), origin.min(1), origin.min(2) };
+		this.max = new long[] { origin.max(0), origin.max(1), origin.max(2) };
+	}
+
+	@Override
+	public void load(SingleCellArrayImg<T, ?> cell) {
+		if (!samplesOrigin(cell)) return; // Left to zero
+		final Voxels voxels = voxels();
+		final Cursor<T> target = cell.cursor(); // Flat iteration order
+		final double[] position = new double[3];
+		final double[] p = new double[3];
+		final double dx = modelToOrigin.get(0, 0);
+		final double dy = modelToOrigin.get(1, 0);
+		final double dz = modelToOrigin.get(2, 0);
+		for (long z = cell.min(2); z <= cell.max(2); z++) {
+			for (long y = cell.min(1); y <= cell.max(1); y++) {
+				position[0] = cell.min(0);
+				position[1] = y;
+				position[2] = z;
+				modelToOrigin.apply(position, p);
+				for (long x = cell.min(0); x <= cell.max(0); x++) {
+					target.next().setReal(linear ? linear(voxels, p[0], p[1], p[2])
+						: nearest(voxels, p[0], p[1], p[2]));
+					p[0] += dx;
+					p[1] += dy;
+					p[2] += dz;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks the bounding box of the cell, in origin voxel coordinates, against
+	 * the origin bounds. Neighbors one voxel away are used by the interpolation.
+	 *
+	 * @return false if no voxel of the cell can have a value which is not zero
+	 */
+	boolean samplesOrigin(Interval cell) {
+		final RealInterval box = modelToOrigin.estimateBounds(cell);
+		for (int d = 0; d < 3; d++) {
+			if ((box.realMax(d) < min[d] - 1) || (box.realMin(d) > max[d] + 1)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private double nearest(Voxels voxels, double x, double y, double z) {
+		final long ix = (long) Math.floor(x + 0.5);
+		final long iy = (long) Math.floor(y + 0.5);
+		final long iz = (long) Math.floor(z + 0.5);
+		return valueOrZero(voxels, ix, iy, iz);
+	}
+
+	private double linear(Voxels voxels, double x, double y, double z) {
+		final long ix = (long) Math.floor(x);
+		final long iy = (long) Math.floor(y);
+		final long iz = (long) Math.floor(z);
+		if ((ix + 1 < min[0]) || (ix > max[0]) || (iy + 1 < min[1]) ||
+			(iy > max[1]) || (iz + 1 < min[2]) || (iz > max[2])) return 0;
+		final double fx = x - ix;
+		final double fy = y - iy;
+		final double fz = z - iz;
+		final double v000, v100, v010, v110, v001, v101, v011, v111;
+		if ((ix >= min[0]) && (ix < max[0]) && (iy >= min[1]) && (iy < max[1]) &&
+			(iz >= min[2]) && (iz < max[2]))
+		{
+			v000 = voxels.get(ix, iy, iz);
+			v100 = voxels.get(ix + 1, iy, iz);
+			v010 = voxels.get(ix, iy + 1, iz);
+			v110 = voxels.get(ix + 1, iy + 1, iz);
+			v001 = voxels.get(ix, iy, iz + 1);
+			v101 = voxels.get(ix + 1, iy, iz + 1);
+			v011 = voxels.get(ix, iy + 1, iz + 1);
+			v111 = voxels.get(ix + 1, iy + 1, iz + 1);
+		}
+		else { // On the border of the origin
+			v000 = valueOrZero(voxels, ix, iy, iz);
+			v100 = valueOrZero(voxels, ix + 1, iy, iz);
+			v010 = valueOrZero(voxels, ix, iy + 1, iz);
+			v110 = valueOrZero(voxels, ix + 1, iy + 1, iz);
+			v001 = valueOrZero(voxels, ix, iy, iz + 1);
+			v101 = valueOrZero(voxels, ix + 1, iy, iz + 1);
+			v011 = valueOrZero(voxels, ix, iy + 1, iz + 1);
+			v111 = valueOrZero(voxels, ix + 1, iy + 1, iz + 1);
+		}
+		final double v00 = v000 + fx * (v100 - v000);
+		final double v10 = v010 + fx * (v110 - v010);
+		final double v01 = v001 + fx * (v101 - v001);
+		final double v11 = v011 + fx * (v111 - v011);
+		final double v0 = v00 + fy * (v10 - v00);
+		final double v1 = v01 + fy * (v11 - v01);
+		return v0 + fz * (v1 - v0);
+	}
+
+	private double valueOrZero(Voxels voxels, long x, long y, long z) {
+		if ((x < min[0]) || (x > max[0]) || (y < min[1]) || (y > max[1]) ||
+			(z < min[2]) || (z > max[2])) return 0;
+		return voxels.get(x, y, z);
+	}
+
+	/**
+	 * @return a reader of the origin voxels, one per cell loaded since loaders
+	 *         are called concurrently
+	 */
+	private Voxels voxels() {
+		final int kind = kindOf(origin.getType());
+		if (kind != UNSUPPORTED) {
+			if (origin instanceof AbstractCellImg) {
+				final AbstractCellImg<?, ?, ? extends Cell<?>, ?> img =
+					(AbstractCellImg<?, ?, ? extends Cell<?>, ?>) origin;
+				final RandomAccess<? extends Cell<?>> cells = img.getCells()
+					.randomAccess();
+				if (isAccessOf(kind, cells.get().getData())) {
+					final int[] cellDimensions = new int[3];
+					img.getCellGrid().cellDimensions(cellDimensions);
+					return new CellVoxels(kind, cells, cellDimensions);
+				}
+			}
+			else if ((origin instanceof ArrayImg) && (origin.min(0) == 0) && (origin
+				.min(1) == 0) && (origin.min(2) == 0))
+			{
+				final Object access = ((ArrayImg<?, ?>) origin).update(null);
+				if (isAccessOf(kind, access)) {
+					return new ArrayVoxels(kind, access, origin.dimension(0), origin
+						.dimension(1));
+				}
+			}
+		}
+		final RandomAccess<T> access = origin.randomAccess();
+		return (x, y, z) -> {
+			access.setPosition(x, 0);
+			access.setPosition(y, 1);
+			access.setPosition(z, 2);
+			return access.get().getRealDouble();
+		};
+	}
+
+	// Pixel types read directly from the accesses
+	static final int UNSUPPORTED = -1, UINT8 = 0, INT8 = 1, UINT16 = 2,
+			INT16 = 3, UINT32 = 4, INT32 = 5, FLOAT32 = 6, FLOAT64 = 7;
+
+	static int kindOf(Object type) {
+		if (type instanceof UnsignedByteType) return UINT8;
+		if (type instanceof ByteType) return INT8;
+		if (type instanceof UnsignedShortType) return UINT16;
+		if (type instanceof ShortType) return INT16;
+		if (type instanceof UnsignedIntType) return UINT32;
+		if (type instanceof IntType) return INT32;
+		if (type instanceof FloatType) return FLOAT32;
+		if (type instanceof DoubleType) return FLOAT64;
+		return UNSUPPORTED;
+	}
+
+	static boolean isAccessOf(int kind, Object access) {
+		switch (kind) {
+			case UINT8:
+			case INT8:
+				return access instanceof ByteAccess;
+			case UINT16:
+			case INT16:
+				return access instanceof ShortAccess;
+			case UINT32:
+			case INT32:
+				return access instanceof IntAccess;
+			case FLOAT32:
+				return access instanceof FloatAccess;
+			case FLOAT64:
+				return access instanceof DoubleAccess;
+			default:
+				return false;
+		}
+	}
+
+	static double read(int kind, Object access, int index) {
+		switch (kind) {
+			case UINT8:
+				return ((ByteAccess) access).getValue(index) & 0xff;
+			case INT8:
+				return ((ByteAccess) access).getValue(index);
+			case UINT16:
+				return ((ShortAccess) access).getValue(index) & 0xffff;
+			case INT16:
+				return ((ShortAccess) access).getValue(index);
+			case UINT32:
+				return ((IntAccess) access).getValue(index) & 0xffffffffL;
+			case INT32:
+				return ((IntAccess) access).getValue(index);
+			case FLOAT32:
+				return ((FloatAccess) access).getValue(index);
+			default:
+				return ((DoubleAccess) access).getValue(index);
+		}
+	}
+
+	/**
+	 * Reads voxels of the origin, positions are within its bounds
+	 */
+	interface Voxels {
+
+		double get(long x, long y, long z);
+	}
+
+	static class ArrayVoxels implements Voxels {
+
+		final int kind;
+
+		final Object access;
+
+		final long sx, sxy;
+
+		ArrayVoxels(int kind, Object access, long sx, long sy) {
+			this.kind = kind;
+			this.access = access;
+			this.sx = sx;
+			this.sxy = sx * sy;
+		}
+
+		@Override
+		public double get(long x, long y, long z) {
+			return read(kind, access, (int) (x + sx * y + sxy * z));
+		}
+	}
+
+	/**
+	 * Keeps the access of the last cell read: consecutive voxels of a row are
+	 * mostly in the same cell
+	 */
+	static class CellVoxels implements Voxels {
+
+		final int kind;
+
+		final RandomAccess<? extends Cell<?>> cells;
+
+		final int[] cellDimensions;
+
+		Object access;
+
+		// Bounds of the current cell, empty before the first read
+		long x0 = 0, y0 = 0, z0 = 0, x1 = -1, y1 = -1, z1 = -1;
+
+		long sx, sxy;
+
+		CellVoxels(int kind, RandomAccess<? extends Cell<?>> cells,
+			int[] cellDimensions)
+		{
+			this.kind = kind;
+			this.cells = cells;
+			this.cellDimensions = cellDimensions;
+		}
+
+		@Override
+		public double get(long x, long y, long z) {
+			if ((x < x0) || (x > x1) || (y < y0) || (y > y1) || (z < z0) || (z > z1))
+			{
+				moveTo(x, y, z);
+			}
+			return read(kind, access, (int) ((x - x0) + sx * (y - y0) + sxy * (z -
+				z0)));
+		}
+
+		private void moveTo(long x, long y, long z) {
+			cells.setPosition(x / cellDimensions[0], 0);
+			cells.setPosition(y / cellDimensions[1], 1);
+			cells.setPosition(z / cellDimensions[2], 2);
+			final Cell<?> cell = cells.get();
+			access = cell.getData();
+			x0 = cell.min(0);
+			y0 = cell.min(1);
+			z0 = cell.min(2);
+			x1 = x0 + cell.dimension(0) - 1;
+			y1 = y0 + cell.dimension(1) - 1;
+			z1 = z0 + cell.dimension(2) - 1;
+			sx = cell.dimension(0);
+			sxy = sx * cell.dimension(1);
+		}
+	}
+
+}
@@ -0,0 +1,242 @@
+/*-
+ * #%L
+ * BigDataViewer-Playground
+ * %%
+ * Copyright (C) 2019 - 2025 Nicolas Chiaruttini, EPFL - Robert Haase, MPI CBG - Christian Tischer, EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package bdv.util;
+
+import net.imglib2.AbstractInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.lazy.Caches;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.util.Intervals;
+import sc.fiji.bdvpg.cache.GlobalLoaderCache;
+import sc.fiji.bdvpg.cache.PersistentCellStore;
+
+import java.util.Arrays;
+
+/**
+ * Cached resampling of one timepoint and resolution level of a
+ * {@link ResampledSource}. The cells are computed from an {@link UpdatableView}:
+ * when the transform of the origin changes, the view is replaced and only the
+ * cells which overlap the former or the new footprint of the origin are
+ * invalidated. The other cells sample the same (empty) region before and after
+ * the change, so they are kept. Loads in progress during the change are
+ * computed again by the {@link GlobalLoaderCache}, so that no cell computed
+ * with the former transforms remains in the cache.
+ *
+ * @author Nicolas Chiaruttini
+ */
+class CachedResampling<T extends NativeType<T>> {
+
+	/**
+	 * Cached cell image, returned by {@link ResampledSource#getSource(int, int)}
+	 */
+	final RandomAccessibleInterval<T> cells;
+
+	final UpdatableView<T> view;
+
+	final GlobalLoaderCache<Long, Cell<?>> loaderCache;
+
+	/**
+	 * On-disk store of the cells, null if they are not persisted
+	 */
+	final PersistentCellStore store;
+
+	// Transforms the cells were computed with, row packed
+	private double[] originTransform;
+
+	private double[] modelTransform;
+
+	// Bounding box of the origin in model voxel coordinates, null if unknown
+	private Interval footprint;
+
+	// Content version of a resampled origin, see ResampledSource#getContentVersion
+	private long originVersion;
+
+	CachedResampling(RandomAccessibleInterval<T> cells, UpdatableView<T> view,
+		GlobalLoaderCache<Long, Cell<?>> loaderCache, PersistentCellStore store,
+		AffineTransform3D originTransform, AffineTransform3D modelTransform,
+		long originVersion, Interval footprint)
+	{
+		this.cells = cells;
+		this.view = view;
+		this.loaderCache = loaderCache;
+		this.store = store;
+		this.originTransform = originTransform.getRowPackedCopy();
+		this.modelTransform = modelTransform.getRowPackedCopy();
+		this.originVersion = originVersion;
+		this.footprint = footprint;
+	}
+
+	/**
+	 * @return true if the cells were computed with these transforms, and this
+	 *         version of the origin content
+	 */
+	boolean isComputedWith(AffineTransform3D originTransform,
+		AffineTransform3D modelTransform, long originVersion)
+	{
+		return (this.originVersion == originVersion) && Arrays.equals(
+			this.originTransform, originTransform.getRowPackedCopy()) && Arrays
+				.equals(this.modelTransform, modelTransform.getRowPackedCopy());
+	}
+
+	/**
+	 * Samples the view computed with the new transforms, and invalidates the
+	 * cells which are affected by the change. All cells are invalidated if the
+	 * model moved, if the content of the origin changed, or if any of the
+	 * footprints is unknown.
+	 *
+	 * @param newView resampling view computed with the new transforms
+	 * @param newLoader loader of the cells computed with the new transforms, null
+	 *          if the cells are copied from the view
+	 * @param originTransform new origin transform
+	 * @param modelTransform new model transform
+	 * @param originVersion new content version of the origin
+	 * @param newFootprint bounding box of the origin with the new transforms, in
+	 *          model voxel coordinates, null if unknown
+	 */
+	synchronized void update(RandomAccessibleInterval<T> newView,
+		CellLoader<T> newLoader, AffineTransform3D originTransform,
+		AffineTransform3D modelTransform, long originVersion,
+		Interval newFootprint)
+	{
+		final boolean modelMoved = !Arrays.equals(this.modelTransform,
+			modelTransform.getRowPackedCopy());
+		final boolean originContentChanged = (this.originVersion !=
+			originVersion);
+		final Interval oldFootprint = footprint;
+		// The view is replaced before invalidating: cells loaded from now on
+		// sample the new transforms
+		view.set(newView, newLoader, newFootprint);
+		this.originTransform = originTransform.getRowPackedCopy();
+		this.modelTransform = modelTransform.getRowPackedCopy();
+		this.originVersion = originVersion;
+		this.footprint = newFootprint;
+
+		if (modelMoved || originContentChanged || (oldFootprint == null) ||
+			(newFootprint == null))
+		{
+			loaderCache.invalidateAll();
+			return;
+		}
+		final CellGrid grid = ((CachedCellImg<?, ?>) cells).getCellGrid();
+		loaderCache.invalidateIf(index -> overlaps(grid, index, oldFootprint) ||
+			overlaps(grid, index, newFootprint));
+	}
+
+	/**
+	 * @return true if the cell of flat index {@code index} intersects the box
+	 */
+	static boolean overlaps(CellGrid grid, long index, Interval box) {
+		final int n = grid.numDimensions();
+		final long[] cellMin = new long[n];
+		final int[] cellDims = new int[n];
+		grid.getCellDimensions(index, cellMin, cellDims);
+		for (int d = 0; d < n; d++) {
+			if ((cellMin[d] > box.max(d)) || (cellMin[d] + cellDims[d] - 1 < box
+				.min(d))) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * {@link RandomAccessibleInterval} delegating to a view which can be
+	 * replaced, so that the loader of the cached cells follows the changes of
+	 * transforms without rebuilding the cell image. Cells are loaded with a
+	 * dedicated loader when there is one (see {@link AffineResamplingLoader}),
+	 * or copied from the view otherwise. Cells outside of the footprint of the
+	 * origin are not computed: the cache creates them as zero constant cells,
+	 * without allocating their array (see
+	 * {@link RAIHelper#wrapAsVolatileCachedCellImg(long[], CellLoader, int[], GlobalLoaderCache, NativeType)}).
+	 */
+	static class UpdatableView<T extends NativeType<T>> extends AbstractInterval
+		implements RandomAccessibleInterval<T>, CellLoader<T>
+	{
+
+		private volatile RandomAccessibleInterval<T> view;
+
+		private volatile CellLoader<T> loader;
+
+		private volatile Interval footprint;
+
+		UpdatableView(RandomAccessibleInterval<T> view, CellLoader<T> loader,
+			Interval footprint)
+		{
+			super(view);
+			set(view, loader, footprint);
+		}
+
+		/**
+		 * @param footprint bounding box of the origin, null if unknown
+		 */
+		void set(RandomAccessibleInterval<T> view, CellLoader<T> loader,
+			Interval footprint)
+		{
+			this.view = view;
+			this.loader = (loader == null) ? new Caches.RandomAccessibleLoader<>(
+				view) : loader;
+			this.footprint = footprint;
+		}
+
+		@Override
+		public RandomAccess<T> randomAccess() {
+			return view.randomAccess();
+		}
+
+		@Override
+		public RandomAccess<T> randomAccess(Interval interval) {
+			return view.randomAccess(interval);
+		}
+
+		/**
+		 * @return true if the cell of flat index {@code index} does not
+		 *         intersect the footprint of the origin: all its voxels are zero
+		 */
+		boolean isOutsideFootprint(CellGrid grid, long index) {
+			final Interval box = footprint;
+			return (box != null) && (!overlaps(grid, index, box));
+		}
+
+		@Override
+		public void load(SingleCellArrayImg<T, ?> cell) throws Exception {
+			final Interval box = footprint;
+			if ((box != null) && (Intervals.isEmpty(Intervals.intersect(cell,
+				box)))) return;
+			loader.load(cell);
+		}
+	}
+
+}
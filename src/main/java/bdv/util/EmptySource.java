@@ -56,7 +56,9 @@ import java.util.function.BiConsumer;
  * Also, this source can be serialized with the gson adapter
  * {@link EmptySourceAdapter} which is helpful to save such source easily.
  */
-public class EmptySource implements Source<UnsignedShortType>, Serializable {
+public class EmptySource implements Source<UnsignedShortType>, Serializable,
+	TimeInvariantSource
+{
 
 	transient final RandomAccessibleInterval<UnsignedShortType> rai;
 
@@ -98,6 +100,11 @@ public class EmptySource implements Source<UnsignedShortType>, Serializable {
 		return true;
 	}
 
+	@Override
+	public boolean isTimeInvariant() {
+		return true;
+	}
+
 	@Override
 	public RandomAccessibleInterval<UnsignedShortType> getSource(int t,
 		int level)
@@ -147,23 +147,44 @@ public class Procedural3DImageShort extends RealPoint implements
 	public Source<UnsignedShortType> getSource(AffineTransform3D at3D,
 		String name, VoxelDimensions voxDimensions)
 	{
-		return new RealRandomAccessibleSource<UnsignedShortType>(getRRA(),
-			new UnsignedShortType(), name, voxDimensions)
-		{
+		return new ProceduralSource(getRRA(), name, voxDimensions, at3D);
+	}
 
-			@Override
-			public Interval getInterval(final int t, final int level) {
-				return new FinalInterval(new long[] { 0, 0, 0 }, new long[] { 1, 1,
-					1 });
-			}
+	/**
+	 * The procedural function does not depend on the timepoint: the source is
+	 * time invariant, see {@link TimeInvariantSource}
+	 */
+	static class ProceduralSource extends
+		RealRandomAccessibleSource<UnsignedShortType> implements
+		TimeInvariantSource
+	{
 
-			@Override
-			public synchronized void getSourceTransform(final int t, final int level,
-				final AffineTransform3D transform)
-			{
-				transform.set(at3D);
-			}
-		};
+		final AffineTransform3D at3D;
+
+		ProceduralSource(RealRandomAccessible<UnsignedShortType> rra, String name,
+			VoxelDimensions voxDimensions, AffineTransform3D at3D)
+		{
+			super(rra, new UnsignedShortType(), name, voxDimensions);
+			this.at3D = at3D;
+		}
+
+		@Override
+		public Interval getInterval(final int t, final int level) {
+			return new FinalInterval(new long[] { 0, 0, 0 }, new long[] { 1, 1,
+				1 });
+		}
+
+		@Override
+		public synchronized void getSourceTransform(final int t, final int level,
+			final AffineTransform3D transform)
+		{
+			transform.set(at3D);
+		}
+
+		@Override
+		public boolean isTimeInvariant() {
+			return true;
+		}
 	}
 
 }
@@ -29,17 +29,23 @@
 
 package bdv.util;
 
+import sc.fiji.bdvpg.cache.ConstantCells;
 import sc.fiji.bdvpg.cache.GlobalLoaderCache;
+import sc.fiji.bdvpg.cache.PersistentCellStore;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.lazy.Caches;
 import net.imglib2.cache.Cache;
+import net.imglib2.cache.CacheLoader;
 import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.CellLoader;
 import net.imglib2.cache.img.LoadedCellCacheLoader;
 import net.imglib2.img.basictypeaccess.AccessFlags;
 import net.imglib2.img.basictypeaccess.ArrayDataAccessFactory;
 import net.imglib2.img.cell.Cell;
 import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.NativeType;
+import net.imglib2.type.PrimitiveType;
 import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.integer.GenericByteType;
 import net.imglib2.type.numeric.integer.GenericIntType;
@@ -65,21 +71,130 @@ import static net.imglib2.type.PrimitiveType.DOUBLE;
 
 public class RAIHelper {
 
+	/**
+	 * Number of elements of a cell, the same as a 64x64x64 block
+	 */
+	public static final int CELL_ELEMENTS = 64 * 64 * 64;
+
+	/**
+	 * Block size of a cached image: cells have roughly the same physical extent
+	 * along each axis, so that anisotropic data does not load many more planes
+	 * than needed, and dimensions smaller than their share (a single z plane,
+	 * for instance) are taken as a whole, the remaining elements going to the
+	 * other dimensions. Cells contain at most {@link #CELL_ELEMENTS} elements.
+	 *
+	 * @param dimensions dimensions of the cached image
+	 * @param voxelSize physical size of a voxel along each dimension
+	 * @return the dimensions of a cell
+	 */
+	public static int[] blockSize(long[] dimensions, double[] voxelSize) {
+		final int n = dimensions.length;
+		final int[] blockSize = new int[n];
+		final boolean[] whole = new boolean[n];
+		double elements = CELL_ELEMENTS;
+		double side; // Physical size of a cell along the dimensions not taken whole
+		boolean changed;
+		do {
+			changed = false;
+			double logVoxelSizes = 0;
+			int free = 0;
+			for (int d = 0; d < n; d++) {
+				if (whole[d]) continue;
+				logVoxelSizes += Math.log(voxelSize[d]);
+				free++;
+			}
+			if (free == 0) return blockSize;
+			side = Math.exp((Math.log(elements) + logVoxelSizes) / free);
+			for (int d = 0; d < n; d++) {
+				if ((!whole[d]) && (extent(side, voxelSize[d]) >= dimensions[d])) {
+					whole[d] = true;
+					blockSize[d] = (int) dimensions[d];
+					elements /= dimensions[d];
+					changed = true;
+				}
+			}
+		}
+		while (changed);
+		for (int d = 0; d < n; d++) {
+			if (!whole[d]) blockSize[d] = (int) Math.max(1, Math.min(dimensions[d],
+				Math.floor(extent(side, voxelSize[d]))));
+		}
+		return blockSize;
+	}
+
+	// Number of voxels covering a physical size, robust to rounding errors
+	private static double extent(double side, double voxelSize) {
+		return side / voxelSize + 1e-6;
+	}
+
+	/**
+	 * Same as {@link #blockSize(long[], double[])}, with the voxel size of a
+	 * source level given by its transform
+	 *
+	 * @param dimensions dimensions of the cached image
+	 * @param sourceTransform voxel to physical space transform of the image
+	 * @return the dimensions of a cell
+	 */
+	public static int[] blockSize(long[] dimensions,
+		AffineTransform3D sourceTransform)
+	{
+		final double[] voxelSize = new double[3];
+		for (int d = 0; d < 3; d++) {
+			for (int r = 0; r < 3; r++) {
+				voxelSize[d] += sourceTransform.get(r, d) * sourceTransform.get(r, d);
+			}
+			voxelSize[d] = Math.sqrt(voxelSize[d]);
+		}
+		return blockSize(dimensions, voxelSize);
+	}
+
 	public static <T extends NativeType<T>> RandomAccessibleInterval<T>
 	wrapAsVolatileCachedCellImg(final RandomAccessibleInterval<T> source,
 								final int[] blockSize, Object objectSource, int timepoint, int level, T type)
 	{
+		return wrapAsVolatileCachedCellImg(source, blockSize, objectSource,
+				timepoint, level, type, null);
+	}
+
+	/**
+	 * Same as {@link #wrapAsVolatileCachedCellImg(RandomAccessibleInterval, int[], Object, int, int, NativeType)},
+	 * but the cells are also kept on disk across sessions
+	 *
+	 * @param store on-disk store of the cells, null if they are not persisted
+	 */
+	public static <T extends NativeType<T>> RandomAccessibleInterval<T>
+	wrapAsVolatileCachedCellImg(final RandomAccessibleInterval<T> source,
+								final int[] blockSize, Object objectSource, int timepoint, int level, T type,
+								PersistentCellStore store)
+	{
 
-		final long[] dimensions = Intervals.dimensionsAsLongArray(source);
-		final CellGrid grid = new CellGrid(dimensions, blockSize);
+		return wrapAsVolatileCachedCellImg(Intervals.dimensionsAsLongArray(source),
+				new Caches.RandomAccessibleLoader<>(Views.zeroMin(source)), blockSize,
+				new GlobalLoaderCache<>(objectSource, timepoint, level, store), type);
+	}
 
-		final Caches.RandomAccessibleLoader<T> loader =
-				new Caches.RandomAccessibleLoader<>(Views.zeroMin(source));
+	/**
+	 * Same as {@link #wrapAsVolatileCachedCellImg(RandomAccessibleInterval, int[], Object, int, int, NativeType, PersistentCellStore)},
+	 * with cells computed by a loader instead of copied from an image, and
+	 * cached in the given loader cache
+	 *
+	 * @param dimensions dimensions of the cached image
+	 * @param loader fills the cells of the cached image
+	 * @param loaderCache cache of the cells, kept by the caller to invalidate
+	 *          them
+	 */
+	public static <T extends NativeType<T>> RandomAccessibleInterval<T>
+	wrapAsVolatileCachedCellImg(final long[] dimensions, final CellLoader<T> loader,
+								final int[] blockSize, GlobalLoaderCache<Long, Cell<?>> loaderCache, T type)
+	{
+		final CellGrid grid = new CellGrid(dimensions, blockSize);
 
 		final CachedCellImg<T, ?> img;
-		final Cache<Long, Cell<?>> cache = new GlobalLoaderCache(objectSource,
-				timepoint, level).withLoader(LoadedCellCacheLoader.get(grid, loader, type,
-				AccessFlags.setOf(VOLATILE)));
+		final CacheLoader<Long, ? extends Cell<?>> cellLoader = LoadedCellCacheLoader.get(grid, loader, type,
+				AccessFlags.setOf(VOLATILE));
+		// Read-only cells: the uniform ones can be kept as constant cells
+		loaderCache.setCompactUniformCells(true);
+		final Cache<Long, Cell<?>> cache = loaderCache.withLoader(skippingZeroCells(grid, loader, cellLoader, type));
 
 		if (GenericByteType.class.isInstance(type)) {
 			img = new CachedCellImg(grid, type, cache, ArrayDataAccessFactory.get(
@@ -116,4 +231,30 @@ public class RAIHelper {
 		return img;
 	}
 
+	/**
+	 * Cells which the loader knows to be zero (cells of a resampled source
+	 * outside of the footprint of its origin, see
+	 * {@link CachedResampling.UpdatableView}) are created as constant cells,
+	 * without allocating nor scanning an array. Other cells are loaded.
+	 */
+	private static <T extends NativeType<T>> CacheLoader<Long, Cell<?>> skippingZeroCells(
+			final CellGrid grid, final CellLoader<T> loader,
+			final CacheLoader<Long, ? extends Cell<?>> cellLoader, final T type)
+	{
+		if (!(loader instanceof CachedResampling.UpdatableView)) return cellLoader::get;
+		final CachedResampling.UpdatableView<?> view = (CachedResampling.UpdatableView<?>) loader;
+		final PrimitiveType primitiveType = type.getNativeTypeFactory().getPrimitiveType();
+		return index -> {
+			if (view.isOutsideFootprint(grid, index)) {
+				final long[] cellMin = new long[grid.numDimensions()];
+				final int[] cellDims = new int[grid.numDimensions()];
+				grid.getCellDimensions(index, cellMin, cellDims);
+				final ConstantCells.ConstantAccess<?> zero = ConstantCells.zero(primitiveType,
+						(int) type.getEntitiesPerPixel().mulCeil(Intervals.numElements(cellDims)));
+				if (zero != null) return new Cell<>(cellDims, cellMin, zero);
+			}
+			return cellLoader.get(index);
+		};
+	}
+
 }
@@ -29,29 +29,49 @@
 
 package bdv.util;
 
+import bdv.AbstractSpimSource;
+import bdv.export.ProgressWriter;
 import bdv.img.WarpedSource;
 import bdv.tools.transformation.TransformedSource;
 import bdv.viewer.Interpolation;
 import bdv.viewer.Source;
 import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.FinalInterval;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
 import net.imglib2.RealRandomAccessible;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.img.cell.Cell;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.realtransform.RealViews;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.NumericType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
 import net.imglib2.view.ExtendedRandomAccessibleInterval;
 import net.imglib2.view.Views;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import sc.fiji.bdvpg.cache.CellPrecomputation;
+import sc.fiji.bdvpg.cache.GlobalLoaderCache;
+import sc.fiji.bdvpg.cache.PersistentCellStore;
+import sc.fiji.bdvpg.cache.SourcePipelineDescription;
 import sc.fiji.bdvpg.sourceandconverter.SourceAndConverterHelper;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A {@link ResampledSource} is a {@link Source} which is computed on the fly by
@@ -70,7 +90,7 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 
 public class ResampledSource<T extends NumericType<T> & NativeType<T>>
-	implements Source<T>
+	implements Source<T>, TimeInvariantSource
 {
 
 	protected static final Logger logger = LoggerFactory.getLogger(
@@ -80,7 +100,7 @@ public class ResampledSource<T extends NumericType<T> & NativeType<T>>
 	 * Hashmap to cache RAIs (mipmaps and timepoints), used only if
 	 * {@link ResampledSource#cache} is true
 	 */
-	final transient ConcurrentHashMap<Integer, ConcurrentHashMap<Integer, RandomAccessibleInterval<T>>> cachedRAIs =
+	final transient ConcurrentHashMap<Integer, ConcurrentHashMap<Integer, CachedResampling<T>>> cachedRAIs =
 		new ConcurrentHashMap<>();
 
 	/**
@@ -104,8 +124,22 @@ public class ResampledSource<T extends NumericType<T> & NativeType<T>>
 
 	final boolean cache;
 
+	/**
+	 * True if both the origin and the model are time invariant: the RAIs and
+	 * cells are then computed once for all timepoints
+	 */
+	final boolean timeInvariant;
+
 	private final String name;
 
+	/**
+	 * Dimensions of the cached cells set by the user, null if they adapt to the
+	 * model
+	 */
+	private volatile int[] blockSize;
+
+	private final AtomicLong contentVersion = new AtomicLong();
+
 	/**
 	 * The origin source is accessed through its RealRandomAccessible
 	 * representation : - It can be accessed at any 3d point in space, with real
@@ -130,9 +164,10 @@ public class ResampledSource<T extends NumericType<T> & NativeType<T>>
 	 *          the linked method above
 	 * @param cache specifies whether the result of the resampling should be
 	 *          cached. This allows for a fast access of resampled source after
-	 *          the first computation - but the synchronization with the origin
-	 *          and model source is lost. TODO : check how the cache can be
-	 *          accessed / reset
+	 *          the first computation. Changes of the origin or model transforms
+	 *          only invalidate the cells they affect. Other changes of the
+	 *          origin (pixel values, warping) are not followed. TODO : check how
+	 *          the cache can be accessed / reset
 	 * @param originInterpolation specifies whether the origin source should be
 	 *          interpolated of not in the resampling process
 	 * @param defaultMipMapLevel mipmap level chosen to resample the origin source
@@ -154,6 +189,8 @@ public class ResampledSource<T extends NumericType<T> & NativeType<T>>
 			this.originInterpolation = Interpolation.NEARESTNEIGHBOR;
 		}
 		this.defaultMipMapLevel = defaultMipMapLevel;
+		this.timeInvariant = SourceAndConverterHelper.isTimeInvariant(source) &&
+			SourceAndConverterHelper.isTimeInvariant(resamplingModel);
 		computeMipMapsCorrespondance();
 	}
 
@@ -243,6 +280,11 @@ public class ResampledSource<T extends NumericType<T> & NativeType<T>>
 		return origin.isPresent(t) && resamplingModel.isPresent(t);
 	}
 
+	@Override
+	public boolean isTimeInvariant() {
+		return timeInvariant;
+	}
+
 	public boolean areMipmapsReused() {
 		return reuseMipMaps;
 	}
@@ -258,31 +300,261 @@ public class ResampledSource<T extends NumericType<T> & NativeType<T>>
 	@Override
 	public RandomAccessibleInterval<T> getSource(int t, int level) { // TODO: shouldn't this be synchronized ?
 		if (cache) {
-			if (!cachedRAIs.containsKey(t)) {
-				cachedRAIs.put(t, new ConcurrentHashMap<>());
+			// Time invariant: built from the first timepoint requested, and shared
+			final int key = timeInvariant ? ANY_TIMEPOINT : t;
+			if (!cachedRAIs.containsKey(key)) {
+				cachedRAIs.put(key, new ConcurrentHashMap<>());
 			}
 
-			if (!cachedRAIs.get(t).containsKey(level)) {
-				RandomAccessibleInterval<T> nonCached = buildSource(t, level);
-
-				int[] blockSize = { 64, 64, 64 };
+			if (!cachedRAIs.get(key).containsKey(level)) {
+				cachedRAIs.get(key).put(level, buildCachedSource(t, key, level));
+			}
+			CachedResampling<T> resampling = cachedRAIs.get(key).get(level);
+
+			AffineTransform3D originTransform = new AffineTransform3D();
+			origin.getSourceTransform(t, getModelToOriginMipMapLevel(level),
+				originTransform);
+			AffineTransform3D modelTransform = new AffineTransform3D();
+			resamplingModel.getSourceTransform(t, level, modelTransform);
+			long originVersion = originContentVersion(t, level);
+			if (!resampling.isComputedWith(originTransform, modelTransform,
+				originVersion))
+			{
+				resampling = synchronizeTransforms(t, key, level, originTransform,
+					modelTransform, originVersion);
+			}
+			return resampling.cells;
+		}
+		else {
+			return buildSource(t, level);
+		}
 
-				if (nonCached.dimension(0) < 64) blockSize[0] = (int) nonCached
-					.dimension(0);
-				if (nonCached.dimension(1) < 64) blockSize[1] = (int) nonCached
-					.dimension(1);
-				if (nonCached.dimension(2) < 64) blockSize[2] = (int) nonCached
-					.dimension(2);
+	}
 
-				cachedRAIs.get(t).put(level, RAIHelper.wrapAsVolatileCachedCellImg(
-					nonCached, blockSize, this, t, level, this.getType()));
+	/**
+	 * Computes up front all the cells of this source at the given timepoints
+	 * and resolution levels, in parallel, so that they are read from the cache
+	 * afterwards (see {@link CellPrecomputation}). Only possible if the source
+	 * is cached. Timepoints where the source is not present and levels which do
+	 * not exist are skipped. Cells of a time-invariant source are computed
+	 * once.
+	 *
+	 * @param timepointBegin first timepoint to compute
+	 * @param timepointEnd last timepoint to compute, excluded
+	 * @param levels resolution levels to compute
+	 * @param progress progress and messages of the computation, the console if
+	 *          null
+	 * @return the running computation, whose result is the number of cells
+	 *         computed, and which can be cancelled
+	 * @throws IllegalStateException if the source is not cached, see
+	 *           {@link #isCached()}
+	 */
+	public ForkJoinTask<Integer> precompute(int timepointBegin, int timepointEnd,
+		int[] levels, ProgressWriter progress)
+	{
+		if (!cache) {
+			throw new IllegalStateException("Resampled source " + name +
+				" is not cached, its cells can't be precomputed");
+		}
+		// Time invariant sources return the same RAI for all timepoints
+		final Set<RandomAccessibleInterval<T>> rais = Collections.newSetFromMap(
+			new IdentityHashMap<>());
+		final List<RandomAccessibleInterval<T>> toCompute = new ArrayList<>();
+		for (int t = timepointBegin; t < timepointEnd; t++) {
+			if (!isPresent(t)) continue;
+			for (int level : levels) {
+				if ((level < 0) || (level >= getNumMipmapLevels())) continue;
+				final RandomAccessibleInterval<T> rai = getSource(t, level);
+				if (rais.add(rai)) toCompute.add(rai);
 			}
-			return cachedRAIs.get(t).get(level);
+		}
+		return CellPrecomputation.submit(toCompute, progress);
+	}
+
+	/**
+	 * Sets the dimensions of the cached cells, instead of the ones adapted to the
+	 * dimensions and anisotropy of the model (see
+	 * {@link RAIHelper#blockSize(long[], AffineTransform3D)}). The cells
+	 * already computed are discarded.
+	 *
+	 * @param blockSize dimensions of a cell, capped to the dimensions of each
+	 *          level, or null to go back to adaptive cell dimensions
+	 */
+	public synchronized void setBlockSize(int[] blockSize) {
+		this.blockSize = (blockSize == null) ? null : blockSize.clone();
+		cachedRAIs.values().forEach(levels -> levels.values().forEach(
+			resampling -> resampling.loaderCache.discard()));
+		cachedRAIs.clear();
+	}
+
+	/**
+	 * @return the dimensions of a cell set by the user, or null if they adapt to
+	 *         the model
+	 */
+	public int[] getBlockSize() {
+		return (blockSize == null) ? null : blockSize.clone();
+	}
+
+	private int[] getBlockSize(Interval view, AffineTransform3D modelTransform) {
+		long[] dimensions = Intervals.dimensionsAsLongArray(view);
+		int[] userBlockSize = blockSize;
+		if (userBlockSize == null) {
+			return RAIHelper.blockSize(dimensions, modelTransform);
+		}
+		int[] capped = new int[3];
+		for (int d = 0; d < 3; d++) {
+			capped[d] = (int) Math.min(userBlockSize[d], dimensions[d]);
+		}
+		return capped;
+	}
+
+	private CachedResampling<T> buildCachedSource(int t, int key, int level) {
+		AffineTransform3D originTransform = new AffineTransform3D();
+		origin.getSourceTransform(t, getModelToOriginMipMapLevel(level),
+			originTransform);
+		AffineTransform3D modelTransform = new AffineTransform3D();
+		resamplingModel.getSourceTransform(t, level, modelTransform);
+
+		Interval footprint = originFootprint(t, level, originTransform,
+			modelTransform);
+		CachedResampling.UpdatableView<T> view =
+			new CachedResampling.UpdatableView<>(buildSource(t, level), buildLoader(
+				t, level), footprint);
+
+		int[] blockSize = getBlockSize(view, modelTransform);
+
+		PersistentCellStore store = getStore(t, blockSize);
+		GlobalLoaderCache<Long, Cell<?>> loaderCache = new GlobalLoaderCache<>(
+			this, key, level, store);
+		return new CachedResampling<>(RAIHelper.wrapAsVolatileCachedCellImg(
+			Intervals.dimensionsAsLongArray(view), view, blockSize, loaderCache,
+			this.getType()), view, loaderCache, store, originTransform,
+			modelTransform, originContentVersion(t, level), footprint);
+	}
+
+	/**
+	 * Called when the origin or the model transform changed since the cells of
+	 * this timepoint and level were computed (manual registration,
+	 * {@link sc.fiji.bdvpg.sourceandconverter.transform.SourceTransformHelper},
+	 * ...). Only the cells overlapping the former or the new footprint of the
+	 * origin are invalidated, so that a cached resampled source stays
+	 * responsive while its origin is being registered. Persisted cells are
+	 * stored according to the transforms of the pipeline: in this case, the
+	 * cells are rebuilt against the store of the new transforms. If the origin
+	 * is itself a cached resampled source whose cells changed, all the cells
+	 * are invalidated.
+	 */
+	private synchronized CachedResampling<T> synchronizeTransforms(int t,
+		int key, int level, AffineTransform3D originTransform,
+		AffineTransform3D modelTransform, long originVersion)
+	{
+		CachedResampling<T> resampling = cachedRAIs.get(key).get(level);
+		if (resampling.isComputedWith(originTransform, modelTransform,
+			originVersion))
+		{
+			return resampling; // Updated by another thread
+		}
+		if (resampling.store != null) {
+			// Loads in progress can't reach the cells of the new image
+			resampling.loaderCache.discard();
+			resampling = buildCachedSource(t, key, level);
+			cachedRAIs.get(key).put(level, resampling);
 		}
 		else {
-			return buildSource(t, level);
+			logger.debug("Transform or content of the origin or model of " + name +
+				" changed, updating the cached cells of level " + level);
+			resampling.update(buildSource(t, level), buildLoader(t, level),
+				originTransform, modelTransform, originVersion, originFootprint(t,
+					level, originTransform, modelTransform));
+		}
+		contentVersion.incrementAndGet();
+		return resampling;
+	}
+
+	/**
+	 * @return a number which changes each time cached cells of this source are
+	 *         invalidated because its origin or its model changed. Resampled
+	 *         sources resampling this one use it to invalidate their own cells.
+	 */
+	public long getContentVersion() {
+		return contentVersion.get();
+	}
+
+	/**
+	 * @return the content version of the origin if it is a resampled source,
+	 *         possibly transformed, 0 otherwise. Changes of other derived
+	 *         origins (warped sources of resampled sources, for instance) are
+	 *         not followed.
+	 */
+	private long originContentVersion(int t, int level) {
+		Source<?> rootOrigin = origin;
+		while (rootOrigin instanceof TransformedSource) {
+			rootOrigin = ((TransformedSource<?>) rootOrigin).getWrappedSource();
+		}
+		if (!(rootOrigin instanceof ResampledSource)) return 0;
+		// Lets the origin check its own transforms first
+		origin.getSource(t, getModelToOriginMipMapLevel(level));
+		return ((ResampledSource<?>) rootOrigin).getContentVersion();
+	}
+
+	/**
+	 * @return true if the interpolated origin is known to be its image, extended
+	 *         with zeros: spim sources, image sources and resampled sources,
+	 *         possibly transformed. Procedural or warped sources have values
+	 *         outside of the bounds of their image.
+	 */
+	private boolean isOriginZeroExtendedImage() {
+		Source<?> rootOrigin = origin;
+		while (rootOrigin instanceof TransformedSource) {
+			rootOrigin = ((TransformedSource<?>) rootOrigin).getWrappedSource();
 		}
+		return (rootOrigin instanceof AbstractSpimSource) ||
+			(rootOrigin instanceof RandomAccessibleIntervalSource) ||
+			(rootOrigin instanceof ResampledSource);
+	}
 
+	/**
+	 * @return the bounding box of the origin, in voxel coordinates of the model
+	 *         at this level, or null if the origin has values outside of its
+	 *         image (see {@link #isOriginZeroExtendedImage()})
+	 */
+	private Interval originFootprint(int t, int level,
+		AffineTransform3D originTransform, AffineTransform3D modelTransform)
+	{
+		if (!isOriginZeroExtendedImage()) return null;
+
+		RandomAccessibleInterval<T> originRAI = origin.getSource(t,
+			getModelToOriginMipMapLevel(level));
+		AffineTransform3D originToModel = modelTransform.inverse();
+		originToModel.concatenate(originTransform);
+		// Half a voxel for the voxel extent, and one more for the interpolation
+		double[] min = new double[3];
+		double[] max = new double[3];
+		for (int d = 0; d < 3; d++) {
+			min[d] = originRAI.min(d) - 1.5;
+			max[d] = originRAI.max(d) + 1.5;
+		}
+		RealInterval box = originToModel.estimateBounds(new FinalRealInterval(min,
+			max));
+		long[] boxMin = new long[3];
+		long[] boxMax = new long[3];
+		for (int d = 0; d < 3; d++) {
+			boxMin[d] = (long) Math.floor(box.realMin(d)) - 1;
+			boxMax[d] = (long) Math.ceil(box.realMax(d)) + 1;
+		}
+		return new FinalInterval(boxMin, boxMax);
+	}
+
+	/**
+	 * @return the on-disk store of the cells of this source at timepoint t, or
+	 *         null if cells are not persisted, see {@link PersistentCellStore}
+	 */
+	private PersistentCellStore getStore(int t, int[] blockSize) {
+		if (PersistentCellStore.getRootDirectory() == null) return null;
+		String description = SourcePipelineDescription.of(this, t);
+		if (description == null) return null; // Warped sources, for instance
+		return PersistentCellStore.forDescription(description + ", blocks=" +
+			Arrays.toString(blockSize));
 	}
 
 	@SuppressWarnings("UnnecessaryLocalVariable")
@@ -317,6 +589,32 @@ public class ResampledSource<T extends NumericType<T> & NativeType<T>>
 		return view;
 	}
 
+	/**
+	 * Cached cells of a real valued origin are computed with an
+	 * {@link AffineResamplingLoader}, which is much faster than going through
+	 * the view of {@link #buildSource(int, int)}. This requires the interpolated
+	 * origin to be its zero-extended image.
+	 *
+	 * @return the loader of the cells at this timepoint and level, or null if
+	 *         the cells should be copied from {@link #buildSource(int, int)}
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private CellLoader<T> buildLoader(int t, int level) {
+		if ((!(getType() instanceof RealType)) || (!isOriginZeroExtendedImage())) {
+			return null;
+		}
+
+		int originLevel = getModelToOriginMipMapLevel(level);
+		AffineTransform3D modelToOrigin = new AffineTransform3D();
+		origin.getSourceTransform(t, originLevel, modelToOrigin);
+		modelToOrigin = modelToOrigin.inverse();
+		AffineTransform3D modelTransform = new AffineTransform3D();
+		resamplingModel.getSourceTransform(t, level, modelTransform);
+		modelToOrigin.concatenate(modelTransform);
+		return new AffineResamplingLoader(origin.getSource(t, originLevel),
+			modelToOrigin, originInterpolation == Interpolation.NLINEAR);
+	}
+
 	@Override
 	public RealRandomAccessible<T> getInterpolatedSource(int t, int level,
 		Interpolation method)
@@ -0,0 +1,57 @@
+/*-
+ * #%L
+ * BigDataViewer-Playground
+ * %%
+ * Copyright (C) 2019 - 2025 Nicolas Chiaruttini, EPFL - Robert Haase, MPI CBG - Christian Tischer, EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package bdv.util;
+
+import bdv.viewer.Source;
+import sc.fiji.bdvpg.sourceandconverter.SourceAndConverterHelper;
+
+/**
+ * Implemented by {@link Source}s which can tell whether they return the same
+ * data, with the same transforms, at every timepoint where they are present.
+ * The RAIs and the cached cells of a time-invariant source are built once and
+ * shared by all timepoints, instead of being duplicated per timepoint. Sources
+ * which do not implement this interface can still be detected as time
+ * invariant, see {@link SourceAndConverterHelper#isTimeInvariant(Source)}.
+ */
+public interface TimeInvariantSource {
+
+	/**
+	 * Timepoint used in place of the actual timepoint to cache the RAIs and
+	 * cells of time-invariant sources
+	 */
+	int ANY_TIMEPOINT = -1;
+
+	/**
+	 * @return true if the source data and transforms do not depend on the
+	 *         timepoint
+	 */
+	boolean isTimeInvariant();
+
+}
@@ -51,6 +51,8 @@ import net.imglib2.type.volatiles.VolatileUnsignedIntType;
 import net.imglib2.type.volatiles.VolatileUnsignedShortType;
 import net.imglib2.view.ExtendedRandomAccessibleInterval;
 import net.imglib2.view.Views;
+import sc.fiji.bdvpg.cache.SharedFetchQueues;
+import sc.fiji.bdvpg.sourceandconverter.SourceAndConverterHelper;
 
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -59,7 +61,8 @@ import java.util.concurrent.ConcurrentHashMap;
  * {@link Source} which can be made Volatile thanks to
  * {@link VolatileViews#wrapAsVolatile} That's not always possible! A
  * {@link SharedQueue} can be passed as an argument in the constructor to
- * control more finely the volatile fetching jobs Use case : see
+ * control more finely the volatile fetching jobs, by default the shared CPU
+ * queue of {@link SharedFetchQueues} is used. Use case : see
  * {@link ResampledSource}
  *
  * @param <T> concrete pixel {@link net.imglib2.type.Type} linked to:
@@ -67,11 +70,14 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 
 public class WrapVolatileSource<T extends NumericType<T>, V extends Volatile<T> & NumericType<V>>
-	implements Source<V>
+	implements Source<V>, TimeInvariantSource
 {
 
 	final Source<T> originSource;
 
+	// Volatile views shared by all timepoints if true
+	final boolean timeInvariant;
+
 	Source<V> volatileSource = null;
 
 	protected final DefaultInterpolators<V> interpolators =
@@ -83,14 +89,22 @@ public class WrapVolatileSource<T extends NumericType<T>, V extends Volatile<T>
 		new ConcurrentHashMap<>();
 
 	public WrapVolatileSource(final Source<T> source) {
-		this.originSource = source;
-		queue = new SharedQueue(2);
+		this(source, SharedFetchQueues.getCPUQueue());
 	}
 
 	public WrapVolatileSource(final Source<T> originSource, final SharedQueue queue) {
 		this.originSource = originSource;
 		this.volatileSource = null;
 		this.queue = queue;
+		this.timeInvariant = SourceAndConverterHelper.isTimeInvariant(
+			originSource);
+	}
+
+	/**
+	 * @return the non volatile source wrapped
+	 */
+	public Source<T> getWrappedSource() {
+		return originSource;
 	}
 
 	/** For lazy downscaling, we want to keep the original highest resolution level
@@ -116,17 +130,23 @@ public class WrapVolatileSource<T extends NumericType<T>, V extends Volatile<T>
 
 	@Override
 	public RandomAccessibleInterval<V> getSource(int t, int level) {
-		if (!cachedRAIs.containsKey(t)) {
-			cachedRAIs.put(t, new ConcurrentHashMap<>());
+		final int key = timeInvariant ? ANY_TIMEPOINT : t;
+		if (!cachedRAIs.containsKey(key)) {
+			cachedRAIs.put(key, new ConcurrentHashMap<>());
 		}
 
-		if (!cachedRAIs.get(t).containsKey(level)) {
+		if (!cachedRAIs.get(key).containsKey(level)) {
 			RandomAccessibleInterval<V> nonCached = buildSource(t, level);
 
-			cachedRAIs.get(t).put(level, nonCached);
+			cachedRAIs.get(key).put(level, nonCached);
 		}
 
-		return cachedRAIs.get(t).get(level);
+		return cachedRAIs.get(key).get(level);
+	}
+
+	@Override
+	public boolean isTimeInvariant() {
+		return timeInvariant;
 	}
 
 	@Override
@@ -0,0 +1,139 @@
+/*-
+ * #%L
+ * BigDataViewer-Playground
+ * %%
+ * Copyright (C) 2019 - 2025 Nicolas Chiaruttini, EPFL - Robert Haase, MPI CBG - Christian Tischer, EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.bdvpg.bdv.navigate;
+
+import bdv.util.BdvHandle;
+import bdv.util.MipmapTransforms;
+import bdv.viewer.Source;
+import bdv.viewer.SourceAndConverter;
+import bdv.viewer.TimePointListener;
+import net.imglib2.realtransform.AffineTransform3D;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sc.fiji.bdvpg.services.SourceAndConverterServices;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Playback-aware caching for time-lapses displayed in a BigDataViewer window.
+ * When the current timepoint changes, the cells of the visible sources which
+ * are on screen are requested for the next timepoints, through the fetch
+ * queues of the sources (see {@link TrajectoryPrefetcher}), and the global
+ * cache is told to
+ * evict the cells the farthest in time from the current timepoint first (see
+ * {@link sc.fiji.bdvpg.cache.AbstractGlobalCache#setPlaybackWindow(int, int, int)}).
+ * Once all timepoints have been played and if they fit in the cache, the
+ * playback does not wait for any data. The playback window is global to the
+ * cache: it follows the last window whose timepoint changed.
+ *
+ * @author Nicolas Chiaruttini
+ */
+public class PlaybackPrefetcher implements Runnable {
+
+	final static Logger logger = LoggerFactory.getLogger(
+		PlaybackPrefetcher.class);
+
+	final BdvHandle bdvh;
+
+	final int timepointsAhead;
+
+	// Incremented at each timepoint change: older requests are dropped
+	private final AtomicLong generation = new AtomicLong();
+
+	final TimePointListener timePointListener = this::timePointChanged;
+
+	/**
+	 * @param bdvh window whose timepoint is followed
+	 * @param timepointsAhead number of timepoints loaded after the current one
+	 */
+	public PlaybackPrefetcher(BdvHandle bdvh, int timepointsAhead) {
+		this.bdvh = bdvh;
+		this.timepointsAhead = timepointsAhead;
+	}
+
+	@Override
+	public void run() {
+		bdvh.getViewerPanel().timePointListeners().add(timePointListener);
+	}
+
+	public void removeFromBdv() {
+		bdvh.getViewerPanel().timePointListeners().remove(timePointListener);
+		generation.incrementAndGet();
+		SourceAndConverterServices.getSourceAndConverterService().getCache()
+			.clearPlaybackWindow();
+	}
+
+	public BdvHandle getBdvh() {
+		return bdvh;
+	}
+
+	void timePointChanged(int timepoint) {
+		final long gen = generation.incrementAndGet();
+		final int numTimepoints = bdvh.getViewerPanel().state().getNumTimepoints();
+		SourceAndConverterServices.getSourceAndConverterService().getCache()
+			.setPlaybackWindow(timepoint, timepointsAhead, numTimepoints);
+
+		final AffineTransform3D viewerTransform = new AffineTransform3D();
+		bdvh.getViewerPanel().state().getViewerTransform(viewerTransform);
+		final List<SourceAndConverter<?>> sources = new ArrayList<>(bdvh
+			.getViewerPanel().state().getVisibleAndPresentSources());
+		final int width = bdvh.getViewerPanel().getDisplay().getWidth();
+		final int height = bdvh.getViewerPanel().getDisplay().getHeight();
+		if ((sources.isEmpty()) || (width <= 0) || (height <= 0) ||
+			(numTimepoints <= 1)) return;
+
+		TrajectoryPrefetcher.prefetcher.execute(() -> {
+			try {
+				// Nearest timepoints first
+				for (int step = 1; step <= Math.min(timepointsAhead, numTimepoints -
+					1); step++)
+				{
+					final int t = (timepoint + step) % numTimepoints;
+					for (SourceAndConverter<?> sac : sources) {
+						final Source<?> source = sac.getSpimSource();
+						if (!source.isPresent(t)) continue;
+						final int level = MipmapTransforms.getBestMipMapLevel(
+							viewerTransform, source, t);
+						if (!TrajectoryPrefetcher.loadCells(sac, t, level,
+							viewerTransform, null, width, height, new HashSet<>(),
+							() -> gen != generation.get())) return;
+					}
+				}
+			}
+			catch (Exception e) {
+				logger.debug("Playback prefetch failed: " + e.getMessage());
+			}
+		});
+	}
+
+}
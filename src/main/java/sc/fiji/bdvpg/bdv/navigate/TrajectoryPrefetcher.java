@@ -0,0 +1,348 @@
+/*-
+ * #%L
+ * BigDataViewer-Playground
+ * %%
+ * Copyright (C) 2019 - 2025 Nicolas Chiaruttini, EPFL - Robert Haase, MPI CBG - Christian Tischer, EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.bdvpg.bdv.navigate;
+
+import bdv.util.BdvHandle;
+import bdv.util.MipmapTransforms;
+import bdv.util.volatiles.VolatileViews;
+import bdv.viewer.Source;
+import bdv.viewer.SourceAndConverter;
+import bdv.viewer.TransformListener;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.volatiles.CacheHints;
+import net.imglib2.cache.volatiles.LoadingStrategy;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.IntervalIndexer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sc.fiji.bdvpg.cache.SharedFetchQueues;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Loads in advance the cells which are about to become visible in a
+ * BigDataViewer window while the user navigates (scrolling through z, panning,
+ * zooming, rotating). The motion between the two last viewer transforms is
+ * extrapolated a few steps ahead, and the cells of the visible sources which
+ * intersect the predicted screen planes, at the mipmap level that bdv will
+ * display, are requested through the volatile image of each source - and
+ * thus end up in the global cache. Cells already visible are left to the
+ * renderer. The requests are not blocking: they are queued in the fetch queue
+ * of the source and loaded in parallel by its fetcher threads, after the
+ * cells requested by the renderer. The predictions are computed in a single
+ * low priority thread shared by all windows, and are dropped as soon as the
+ * viewer moves again. Only sources backed by a cached cell image (datasets,
+ * resampled sources) are prefetched.
+ *
+ * @author Nicolas Chiaruttini
+ */
+public class TrajectoryPrefetcher implements Runnable {
+
+	final static Logger logger = LoggerFactory.getLogger(
+		TrajectoryPrefetcher.class);
+
+	// Transforms further apart in time are not extrapolated: the motion stopped
+	final static long MAX_MS_BETWEEN_TRANSFORMS = 300;
+
+	// Bound on the number of cells requested per prediction and per source
+	final static int MAX_CELLS_PER_SOURCE = 256;
+
+	// Prefetch thread, shared by all windows and by the playback prefetchers
+	// (see PlaybackPrefetcher). Pending predictions are dropped,
+	// oldest first, when the queue is full
+	static final ThreadPoolExecutor prefetcher = new ThreadPoolExecutor(
+		1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(4), r -> {
+			Thread thread = new Thread(r, "Bdv Playground - prefetcher");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}, new ThreadPoolExecutor.DiscardOldestPolicy());
+
+	final BdvHandle bdvh;
+
+	final int stepsAhead;
+
+	private final AffineTransform3D previousTransform = new AffineTransform3D();
+
+	private long previousTime = -1;
+
+	// Incremented at each transform change: older predictions are dropped
+	private final AtomicLong generation = new AtomicLong();
+
+	final TransformListener<AffineTransform3D> transformListener =
+		this::transformChanged;
+
+	/**
+	 * @param bdvh window whose navigation is followed
+	 * @param stepsAhead number of viewer transform changes extrapolated
+	 */
+	public TrajectoryPrefetcher(BdvHandle bdvh, int stepsAhead) {
+		this.bdvh = bdvh;
+		this.stepsAhead = stepsAhead;
+	}
+
+	public TrajectoryPrefetcher(BdvHandle bdvh) {
+		this(bdvh, 3);
+	}
+
+	@Override
+	public void run() {
+		bdvh.getViewerPanel().transformListeners().add(transformListener);
+	}
+
+	public void removeFromBdv() {
+		bdvh.getViewerPanel().transformListeners().remove(transformListener);
+		generation.incrementAndGet();
+	}
+
+	public BdvHandle getBdvh() {
+		return bdvh;
+	}
+
+	synchronized void transformChanged(AffineTransform3D transform) {
+		final long gen = generation.incrementAndGet();
+		final long now = System.currentTimeMillis();
+		final boolean moving = (previousTime != -1) &&
+			(now - previousTime <= MAX_MS_BETWEEN_TRANSFORMS);
+		// Viewer motion since the last change: current = motion * previous
+		final AffineTransform3D motion = previousTransform.inverse();
+		motion.preConcatenate(transform);
+		previousTransform.set(transform);
+		previousTime = now;
+		if (!moving) return;
+
+		final AffineTransform3D current = transform.copy();
+		final int timepoint = bdvh.getViewerPanel().state().getCurrentTimepoint();
+		final List<SourceAndConverter<?>> sources = new ArrayList<>(bdvh
+			.getViewerPanel().state().getVisibleAndPresentSources());
+		final int width = bdvh.getViewerPanel().getDisplay().getWidth();
+		final int height = bdvh.getViewerPanel().getDisplay().getHeight();
+		if ((sources.isEmpty()) || (width <= 0) || (height <= 0)) return;
+
+		prefetcher.execute(() -> {
+			if (gen != generation.get()) return; // Moved again in the meantime
+			try {
+				prefetch(gen, current, motion, timepoint, sources, width, height);
+			}
+			catch (Exception e) {
+				logger.debug("Prefetch failed: " + e.getMessage());
+			}
+		});
+	}
+
+	private void prefetch(long gen, AffineTransform3D current,
+		AffineTransform3D motion, int timepoint,
+		List<SourceAndConverter<?>> sources, int width, int height)
+	{
+		// Cells already requested by this prediction, per source
+		final Map<Source<?>, Set<Long>> requested = new HashMap<>();
+		final AffineTransform3D predicted = current.copy();
+		for (int step = 0; step < stepsAhead; step++) {
+			predicted.preConcatenate(motion);
+			for (SourceAndConverter<?> sac : sources) {
+				final Source<?> source = sac.getSpimSource();
+				if (!source.isPresent(timepoint)) continue;
+				final int level = MipmapTransforms.getBestMipMapLevel(predicted,
+					source, timepoint);
+				if (!loadCells(sac, timepoint, level, predicted, current, width,
+					height, requested.computeIfAbsent(source, s -> new HashSet<>()),
+					() -> gen != generation.get())) return;
+			}
+		}
+	}
+
+	/**
+	 * Requests the cells of a source which intersect the screen plane of a
+	 * viewer transform, but not the one of an excluded viewer transform
+	 * (typically the current one, whose cells are loaded by the renderer). The
+	 * cells are only queued for loading, see {@link #volatileImage}.
+	 *
+	 * @param excluded viewer transform whose cells are skipped, can be null
+	 * @param requested indices of the cells already requested for this source,
+	 *          updated, at most {@link #MAX_CELLS_PER_SOURCE} cells are
+	 *          requested
+	 * @param outdated returns true if the request should be dropped
+	 * @return false if the request was dropped
+	 */
+	static boolean loadCells(SourceAndConverter<?> sac, int timepoint,
+		int level, AffineTransform3D viewerTransform, AffineTransform3D excluded,
+		int width, int height, Set<Long> requested, BooleanSupplier outdated)
+	{
+		final Source<?> source = sac.getSpimSource();
+		final RandomAccessibleInterval<?> rai = source.getSource(timepoint, level);
+		if (!(rai instanceof AbstractCellImg)) return true; // Can't be prefetched
+		final CellGrid grid = ((AbstractCellImg<?, ?, ?, ?>) rai).getCellGrid();
+		if (grid.numDimensions() != 3) return true;
+		final RandomAccessibleInterval<?> volatileImg = volatileImage(sac,
+			timepoint, level, rai);
+		if (volatileImg == null) return true; // Can't be loaded without blocking
+
+		final AffineTransform3D sourceToScreen = new AffineTransform3D();
+		source.getSourceTransform(timepoint, level, sourceToScreen);
+		final AffineTransform3D sourceToExcluded = (excluded == null) ? null
+			: sourceToScreen.copy().preConcatenate(excluded);
+		sourceToScreen.preConcatenate(viewerTransform);
+
+		final int[] cellDims = new int[3];
+		grid.cellDimensions(cellDims);
+		final long[] gridDims = grid.getGridDimensions();
+
+		// Source voxels bounding box of the screen plane
+		final double[] min = new double[] { Double.MAX_VALUE, Double.MAX_VALUE,
+			Double.MAX_VALUE };
+		final double[] max = new double[] { -Double.MAX_VALUE, -Double.MAX_VALUE,
+			-Double.MAX_VALUE };
+		final AffineTransform3D screenToSource = sourceToScreen.inverse();
+		final double[] corner = new double[3];
+		for (int i = 0; i < 8; i++) {
+			corner[0] = ((i & 1) == 0) ? 0 : width;
+			corner[1] = ((i & 2) == 0) ? 0 : height;
+			corner[2] = ((i & 4) == 0) ? -0.5 : 0.5;
+			screenToSource.apply(corner, corner);
+			for (int d = 0; d < 3; d++) {
+				min[d] = Math.min(min[d], corner[d]);
+				max[d] = Math.max(max[d], corner[d]);
+			}
+		}
+		final long[] cellMin = new long[3];
+		final long[] cellMax = new long[3];
+		for (int d = 0; d < 3; d++) {
+			cellMin[d] = Math.max(0, (long) Math.floor(min[d] / cellDims[d]));
+			cellMax[d] = Math.min(gridDims[d] - 1, (long) Math.floor(max[d] /
+				cellDims[d]));
+			if (cellMin[d] > cellMax[d]) return true; // Out of the source
+		}
+
+		final RandomAccess<?> voxels = volatileImg.randomAccess();
+		final long[] cellPosition = cellMin.clone();
+		final long[] cellOrigin = new long[3];
+		final double[] cellCenter = new double[3];
+		do {
+			for (int d = 0; d < 3; d++) {
+				cellCenter[d] = cellPosition[d] * cellDims[d] + (cellDims[d] - 1) /
+					2.0;
+			}
+			if ((isOnScreen(sourceToScreen, cellCenter, cellDims, width, height)) &&
+				((sourceToExcluded == null) || (!isOnScreen(sourceToExcluded,
+					cellCenter, cellDims, width, height))) && (requested.add(
+						IntervalIndexer.positionToIndex(cellPosition, gridDims))))
+			{
+				if (outdated.getAsBoolean()) return false;
+				if (requested.size() > MAX_CELLS_PER_SOURCE) return true;
+				for (int d = 0; d < 3; d++) {
+					cellOrigin[d] = cellPosition[d] * cellDims[d];
+				}
+				voxels.setPosition(cellOrigin);
+				voxels.get(); // Queues the cell if it is not cached
+			}
+		}
+		while (next(cellPosition, cellMin, cellMax));
+		return true;
+	}
+
+	/**
+	 * Volatile image through which the cells of an image of a source are
+	 * requested, without waiting for them to be loaded. The cached cell images
+	 * of derived sources (resampled sources) are wrapped with
+	 * {@link LoadingStrategy#BUDGETED} hints at the lowest priority of the
+	 * shared CPU queue: their cells are computed after the ones requested by the
+	 * renderer. For datasets, the volatile image of the source is used: its
+	 * requests go to the fetch queue of the dataset, and are demoted to prefetch
+	 * requests by bdv as soon as a new frame is rendered.
+	 *
+	 * @param rai image of the non volatile source at this timepoint and level
+	 * @return null if the source has no volatile image
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static RandomAccessibleInterval<?> volatileImage(SourceAndConverter<?> sac,
+		int timepoint, int level, RandomAccessibleInterval<?> rai)
+	{
+		if (rai instanceof CachedCellImg) {
+			// A new volatile view on the same cache: cheap, and cached cells are
+			// shared with the volatile source
+			return VolatileViews.wrapAsVolatile((RandomAccessibleInterval) rai,
+				SharedFetchQueues.getCPUQueue(), new CacheHints(
+					LoadingStrategy.BUDGETED, SharedFetchQueues.getPrefetchPriority(),
+					false));
+		}
+		if (sac.asVolatile() == null) return null;
+		final RandomAccessibleInterval<?> volatileImg = sac.asVolatile()
+			.getSpimSource().getSource(timepoint, level);
+		if ((volatileImg == null) || (volatileImg.numDimensions() != 3)) return null;
+		return volatileImg;
+	}
+
+	// Next position of the box, x first, false at the end of the box
+	private static boolean next(long[] position, long[] min, long[] max) {
+		for (int d = 0; d < position.length; d++) {
+			if (position[d] < max[d]) {
+				position[d]++;
+				return true;
+			}
+			position[d] = min[d];
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if a cell may intersect the screen plane (z = 0), tested
+	 *         conservatively on the extent of the cell along each screen axis
+	 */
+	static boolean isOnScreen(AffineTransform3D sourceToScreen,
+		double[] cellCenter, int[] cellDims, int width, int height)
+	{
+		final double[] center = new double[3];
+		sourceToScreen.apply(cellCenter, center);
+		final double[] extent = new double[3];
+		for (int i = 0; i < 3; i++) {
+			for (int d = 0; d < 3; d++) {
+				extent[i] += Math.abs(sourceToScreen.get(i, d)) * cellDims[d] / 2.0;
+			}
+		}
+		return (Math.abs(center[2]) <= extent[2] + 0.5) && (center[0] >=
+			-extent[0]) && (center[0] <= width + extent[0]) && (center[1] >=
+				-extent[1]) && (center[1] <= height + extent[1]);
+	}
+
+}
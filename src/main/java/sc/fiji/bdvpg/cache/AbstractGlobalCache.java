@@ -30,15 +30,18 @@
 package sc.fiji.bdvpg.cache;
 
 import net.imglib2.cache.Cache;
-import net.imglib2.img.basictypeaccess.ByteAccess;
-import net.imglib2.img.basictypeaccess.FloatAccess;
-import net.imglib2.img.basictypeaccess.IntAccess;
-import net.imglib2.img.basictypeaccess.ShortAccess;
-import net.imglib2.img.cell.Cell;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Timer;
 import java.util.concurrent.ExecutionException;
+import java.util.function.ObjLongConsumer;
 import java.util.function.Predicate;
 
 /**
@@ -48,17 +51,21 @@ import java.util.function.Predicate;
  * objects will be forwarded to the global cache of BigDataViewer-Playground.
  * BigDataViewer-Playground also attempts to override the cache of any
  * {@link bdv.ViewerImgLoader} in order to use the bigdataviewer playground
- * global cache. Two implementations are provided: - a Caffeine backed cache
- * {@link CaffeineGlobalCache} - and a LinkedHashMap cache
- * {@link BoundedLinkedHashMapGlobalCache} The {@link GlobalCacheBuilder} object
+ * global cache. Several implementations are provided: - a Caffeine backed
+ * cache {@link CaffeineGlobalCache} - a LinkedHashMap cache
+ * {@link BoundedLinkedHashMapGlobalCache} - a cache which keeps cells outside
+ * of the java heap {@link OffHeapGlobalCache} - a lock-striped cache
+ * {@link StripedGlobalCache} - and a cache which keeps the cells that are the
+ * most expensive to load {@link CostAwareGlobalCache} The
+ * {@link GlobalCacheBuilder} object
  * can be serialized to store the cache configuration The global caching allows
  * to bound the memory used when many sources are potentially accessed in a
  * random manner by the program. The reason to use many sources is if the user
  * wants to work on different spim data objects at the same time, work with
  * resampled sources, etc Global caching allow to bound the memory used at the
  * JVM level, instead of a per source level or per spimdata level. Each value of
- * the value is weighted by its memory footprint, assuming it is a {@link Cell}
- * object. If the value is not a Cell object, an error is logged. This allows to
+ * the value is weighted by its memory footprint, see {@link CacheWeighers}.
+ * This allows to
  * bound memory correctly even when sources have very different block size
  * (setting a fixed number of items maintained in cache would not be precise
  * enough).
@@ -72,15 +79,64 @@ abstract public class AbstractGlobalCache implements
 	final static private Logger logger = LoggerFactory.getLogger(
 		AbstractGlobalCache.class);
 
+	@SuppressWarnings("unchecked")
 	public static <K> Predicate<GlobalCacheKey> getCondition(Object source,
 		int timepoint, int level, Predicate<K> condition)
 	{
 		return (key) -> key.partialEquals(source, timepoint, level) && condition
-			.test((K) key.key.get());
+			.test((K) key.getKey());
+	}
+
+	/**
+	 * Keys held by the cache, grouped by source, timepoint and level.
+	 * Implementations keep it up to date each time a key is inserted or removed.
+	 */
+	final GlobalCacheKeyIndex index = new GlobalCacheKeyIndex();
+
+	final GlobalCacheMetrics metrics = new GlobalCacheMetrics();
+
+	/**
+	 * @return hit, miss, load and eviction counters of this cache
+	 */
+	public GlobalCacheMetrics getMetrics() {
+		return metrics;
 	}
 
 	abstract public void setMaxSize(long maxCacheSize);
 
+	/**
+	 * Periodic logger of the cache state, if logging is enabled
+	 */
+	protected Timer logTimer = null;
+
+	/**
+	 * Optional policy which adapts the size of the cache to the memory pressure
+	 */
+	private AdaptiveCacheBudget adaptiveBudget = null;
+
+	void setAdaptiveBudget(AdaptiveCacheBudget adaptiveBudget) {
+		this.adaptiveBudget = adaptiveBudget;
+	}
+
+	/**
+	 * @return the policy adapting the size of this cache, null if its size is
+	 *         fixed
+	 */
+	public AdaptiveCacheBudget getAdaptiveBudget() {
+		return adaptiveBudget;
+	}
+
+	/**
+	 * Releases this cache once it is not used anymore: all its entries are
+	 * invalidated, including the ones of the next tier, and its logger is
+	 * stopped
+	 */
+	public void dispose() {
+		if (logTimer != null) logTimer.cancel();
+		if (adaptiveBudget != null) adaptiveBudget.stop();
+		invalidateAll();
+	}
+
 	static public GlobalCacheKey getKey(Object source, int timepoint, int level,
 		Object key)
 	{
@@ -89,23 +145,66 @@ abstract public class AbstractGlobalCache implements
 
 	abstract public void put(GlobalCacheKey key, Object value);
 
+	/**
+	 * Puts a value together with the time it took to load it. Caches which do
+	 * not take the load cost into account ignore it.
+	 *
+	 * @param key key of the value
+	 * @param value value to put
+	 * @param loadCostInNanos time spent loading the value, negative if unknown
+	 */
+	public void put(GlobalCacheKey key, Object value, long loadCostInNanos) {
+		put(key, value);
+	}
+
 	@Override
 	abstract public Object get(GlobalCacheKey key) throws ExecutionException;
 
 	@Override
 	abstract public Object getIfPresent(GlobalCacheKey key);
 
+	/**
+	 * Writes the value of a key to the on-disk store of its source, if the
+	 * source is persisted (see {@link PersistentCellStore}). Values are written
+	 * in the background.
+	 *
+	 * @param key key of the value to write
+	 */
 	@Override
-	public void persist(GlobalCacheKey key) {}
+	public void persist(GlobalCacheKey key) {
+		if (!key.isPersistent()) return;
+		key.save(getIfPresent(key));
+	}
 
 	@Override
-	public void persistIf(Predicate<GlobalCacheKey> condition) {}
+	public void persistIf(Predicate<GlobalCacheKey> condition) {
+		final List<GlobalCacheKey> keys = new ArrayList<>();
+		forEachKey((key, weight) -> {
+			if (key.isPersistent() && condition.test(key)) keys.add(key);
+		});
+		for (GlobalCacheKey key : keys) {
+			key.save(getIfPresent(key));
+		}
+	}
 
 	@Override
-	public void persistAll() {}
+	public void persistAll() {
+		persistIf(key -> true);
+	}
 
 	@Override
-	abstract public void invalidate(GlobalCacheKey key);
+	public void invalidate(GlobalCacheKey key) {
+		purge(key);
+	}
+
+	/**
+	 * Removes the value of a key from this cache and from its next tier
+	 *
+	 * @param key key to remove
+	 * @return the memory released in this cache, in bytes, 0 if the key was
+	 *         not held
+	 */
+	abstract protected long purge(GlobalCacheKey key);
 
 	@Override
 	abstract public void invalidateIf(long parallelismThreshold,
@@ -114,39 +213,331 @@ abstract public class AbstractGlobalCache implements
 	@Override
 	abstract public void invalidateAll(long parallelismThreshold);
 
+	/**
+	 * Invalidates the entries of a source, at a given timepoint and level, which
+	 * fulfill a condition. Only the keys of this source, timepoint and level are
+	 * tested, thanks to the key index.
+	 *
+	 * @param source source of the keys
+	 * @param timepoint timepoint of the keys
+	 * @param level resolution level of the keys
+	 * @param condition condition to fulfill in order to be invalidated
+	 */
+	public void invalidateIf(Object source, int timepoint, int level,
+		Predicate<GlobalCacheKey> condition)
+	{
+		for (GlobalCacheKey key : index.keysOf(source, timepoint, level)) {
+			if (condition.test(key)) invalidate(key);
+		}
+		invalidateNextTierIf(key -> key.partialEquals(source, timepoint, level) &&
+			condition.test(key));
+	}
+
+	/**
+	 * Invalidates all entries of a source, whatever their timepoint or level.
+	 * Should be called when a source is not used anymore: its entries are
+	 * released right away instead of waiting for their eviction. The released
+	 * memory is counted in {@link GlobalCacheMetrics.Counters#getReclaimedBytes()}.
+	 * Entries of persisted sources are written to their store before being
+	 * released, see {@link PersistentCellStore}.
+	 *
+	 * @param source source to remove from the cache
+	 * @return the memory released, in bytes
+	 */
+	public long invalidateSource(Object source) {
+		long reclaimed = 0;
+		for (GlobalCacheKey key : index.keysOf(source)) {
+			if (key.isPersistent()) key.persist(getIfPresent(key));
+			reclaimed += purge(key);
+		}
+		invalidateNextTierIf(key -> key.getSource() == source);
+		metrics.recordPurge(reclaimed);
+		metrics.removeSource(source);
+		return reclaimed;
+	}
+
 	abstract public long getMaxSize();
 
+	/**
+	 * @param object cached value
+	 * @return the memory retained by the value, in bytes, see
+	 *         {@link CacheWeighers}
+	 */
 	static long getWeight(Object object) {
-		if (object instanceof Cell) {
-			Cell cell = ((Cell) object);
-			Object data = cell.getData();
+		return CacheWeighers.weigh(object);
+	}
 
-			if (ShortAccess.class.isInstance(data)) {
-				return 2 * cell.size();
-			}
-			else if (ByteAccess.class.isInstance(data)) {
-				return cell.size();
-			}
-			else if (FloatAccess.class.isInstance(data)) {
-				return 4 * cell.size();
+	abstract public long getEstimatedSize();
+
+	/**
+	 * Enumerates the keys held by this cache, together with their weight, from
+	 * the least recently used one to the most recently used one (as far as the
+	 * implementation can tell).
+	 *
+	 * @param consumer receives each key and its weight
+	 */
+	abstract protected void forEachKey(ObjLongConsumer<GlobalCacheKey> consumer);
+
+	/**
+	 * Copies the hottest entries of this cache into another cache, so that
+	 * the cache can be replaced at runtime without losing its working set. Only
+	 * the most recently used entries which fit in the budget of the target are
+	 * copied, and they are inserted from the coldest to the hottest in order to
+	 * preserve their recency in the target. This cache is not modified, apart
+	 * from the access order of the copied entries.
+	 *
+	 * @param target cache receiving the entries
+	 * @return the number of entries copied
+	 */
+	public int transferTo(AbstractGlobalCache target) {
+		final List<GlobalCacheKey> keys = new ArrayList<>();
+		final List<Long> weights = new ArrayList<>();
+		forEachKey((key, weight) -> {
+			keys.add(key);
+			weights.add(weight);
+		});
+
+		int first = keys.size();
+		long totalWeight = 0;
+		while ((first > 0) && (totalWeight + weights.get(first - 1) <= target
+			.getMaxSize()))
+		{
+			first--;
+			totalWeight += weights.get(first);
+		}
+
+		int nTransferred = 0;
+		for (int i = first; i < keys.size(); i++) {
+			final GlobalCacheKey key = keys.get(i);
+			if (key.getSource() == null) continue; // Source is gone
+			final Object value = getIfPresent(key);
+			if (value != null) {
+				target.put(key, value);
+				nTransferred++;
 			}
-			else if (IntAccess.class.isInstance(data)) {
-				return 4 * cell.size();
+		}
+		return nTransferred;
+	}
+
+	/**
+	 * Optional second level of the cache, which receives the values evicted
+	 * from this cache
+	 */
+	private volatile CacheTier nextTier = null;
+
+	public void setNextTier(CacheTier nextTier) {
+		this.nextTier = nextTier;
+	}
+
+	public CacheTier getNextTier() {
+		return nextTier;
+	}
+
+	/**
+	 * Should be called by implementations each time a value is evicted because
+	 * of the memory budget, in order to count it, to forward it to the next
+	 * tier and to write it to the on-disk store of its source, if any
+	 *
+	 * @param key key of the evicted value
+	 * @param value evicted value, not forwarded if null
+	 * @param weight weight of the evicted value
+	 */
+	protected void evicted(GlobalCacheKey key, Object value, long weight) {
+		metrics.recordEviction(key.getSource(), key.getLevel(), weight);
+		final CacheTier tier = nextTier;
+		if ((tier != null) && (value != null)) tier.put(key, value);
+		key.persist(value);
+	}
+
+	protected Object getFromNextTier(GlobalCacheKey key) {
+		final CacheTier tier = nextTier;
+		return (tier == null) ? null : tier.getIfPresent(key);
+	}
+
+	protected void invalidateNextTier(GlobalCacheKey key) {
+		final CacheTier tier = nextTier;
+		if (tier != null) tier.invalidate(key);
+	}
+
+	protected void invalidateNextTierIf(Predicate<GlobalCacheKey> condition) {
+		final CacheTier tier = nextTier;
+		if (tier != null) tier.invalidateIf(condition);
+	}
+
+	protected void invalidateNextTierAll() {
+		final CacheTier tier = nextTier;
+		if (tier != null) tier.invalidateAll();
+	}
+
+	/**
+	 * Sources whose entries are evicted first, weakly referenced. Replaced as a
+	 * whole, never modified.
+	 */
+	private volatile List<WeakReference<Object>> demotedSources = Collections
+		.emptyList();
+
+	/**
+	 * Sets the sources whose entries should be evicted before any other entry,
+	 * typically because they are not displayed anymore. Their entries are kept
+	 * as long as there is room for them. The sources are the objects used as
+	 * source in the keys of this cache (see {@link GlobalCacheKey#getSource()}).
+	 *
+	 * @param sources demoted sources, replacing the previous ones
+	 */
+	public void setDemotedSources(Collection<?> sources) {
+		final List<WeakReference<Object>> references = new ArrayList<>(sources
+			.size());
+		for (Object source : sources) {
+			references.add(new WeakReference<>(source));
+		}
+		demotedSources = references;
+	}
+
+	/**
+	 * @param source source of cache keys
+	 * @return true if the entries of this source are evicted first
+	 */
+	public boolean isDemoted(Object source) {
+		for (WeakReference<Object> reference : demotedSources) {
+			if (reference.get() == source) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Timepoint displayed during a time-lapse playback, null if there is no
+	 * playback
+	 */
+	private volatile PlaybackWindow playbackWindow = null;
+
+	/**
+	 * Sets the timepoint currently displayed during a time-lapse playback. Until
+	 * {@link #clearPlaybackWindow()} is called, when a value does not fit in the
+	 * budget, the entries the farthest in time from the current timepoint are
+	 * evicted first, after the ones of demoted sources (see
+	 * {@link #setDemotedSources(Collection)}). The distance is counted in the
+	 * playback order: the timepoint just shown is the farthest one, since it
+	 * is displayed again only after all the others. The current timepoint and
+	 * the next ones are never evicted this way. Keys which are not specific to
+	 * a timepoint (negative timepoint) are not affected.
+	 *
+	 * @param timepoint timepoint currently displayed
+	 * @param timepointsAhead number of timepoints after the current one which
+	 *          are kept in priority
+	 * @param numTimepoints number of timepoints of the playback, which loops
+	 *          back to the first timepoint
+	 */
+	public void setPlaybackWindow(int timepoint, int timepointsAhead,
+		int numTimepoints)
+	{
+		final PlaybackWindow current = playbackWindow;
+		if ((current != null) && (current.timepoint == timepoint) &&
+			(current.timepointsAhead == timepointsAhead) &&
+			(current.numTimepoints == numTimepoints)) return;
+		playbackWindow = new PlaybackWindow(timepoint, timepointsAhead,
+			numTimepoints);
+	}
+
+	/**
+	 * Stops evicting entries by temporal distance, see
+	 * {@link #setPlaybackWindow(int, int, int)}
+	 */
+	public void clearPlaybackWindow() {
+		playbackWindow = null;
+	}
+
+	/**
+	 * Should be called by implementations before inserting a value, outside of
+	 * their locks: if the value does not fit in the budget, entries of demoted
+	 * sources, then, during a playback, entries the farthest in time from the
+	 * current timepoint, are evicted to make room for it, before the
+	 * implementation evicts anything else
+	 *
+	 * @param value value about to be inserted
+	 */
+	protected void evictDemotedIfNecessary(Object value) {
+		final List<WeakReference<Object>> sources = demotedSources;
+		final PlaybackWindow window = playbackWindow;
+		if ((sources.isEmpty()) && (window == null)) return;
+		long excess = getEstimatedSize() + getWeight(value) - getMaxSize();
+		if (excess <= 0) return;
+		for (WeakReference<Object> reference : sources) {
+			final Object source = reference.get();
+			if (source == null) continue;
+			for (GlobalCacheKey key : index.keysOf(source)) {
+				if (excess <= 0) return;
+				excess -= evict(key);
 			}
-			else {
-				logger.info("Unknown data class of cell object " + data.getClass());
-				return cell.size();
+		}
+		if (window != null) evictFarthestInTime(window, excess);
+	}
+
+	/**
+	 * Walks the timepoints held, farthest in time first, and evicts their keys
+	 * until the excess is reclaimed. Only the timepoints are sorted, and no key
+	 * is copied: entries put or evicted concurrently may or may not be seen.
+	 */
+	private void evictFarthestInTime(PlaybackWindow window, long excess) {
+		final List<Integer> timepoints = index.timepoints();
+		timepoints.removeIf(window::isKept);
+		timepoints.sort(Comparator.comparingInt((Integer t) -> window.distance(t))
+			.reversed());
+		for (int t : timepoints) {
+			for (GlobalCacheKey key : index.keysAt(t)) {
+				if (excess <= 0) return;
+				excess -= evict(key);
 			}
+		}
+	}
 
+	/**
+	 * Evicts an entry, and forwards it to the next tier or to the on-disk
+	 * store
+	 *
+	 * @return the weight of the entry evicted, 0 if it was not present
+	 */
+	private long evict(GlobalCacheKey key) {
+		// Only fetched if it has to be forwarded
+		final Object evictedValue = ((nextTier != null) || key.isPersistent())
+			? getIfPresent(key) : null;
+		final long weight = purge(key);
+		if (weight > 0) evicted(key, evictedValue, weight);
+		return weight;
+	}
+
+	private static final class PlaybackWindow {
+
+		final int timepoint, timepointsAhead, numTimepoints;
+
+		PlaybackWindow(int timepoint, int timepointsAhead, int numTimepoints) {
+			this.timepoint = timepoint;
+			this.timepointsAhead = timepointsAhead;
+			this.numTimepoints = numTimepoints;
+		}
+
+		// Number of timepoints displayed before t is displayed again
+		int distance(int t) {
+			if (numTimepoints <= 0) return Math.abs(t - timepoint);
+			return Math.floorMod(t - timepoint, numTimepoints);
 		}
-		else {
-			logger.info("Unknown class of cached object " + object.getClass());
-			return 1;
+
+		boolean isKept(int t) {
+			if (t < 0) return true; // Not specific to a timepoint
+			if ((numTimepoints <= 0) && (t < timepoint)) return false;
+			return distance(t) <= timepointsAhead;
 		}
 	}
 
-	abstract public long getEstimatedSize();
-
 	public abstract <V> void touch(GlobalCacheKey key, V value);
 
+	/**
+	 * Marks a key as recently used, if it is held by this cache. The next tier
+	 * is not looked up and the value is not copied. The key may be a probe key
+	 * (see {@link GlobalCacheKey#probe()}): it is never stored.
+	 *
+	 * @param key key to refresh
+	 * @return true if the key is held by this cache
+	 */
+	public abstract boolean refresh(GlobalCacheKey key);
+
 }
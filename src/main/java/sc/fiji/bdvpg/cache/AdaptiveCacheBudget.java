@@ -0,0 +1,246 @@
+/*-
+ * #%L
+ * BigDataViewer-Playground
+ * %%
+ * Copyright (C) 2019 - 2025 Nicolas Chiaruttini, EPFL - Robert Haase, MPI CBG - Christian Tischer, EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.bdvpg.cache;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Adapts the budget of a global cache to the memory pressure. The heap used
+ * after the last garbage collection, of any kind, as reported by the garbage
+ * collection notifications of the JVM, tells how much memory the rest of the
+ * application really needs. The cache budget is shrunk right away when the
+ * heap occupancy after GC exceeds the target occupancy, and grows back
+ * progressively, up to the configured budget, when there is headroom again.
+ * The budget is checked after each collection which leaves the heap above the
+ * target occupancy, and periodically. No JVM-wide setting (such as memory pool
+ * thresholds) is changed. Only caches whose values live on the heap are
+ * adapted.
+ *
+ * @author Nicolas Chiaruttini
+ */
+public class AdaptiveCacheBudget {
+
+	final static Logger logger = LoggerFactory.getLogger(
+		AdaptiveCacheBudget.class);
+
+	final static double defaultTargetHeapOccupancy = 0.8;
+
+	final static int defaultMsBetweenChecks = 1000;
+
+	// The cache is never shrunk below this ratio of its maximal budget
+	final static double minBudgetRatio = 0.05;
+
+	// Maximal growth of the budget per check, as a ratio of its maximal budget
+	final static double growthRatioPerCheck = 0.1;
+
+	final AbstractGlobalCache cache;
+
+	final double targetHeapOccupancy;
+
+	volatile long maxBudget;
+
+	final Timer timer;
+
+	final NotificationListener gcListener;
+
+	// Garbage collectors the listener is registered to
+	final List<NotificationEmitter> collectors = new ArrayList<>();
+
+	// Names of the heap memory pools
+	final Set<String> heapPools = new HashSet<>();
+
+	// Heap used after the last collection, -1 before the first one
+	private volatile long usedAfterLastGC = -1;
+
+	AdaptiveCacheBudget(AbstractGlobalCache cache, long maxBudget,
+		double targetHeapOccupancy, int msBetweenChecks)
+	{
+		this.cache = cache;
+		this.maxBudget = maxBudget;
+		this.targetHeapOccupancy = targetHeapOccupancy;
+
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) heapPools.add(pool.getName());
+		}
+
+		// Fast path: notification after each collection
+		gcListener = (Notification notification, Object handback) -> {
+			if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION
+				.equals(notification.getType())) return;
+			long used = heapUsedAfter(GarbageCollectionNotificationInfo.from(
+				(CompositeData) notification.getUserData()));
+			usedAfterLastGC = used;
+			if (used > targetHeapOccupancy * maxHeap()) adjust();
+		};
+		for (GarbageCollectorMXBean collector : ManagementFactory
+			.getGarbageCollectorMXBeans())
+		{
+			if (collector instanceof NotificationEmitter) {
+				((NotificationEmitter) collector).addNotificationListener(gcListener,
+					null, null);
+				collectors.add((NotificationEmitter) collector);
+			}
+		}
+
+		// Slow path: periodic check, which also grows the budget back
+		timer = new Timer("Bdv Playground - adaptive cache budget", true);
+		timer.schedule(new TimerTask() {
+
+			@Override
+			public void run() {
+				adjust();
+			}
+		}, msBetweenChecks, msBetweenChecks);
+	}
+
+	/**
+	 * Attaches an adaptive budget to a cache, unless its values are not stored
+	 * on the heap
+	 *
+	 * @param cache cache to adapt
+	 * @param maxBudget maximal budget of the cache, in bytes
+	 * @return the adaptive budget, or null if the cache can't be adapted
+	 */
+	static AdaptiveCacheBudget attach(AbstractGlobalCache cache,
+		long maxBudget)
+	{
+		if (cache instanceof OffHeapGlobalCache) {
+			logger.info(
+				"The off-heap cache does not use the heap: its budget is not adapted");
+			return null;
+		}
+		AdaptiveCacheBudget budget = new AdaptiveCacheBudget(cache, maxBudget,
+			defaultTargetHeapOccupancy, defaultMsBetweenChecks);
+		cache.setAdaptiveBudget(budget);
+		return budget;
+	}
+
+	/**
+	 * @param maxBudget new maximal budget of the cache, in bytes
+	 */
+	public void setMaxBudget(long maxBudget) {
+		this.maxBudget = maxBudget;
+		adjust();
+	}
+
+	public long getMaxBudget() {
+		return maxBudget;
+	}
+
+	/**
+	 * Computes the budget left to the cache by the rest of the application, and
+	 * applies it: immediately if the cache should shrink, progressively if it
+	 * can grow
+	 */
+	synchronized void adjust() {
+		long usedAfterGC = usedAfterLastGC;
+		if (usedAfterGC < 0) return; // Unknown, no collection yet
+		long otherUsage = Math.max(0, usedAfterGC - cache.getEstimatedSize());
+		long available = (long) (targetHeapOccupancy * maxHeap()) - otherUsage;
+		long target = Math.min(maxBudget, Math.max((long) (minBudgetRatio *
+			maxBudget), available));
+		long current = cache.getMaxSize();
+		if (target < current) {
+			logger.debug("Memory pressure: cache budget shrunk from " + (current /
+				(1024 * 1024)) + " Mb to " + (target / (1024 * 1024)) + " Mb");
+			cache.setMaxSize(target);
+		}
+		else if (target > current) {
+			cache.setMaxSize(Math.min(target, current + (long) (growthRatioPerCheck *
+				maxBudget)));
+		}
+	}
+
+	/**
+	 * @return the heap used after a collection, summed over the heap pools.
+	 *         After a young collection, it includes the garbage of the old
+	 *         generation which has not been collected yet.
+	 */
+	long heapUsedAfter(GarbageCollectionNotificationInfo info) {
+		long used = 0;
+		for (Map.Entry<String, MemoryUsage> pool : info.getGcInfo()
+			.getMemoryUsageAfterGc().entrySet())
+		{
+			if (heapPools.contains(pool.getKey())) used += pool.getValue().getUsed();
+		}
+		return used;
+	}
+
+	static long maxHeap() {
+		long maxHeap = Runtime.getRuntime().maxMemory();
+		if (maxHeap != Long.MAX_VALUE) return maxHeap;
+		MemoryUsage heap = ManagementFactory.getMemoryMXBean()
+			.getHeapMemoryUsage();
+		return heap.getMax() > 0 ? heap.getMax() : heap.getCommitted();
+	}
+
+	/**
+	 * Stops adapting the budget
+	 */
+	public void stop() {
+		timer.cancel();
+		for (NotificationEmitter collector : collectors) {
+			try {
+				collector.removeNotificationListener(gcListener);
+			}
+			catch (ListenerNotFoundException e) {
+				logger.debug("Garbage collection listener already removed");
+			}
+		}
+		collectors.clear();
+	}
+
+	@Override
+	public String toString() {
+		return "Adaptive budget: " + (cache.getMaxSize() / (1024 * 1024)) +
+			" Mb out of " + (maxBudget / (1024 * 1024)) + " Mb";
+	}
+
+}
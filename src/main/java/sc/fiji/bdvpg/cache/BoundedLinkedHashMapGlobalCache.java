@@ -33,13 +33,18 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ObjLongConsumer;
 import java.util.function.Predicate;
 
 public class BoundedLinkedHashMapGlobalCache extends AbstractGlobalCache {
@@ -53,7 +58,7 @@ public class BoundedLinkedHashMapGlobalCache extends AbstractGlobalCache {
 		int msBetweenLogs)
 	{
 
-		cache = new SoftRefs(iniSize, maxCacheSize);
+		cache = new SoftRefs(iniSize, maxCacheSize, this);
 
 		if (log) {
 			TimerTask periodicLogger = new TimerTask() {
@@ -64,45 +69,74 @@ public class BoundedLinkedHashMapGlobalCache extends AbstractGlobalCache {
 				}
 			};
 
-			Timer time = new Timer(); // Instantiate Timer Object
-			time.schedule(periodicLogger, 0, msBetweenLogs);
+			logTimer = new Timer(); // Instantiate Timer Object
+			logTimer.schedule(periodicLogger, 0, msBetweenLogs);
 		}
 
 	}
 
 	public void setMaxSize(long maxCacheSize) {
-		cache.setMaxCost(maxCacheSize);
+		forward(cache.setMaxCost(maxCacheSize));
 	}
 
 	public void put(GlobalCacheKey key, Object value) {
-		cache.touch(key, value);
+		evictDemotedIfNecessary(value);
+		forward(cache.touch(key, value));
+	}
+
+	// Called outside of the lock of the map
+	private void forward(List<Evicted> evictedEntries) {
+		evictedEntries.forEach(e -> evicted(e.key, e.value, e.cost));
 	}
 
 	@Override
 	public Object get(GlobalCacheKey key) throws ExecutionException {
-		return cache.get(key);
+		return getIfPresent(key);
 	}
 
 	@Override
 	public Object getIfPresent(GlobalCacheKey key) {
-		return cache.get(key);
+		final SoftReference<Object> ref;
+		synchronized (cache) { // access ordered: get modifies the map
+			ref = cache.get(key);
+		}
+		final Object value = (ref == null) ? null : ref.get();
+		return (value == null) ? getFromNextTier(key) : value;
 	}
 
 	@Override
-	public void invalidate(GlobalCacheKey key) {
-		cache.remove(key);
+	protected long purge(GlobalCacheKey key) {
+		Long removedCost;
+		synchronized (cache) {
+			removedCost = cache.cost.remove(key);
+			if (removedCost != null) cache.totalWeight.addAndGet(-removedCost);
+			cache.remove(key);
+			index.remove(key);
+		}
+		invalidateNextTier(key);
+		return (removedCost == null) ? 0 : removedCost;
 	}
 
 	@Override
 	public void invalidateIf(long parallelismThreshold,
 		Predicate<GlobalCacheKey> condition)
 	{
-		cache.keySet().removeIf(condition);
+		synchronized (cache) {
+			cache.keySet().removeIf(key -> {
+				if (!condition.test(key)) return false;
+				Long removedCost = cache.cost.remove(key);
+				if (removedCost != null) cache.totalWeight.addAndGet(-removedCost);
+				index.remove(key);
+				return true;
+			});
+		}
+		invalidateNextTierIf(condition);
 	}
 
 	@Override
 	public void invalidateAll(long parallelismThreshold) {
 		cache.clear();
+		invalidateNextTierAll();
 	}
 
 	public long getMaxSize() {
@@ -113,9 +147,45 @@ public class BoundedLinkedHashMapGlobalCache extends AbstractGlobalCache {
 		return cache.getCost();
 	}
 
+	@Override
+	protected void forEachKey(ObjLongConsumer<GlobalCacheKey> consumer) {
+		synchronized (cache) {
+			cache.forEach((key, ref) -> {
+				if (ref.get() != null) consumer.accept(key, cache.cost.get(key));
+			});
+		}
+	}
+
+	@Override
+	public boolean refresh(GlobalCacheKey key) {
+		synchronized (cache) { // access ordered: get modifies the map
+			final SoftReference<Object> ref = cache.get(key);
+			return (ref != null) && (ref.get() != null);
+		}
+	}
+
 	@Override
 	public <V> void touch(GlobalCacheKey key, V value) {
-		cache.touch(key, value);
+		forward(cache.touch(key, value));
+	}
+
+	/**
+	 * Entry evicted under the lock of the map, handed over to the next tier once
+	 * the lock is released
+	 */
+	static class Evicted {
+
+		final GlobalCacheKey key;
+
+		final Object value;
+
+		final long cost;
+
+		Evicted(GlobalCacheKey key, Object value, long cost) {
+			this.key = key;
+			this.value = value;
+			this.cost = cost;
+		}
 	}
 
 	static class SoftRefs extends
@@ -130,13 +200,52 @@ public class BoundedLinkedHashMapGlobalCache extends AbstractGlobalCache {
 
 		HashMap<GlobalCacheKey, Long> cost = new HashMap<>();
 
-		public SoftRefs(final int iniSize, final long maxCost) {
+		final GlobalCacheKeyIndex index;
+
+		// Entries evicted by the current touch or setMaxCost call
+		private List<Evicted> evictedEntries = new ArrayList<>();
+
+		public SoftRefs(final int iniSize, final long maxCost,
+			final AbstractGlobalCache owner)
+		{
 			super(iniSize, 0.75f, true);
 			this.maxCost = maxCost;
+			this.index = owner.index;
 		}
 
-		public void setMaxCost(long maxCost) {
+		/**
+		 * Changes the budget, and evicts the least recently used entries right
+		 * away if the budget is exceeded
+		 *
+		 * @param maxCost new budget
+		 * @return the entries evicted, to be forwarded outside of the lock
+		 */
+		public synchronized List<Evicted> setMaxCost(long maxCost) {
 			this.maxCost = maxCost;
+			Iterator<Map.Entry<GlobalCacheKey, SoftReference<Object>>> it =
+				entrySet().iterator();
+			while ((totalWeight.get() > maxCost) && it.hasNext()) {
+				Map.Entry<GlobalCacheKey, SoftReference<Object>> eldest = it.next();
+				evict(eldest);
+				it.remove();
+			}
+			return drainEvicted();
+		}
+
+		private void evict(Map.Entry<GlobalCacheKey, SoftReference<Object>> eldest) {
+			long evictedCost = cost.remove(eldest.getKey());
+			totalWeight.addAndGet(-evictedCost);
+			index.remove(eldest.getKey());
+			evictedEntries.add(new Evicted(eldest.getKey(), eldest.getValue().get(),
+				evictedCost));
+			eldest.getValue().clear();
+		}
+
+		private List<Evicted> drainEvicted() {
+			if (evictedEntries.isEmpty()) return Collections.emptyList();
+			List<Evicted> drained = evictedEntries;
+			evictedEntries = new ArrayList<>();
+			return drained;
 		}
 
 		public long getCost() {
@@ -152,15 +261,17 @@ public class BoundedLinkedHashMapGlobalCache extends AbstractGlobalCache {
 			final Map.Entry<GlobalCacheKey, SoftReference<Object>> eldest)
 		{
 			if (totalWeight.get() > maxCost) {
-				totalWeight.addAndGet(-cost.get(eldest.getKey()));
-				cost.remove(eldest.getKey());
-				eldest.getValue().clear();
+				evict(eldest);
 				return true;
 			}
 			else return false;
 		}
 
-		synchronized public void touch(final GlobalCacheKey key,
+		/**
+		 * @return the entries evicted to make room for the value, to be forwarded
+		 *         outside of the lock
+		 */
+		synchronized public List<Evicted> touch(final GlobalCacheKey key,
 			final Object value)
 		{
 			final SoftReference<Object> ref = get(key);
@@ -168,11 +279,13 @@ public class BoundedLinkedHashMapGlobalCache extends AbstractGlobalCache {
 				long costValue = getWeight(value);
 				totalWeight.addAndGet(costValue);
 				cost.put(key, costValue);
+				index.add(key);
 				put(key, new SoftReference<>(value));
 			}
 			else if (ref.get() == null) {
 				put(key, new SoftReference<>(value));
 			}
+			return drainEvicted();
 		}
 
 		@Override
@@ -182,6 +295,7 @@ public class BoundedLinkedHashMapGlobalCache extends AbstractGlobalCache {
 			}
 			totalWeight.set(0);
 			cost.clear();
+			index.clear();
 			super.clear();
 		}
 	}
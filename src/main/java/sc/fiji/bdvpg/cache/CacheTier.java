@@ -0,0 +1,76 @@
+/*-
+ * #%L
+ * BigDataViewer-Playground
+ * %%
+ * Copyright (C) 2019 - 2025 Nicolas Chiaruttini, EPFL - Robert Haase, MPI CBG - Christian Tischer, EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.bdvpg.cache;
+
+import java.util.function.Predicate;
+
+/**
+ * Second level of the global cache: values evicted from an
+ * {@link AbstractGlobalCache} are handed over to its tier (see
+ * {@link AbstractGlobalCache#setNextTier(CacheTier)}), and the tier is checked
+ * before any value is loaded again. A tier is free to drop values it can't
+ * store.
+ *
+ * @author Nicolas Chiaruttini
+ */
+public interface CacheTier {
+
+	/**
+	 * Stores a value evicted from the upper level. Nothing is done if the key is
+	 * already present.
+	 *
+	 * @param key key of the value
+	 * @param value value evicted
+	 */
+	void put(GlobalCacheKey key, Object value);
+
+	/**
+	 * @param key key of the value
+	 * @return the value, rebuilt from the tier, or null if not present
+	 */
+	Object getIfPresent(GlobalCacheKey key);
+
+	void invalidate(GlobalCacheKey key);
+
+	void invalidateIf(Predicate<GlobalCacheKey> condition);
+
+	void invalidateAll();
+
+	/**
+	 * @return the number of bytes currently used by the tier
+	 */
+	long getEstimatedSize();
+
+	/**
+	 * @return the maximal number of bytes the tier can use
+	 */
+	long getMaxSize();
+
+}
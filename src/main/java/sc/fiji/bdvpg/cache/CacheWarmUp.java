@@ -0,0 +1,304 @@
+/*-
+ * #%L
+ * BigDataViewer-Playground
+ * %%
+ * Copyright (C) 2019 - 2025 Nicolas Chiaruttini, EPFL - Robert Haase, MPI CBG - Christian Tischer, EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.bdvpg.cache;
+
+import bdv.export.ProgressWriter;
+import bdv.export.ProgressWriterConsole;
+import bdv.viewer.Source;
+import bdv.viewer.SourceAndConverter;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Preloads into the global cache the cells of sources which intersect a
+ * region of the global space, at given resolution levels and over a range of
+ * timepoints, for instance before recording a movie. Cells are loaded in
+ * parallel, with as many threads as the I/O fetcher queue (see
+ * {@link SharedFetchQueues}), through the cache of each source. Coarser levels
+ * are loaded first. Cells are submitted a few at a time, as loading threads
+ * become available, and no more cells are submitted once the cells loaded
+ * reach {@link #BUDGET_RATIO} of the cache budget, since loading more would
+ * evict the cells just loaded. Only sources backed by a cached cell image
+ * (datasets, resampled sources) can be warmed up.
+ *
+ * @author Nicolas Chiaruttini
+ */
+public class CacheWarmUp implements Callable<Integer> {
+
+	final static Logger logger = LoggerFactory.getLogger(CacheWarmUp.class);
+
+	/**
+	 * Fraction of the cache budget that a warm-up can fill
+	 */
+	public final static double BUDGET_RATIO = 0.8;
+
+	final AbstractGlobalCache cache;
+
+	final List<SourceAndConverter<?>> sacs;
+
+	final RealInterval interval;
+
+	final int[] levels;
+
+	final int timepointBegin, timepointEnd;
+
+	final ProgressWriter progress;
+
+	/**
+	 * @param cache global cache, used for its budget
+	 * @param sacs sources to warm up
+	 * @param interval region to load, in global coordinates
+	 * @param levels resolution levels to load, levels missing in a source are
+	 *          skipped
+	 * @param timepointBegin first timepoint to load
+	 * @param timepointEnd last timepoint to load, excluded
+	 * @param progress progress and messages of the warm-up, the console if null
+	 */
+	public CacheWarmUp(AbstractGlobalCache cache,
+		List<SourceAndConverter<?>> sacs, RealInterval interval, int[] levels,
+		int timepointBegin, int timepointEnd, ProgressWriter progress)
+	{
+		this.cache = cache;
+		this.sacs = sacs;
+		this.interval = interval;
+		this.levels = levels.clone();
+		Arrays.sort(this.levels);
+		this.timepointBegin = timepointBegin;
+		this.timepointEnd = timepointEnd;
+		this.progress = (progress == null) ? new ProgressWriterConsole()
+			: progress;
+	}
+
+	/**
+	 * @return the number of cells warmed up, already cached or loaded
+	 */
+	@Override
+	public Integer call() throws InterruptedException {
+		final List<CellBox> boxes = new ArrayList<>();
+		for (int i = levels.length - 1; i >= 0; i--) { // Coarser levels first
+			for (int t = timepointBegin; t < timepointEnd; t++) {
+				for (SourceAndConverter<?> sac : sacs) {
+					// The non volatile source shares its cache with the volatile one
+					addBox(sac.getSpimSource(), t, levels[i], boxes);
+				}
+			}
+		}
+		final long nCells = boxes.stream().mapToLong(CellBox::size).sum();
+		if (nCells == 0) {
+			progress.out().println("No cell to warm up");
+			progress.setProgress(1.0);
+			return 0;
+		}
+		progress.out().println("Warming up " + nCells + " cells");
+
+		final long maxBytes = (long) (cache.getMaxSize() * BUDGET_RATIO);
+		final AtomicLong loadedBytes = new AtomicLong();
+		final AtomicBoolean overBudget = new AtomicBoolean(false);
+		final AtomicInteger done = new AtomicInteger();
+		final long progressStep = Math.max(1, nCells / 100);
+
+		final int nThreads = SharedFetchQueues.getIOThreads();
+		final ExecutorService executor = Executors.newFixedThreadPool(nThreads,
+			r -> {
+				Thread thread = new Thread(r, "Bdv Playground - cache warm-up");
+				thread.setDaemon(true);
+				return thread;
+			});
+		// Cells are submitted as threads become available: no cell is requested
+		// once the budget is reached
+		final int maxInFlight = 2 * nThreads;
+		final Semaphore inFlight = new Semaphore(maxInFlight);
+		try {
+			final long[] cellPosition = new long[3];
+			submission: for (CellBox box : boxes) {
+				for (long z = box.cellMin[2]; z <= box.cellMax[2]; z++) {
+					for (long y = box.cellMin[1]; y <= box.cellMax[1]; y++) {
+						for (long x = box.cellMin[0]; x <= box.cellMax[0]; x++) {
+							inFlight.acquire();
+							if (overBudget.get()) {
+								inFlight.release();
+								break submission;
+							}
+							cellPosition[0] = x;
+							cellPosition[1] = y;
+							cellPosition[2] = z;
+							final CellRequest request = new CellRequest(box.img,
+								cellPosition.clone());
+							executor.execute(() -> {
+								try {
+									long weight = CacheWeighers.weigh(request.load());
+									if (loadedBytes.addAndGet(weight) > maxBytes) overBudget
+										.set(true);
+									int n = done.incrementAndGet();
+									if (n % progressStep == 0) progress.setProgress((double) n /
+										nCells);
+								}
+								catch (Exception e) {
+									logger.warn("Could not warm up a cell: " + e.getMessage());
+								}
+								finally {
+									inFlight.release();
+								}
+							});
+						}
+					}
+				}
+			}
+			inFlight.acquire(maxInFlight); // Waits for the cells in flight
+		}
+		finally {
+			executor.shutdownNow();
+		}
+
+		if (overBudget.get()) {
+			progress.err().println("Warm-up stopped after " + done.get() + " / " +
+				nCells + " cells: the cache budget (" + (cache.getMaxSize() /
+					(1024 * 1024)) + " Mb) is too small for the region");
+		}
+		else {
+			progress.out().println("Warm-up done: " + done.get() + " cells, " +
+				(loadedBytes.get() / (1024 * 1024)) + " Mb");
+		}
+		progress.setProgress(1.0);
+		return done.get();
+	}
+
+	// Adds the box of the cells of a source which intersect the region
+	private void addBox(Source<?> source, int t, int level,
+		List<CellBox> boxes)
+	{
+		if ((level < 0) || (level >= source.getNumMipmapLevels()) || (!source
+			.isPresent(t))) return;
+		final RandomAccessibleInterval<?> rai = source.getSource(t, level);
+		if (!(rai instanceof AbstractCellImg)) {
+			logger.warn("Source " + source.getName() +
+				" is not cached by cells, it can't be warmed up");
+			return;
+		}
+		final AbstractCellImg<?, ?, ?, ?> img = (AbstractCellImg<?, ?, ?, ?>) rai;
+		final CellGrid grid = img.getCellGrid();
+		if (grid.numDimensions() != 3) return;
+
+		// Bounding box of the region in voxel coordinates
+		final AffineTransform3D globalToSource = new AffineTransform3D();
+		source.getSourceTransform(t, level, globalToSource);
+		globalToSource.set(globalToSource.inverse());
+		final double[] min = new double[] { Double.MAX_VALUE, Double.MAX_VALUE,
+			Double.MAX_VALUE };
+		final double[] max = new double[] { -Double.MAX_VALUE, -Double.MAX_VALUE,
+			-Double.MAX_VALUE };
+		final double[] corner = new double[3];
+		for (int i = 0; i < 8; i++) {
+			for (int d = 0; d < 3; d++) {
+				corner[d] = ((i & (1 << d)) == 0) ? interval.realMin(d) : interval
+					.realMax(d);
+			}
+			globalToSource.apply(corner, corner);
+			for (int d = 0; d < 3; d++) {
+				min[d] = Math.min(min[d], corner[d]);
+				max[d] = Math.max(max[d], corner[d]);
+			}
+		}
+
+		final int[] cellDims = new int[3];
+		grid.cellDimensions(cellDims);
+		final long[] gridDims = grid.getGridDimensions();
+		final long[] cellMin = new long[3];
+		final long[] cellMax = new long[3];
+		for (int d = 0; d < 3; d++) {
+			// A voxel covers [x-0.5, x+0.5]
+			cellMin[d] = Math.max(0, (long) Math.floor((min[d] + 0.5) /
+				cellDims[d]));
+			cellMax[d] = Math.min(gridDims[d] - 1, (long) Math.floor((max[d] +
+				0.5) / cellDims[d]));
+			if (cellMin[d] > cellMax[d]) return; // Region outside of the source
+		}
+		boxes.add(new CellBox(img, cellMin, cellMax));
+	}
+
+	/**
+	 * Cells of an image to warm up, from cellMin to cellMax included, in grid
+	 * coordinates
+	 */
+	static class CellBox {
+
+		final AbstractCellImg<?, ?, ?, ?> img;
+
+		final long[] cellMin, cellMax;
+
+		CellBox(AbstractCellImg<?, ?, ?, ?> img, long[] cellMin, long[] cellMax) {
+			this.img = img;
+			this.cellMin = cellMin;
+			this.cellMax = cellMax;
+		}
+
+		long size() {
+			return (cellMax[0] - cellMin[0] + 1) * (cellMax[1] - cellMin[1] + 1) *
+				(cellMax[2] - cellMin[2] + 1);
+		}
+	}
+
+	static class CellRequest {
+
+		final AbstractCellImg<?, ?, ?, ?> img;
+
+		final long[] cellPosition;
+
+		CellRequest(AbstractCellImg<?, ?, ?, ?> img, long[] cellPosition) {
+			this.img = img;
+			this.cellPosition = cellPosition;
+		}
+
+		// Loads the cell if it is not cached
+		Object load() {
+			RandomAccess<?> cells = img.getCells().randomAccess();
+			cells.setPosition(cellPosition);
+			return cells.get();
+		}
+	}
+
+}
@@ -0,0 +1,205 @@
+/*-
+ * #%L
+ * BigDataViewer-Playground
+ * %%
+ * Copyright (C) 2019 - 2025 Nicolas Chiaruttini, EPFL - Robert Haase, MPI CBG - Christian Tischer, EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.bdvpg.cache;
+
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.type.PrimitiveType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToLongFunction;
+
+/**
+ * Registry of the functions which estimate the memory retained by the values
+ * stored in the global cache, in bytes. The weight of a {@link Cell} is the
+ * weight of its data plus the small fixed overhead of the cell object. Any
+ * {@link ArrayDataAccess} (volatile or not, dirty or not, of any primitive
+ * type - ARGB cells are backed by int arrays) is weighed from its storage
+ * array, except the constant accesses of uniform cells (see
+ * {@link ConstantCells}) which do not retain any array. Other data or value
+ * classes can be registered with {@link #register(Class, ToLongFunction)}: the
+ * weigher of the closest registered superclass or interface is used. Values
+ * which are not known at all get a fixed weight, and a warning is logged once
+ * per class. Weights are 64-bit: callers which need an int (Caffeine) should
+ * use {@link #weighAsInt(Object)}.
+ *
+ * @author Nicolas Chiaruttini
+ */
+public class CacheWeighers {
+
+	final static Logger logger = LoggerFactory.getLogger(CacheWeighers.class);
+
+	// Object header and reference sizes of a 64-bit JVM with compressed oops
+	final static long OBJECT_HEADER = 12;
+	final static long ARRAY_HEADER = 16;
+	final static long REFERENCE = 4;
+
+	// Weight given to values of an unknown class
+	final static long UNKNOWN_OBJECT_WEIGHT = 64;
+
+	private CacheWeighers() {}
+
+	private static final Map<Class<?>, ToLongFunction<Object>> registered =
+		new ConcurrentHashMap<>();
+
+	// Weigher resolved for each class encountered, reset on registration
+	private static final Map<Class<?>, ToLongFunction<Object>> resolved =
+		new ConcurrentHashMap<>();
+
+	private static final Set<Class<?>> warned = ConcurrentHashMap.newKeySet();
+
+	static {
+		register(Cell.class, CacheWeighers::weighCell);
+		register(ArrayDataAccess.class, access -> weighAccess(access));
+		// No storage array: the value and the length only
+		register(ConstantCells.ConstantAccess.class, access -> align(
+			OBJECT_HEADER + 16));
+	}
+
+	/**
+	 * Registers the weigher of a class of cached values, or of cell data
+	 *
+	 * @param type class of the values, can be an interface
+	 * @param weigher returns the memory retained by a value, in bytes
+	 * @param <T> type of the values
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> void register(Class<T> type,
+		ToLongFunction<? super T> weigher)
+	{
+		registered.put(type, (ToLongFunction<Object>) weigher);
+		resolved.clear();
+	}
+
+	/**
+	 * @param value a cached value, or the data of a cell
+	 * @return the memory retained by the value, in bytes
+	 */
+	public static long weigh(Object value) {
+		if (value == null) return 0;
+		ToLongFunction<Object> weigher = resolve(value.getClass());
+		if (weigher != null) return weigher.applyAsLong(value);
+		long arrayWeight = weighArray(value);
+		if (arrayWeight >= 0) return arrayWeight;
+		if (warned.add(value.getClass())) {
+			logger.warn("Unknown class of cached object " + value.getClass() +
+				", its weight is set to " + UNKNOWN_OBJECT_WEIGHT +
+				" bytes. Use CacheWeighers.register to weigh it precisely.");
+		}
+		return UNKNOWN_OBJECT_WEIGHT;
+	}
+
+	/**
+	 * @param value a cached value
+	 * @return the weight of the value, clamped to {@link Integer#MAX_VALUE}
+	 */
+	public static int weighAsInt(Object value) {
+		return (int) Math.min(Integer.MAX_VALUE, weigh(value));
+	}
+
+	private static ToLongFunction<Object> resolve(Class<?> type) {
+		ToLongFunction<Object> weigher = resolved.get(type);
+		if (weigher == null) {
+			weigher = lookup(type);
+			if (weigher != null) resolved.put(type, weigher);
+		}
+		return weigher;
+	}
+
+	// Closest superclass first, then the interfaces of each superclass
+	private static ToLongFunction<Object> lookup(Class<?> type) {
+		for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+			ToLongFunction<Object> weigher = registered.get(c);
+			if (weigher != null) return weigher;
+		}
+		for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+			for (Class<?> i : c.getInterfaces()) {
+				ToLongFunction<Object> weigher = lookupInterface(i);
+				if (weigher != null) return weigher;
+			}
+		}
+		return null;
+	}
+
+	private static ToLongFunction<Object> lookupInterface(Class<?> type) {
+		ToLongFunction<Object> weigher = registered.get(type);
+		if (weigher != null) return weigher;
+		for (Class<?> i : type.getInterfaces()) {
+			weigher = lookupInterface(i);
+			if (weigher != null) return weigher;
+		}
+		return null;
+	}
+
+	static long weighCell(Object value) {
+		Cell<?> cell = (Cell<?>) value;
+		int nDims = cell.numDimensions();
+		// Cell object + its dimensions (int[]) and min (long[]) arrays
+		long overhead = align(OBJECT_HEADER + 3 * REFERENCE + 8) + align(
+			ARRAY_HEADER + 4L * nDims) + align(ARRAY_HEADER + 8L * nDims);
+		return overhead + weigh(cell.getData());
+	}
+
+	static long weighAccess(Object value) {
+		Object array = ((ArrayDataAccess<?>) value).getCurrentStorageArray();
+		long arrayWeight = weighArray(array);
+		if (arrayWeight < 0) {
+			// Not a primitive array: the storage itself may be registered
+			arrayWeight = weigh(array);
+		}
+		// Access object: header, reference to the array, and a few flags
+		return align(OBJECT_HEADER + REFERENCE + 4) + arrayWeight;
+	}
+
+	/**
+	 * @param array an object
+	 * @return the memory used by a primitive array, -1 if it is not a primitive
+	 *         array
+	 */
+	static long weighArray(Object array) {
+		PrimitiveType type = CellCodec.primitiveTypeOf(array);
+		if (type == null) {
+			if (array instanceof boolean[]) return align(ARRAY_HEADER +
+				((boolean[]) array).length);
+			return -1;
+		}
+		long length = java.lang.reflect.Array.getLength(array);
+		return align(ARRAY_HEADER + length * CellCodec.bytesPerElement(type));
+	}
+
+	static long align(long nBytes) {
+		return (nBytes + 7) & ~7L;
+	}
+
+}
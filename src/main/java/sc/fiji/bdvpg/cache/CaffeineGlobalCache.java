@@ -31,6 +31,8 @@ package sc.fiji.bdvpg.cache;
 
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.RemovalListener;
 import com.github.benmanes.caffeine.cache.Weigher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,6 +40,7 @@ import org.slf4j.LoggerFactory;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ExecutionException;
+import java.util.function.ObjLongConsumer;
 import java.util.function.Predicate;
 
 public class CaffeineGlobalCache extends AbstractGlobalCache {
@@ -47,13 +50,17 @@ public class CaffeineGlobalCache extends AbstractGlobalCache {
 
 	final Cache<GlobalCacheKey, Object> cache;
 
-	final long maxCacheSize;
+	volatile long maxCacheSize;
 
 	CaffeineGlobalCache(long maxCacheSize, boolean log, int msBetweenLogs) {
 		this.maxCacheSize = maxCacheSize;
 		cache = Caffeine.newBuilder().maximumWeight(maxCacheSize).softValues()
 			.weigher((Weigher<GlobalCacheKey, Object>) (key,
-				value) -> (int) AbstractGlobalCache.getWeight(value)).build();
+				value) -> CacheWeighers.weighAsInt(value))
+			// Synchronous removal listener, which keeps the key index up to date
+			.executor(Runnable::run)
+			.removalListener((RemovalListener<GlobalCacheKey, Object>) this::removed)
+			.build();
 
 		if (log) {
 			TimerTask periodicLogger = new TimerTask() {
@@ -64,19 +71,29 @@ public class CaffeineGlobalCache extends AbstractGlobalCache {
 				}
 			};
 
-			Timer time = new Timer(); // Instantiate Timer Object
-			time.schedule(periodicLogger, 0, msBetweenLogs);
+			logTimer = new Timer(); // Instantiate Timer Object
+			logTimer.schedule(periodicLogger, 0, msBetweenLogs);
 		}
 
 	}
 
 	public void setMaxSize(long maxCacheSize) {
-		throw new UnsupportedOperationException(
-			"Can't changed caffeine backed max cache size");
+		this.maxCacheSize = maxCacheSize;
+		// Evicts synchronously down to the new budget if it is smaller
+		cache.policy().eviction().ifPresent(eviction -> eviction.setMaximum(
+			maxCacheSize));
 	}
 
 	public void put(GlobalCacheKey key, Object value) {
-		cache.put(key, value);
+		evictDemotedIfNecessary(value);
+		if (cache.asMap().putIfAbsent(key, value) == null) index.add(key);
+	}
+
+	private void removed(GlobalCacheKey key, Object value, RemovalCause cause) {
+		if (cause == RemovalCause.REPLACED) return;
+		// The same key may have been put again in the meantime
+		if (!cache.asMap().containsKey(key)) index.remove(key);
+		if (cause == RemovalCause.SIZE) evicted(key, value, getWeight(value));
 	}
 
 	@Override
@@ -87,25 +104,32 @@ public class CaffeineGlobalCache extends AbstractGlobalCache {
 
 	@Override
 	public Object getIfPresent(GlobalCacheKey key) {
-		return cache.getIfPresent(key);
+		final Object value = cache.getIfPresent(key);
+		return (value == null) ? getFromNextTier(key) : value;
 	}
 
 	@Override
-	public void invalidate(GlobalCacheKey key) {
-		cache.invalidate(key);
+	protected long purge(GlobalCacheKey key) {
+		// The removal listener updates the key index
+		final Object value = cache.asMap().remove(key);
+		invalidateNextTier(key);
+		return (value == null) ? 0 : getWeight(value);
 	}
 
 	@Override
 	public void invalidateIf(long parallelismThreshold,
 		Predicate<GlobalCacheKey> condition)
 	{
-		throw new UnsupportedOperationException(
-			"Can't invalidate based on predicate");
+		// Full scan: prefer invalidateIf(source, timepoint, level, condition)
+		cache.asMap().keySet().removeIf(condition);
+		invalidateNextTierIf(condition);
 	}
 
 	@Override
 	public void invalidateAll(long parallelismThreshold) {
 		cache.invalidateAll();
+		index.clear();
+		invalidateNextTierAll();
 	}
 
 	public long getMaxSize() {
@@ -113,7 +137,19 @@ public class CaffeineGlobalCache extends AbstractGlobalCache {
 	}
 
 	public long getEstimatedSize() {
-		return cache.estimatedSize() * 1_000_000;
+		return cache.policy().eviction().get().weightedSize().getAsLong();
+	}
+
+	@Override
+	protected void forEachKey(ObjLongConsumer<GlobalCacheKey> consumer) {
+		cache.policy().eviction().ifPresent(eviction -> eviction.coldest(
+			Integer.MAX_VALUE).forEach((key, value) -> consumer.accept(key,
+				getWeight(value))));
+	}
+
+	@Override
+	public boolean refresh(GlobalCacheKey key) {
+		return cache.getIfPresent(key) != null;
 	}
 
 	@Override
@@ -0,0 +1,247 @@
+/*-
+ * #%L
+ * BigDataViewer-Playground
+ * %%
+ * Copyright (C) 2019 - 2025 Nicolas Chiaruttini, EPFL - Robert Haase, MPI CBG - Christian Tischer, EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.bdvpg.cache;
+
+import net.imglib2.Dirty;
+import net.imglib2.img.basictypeaccess.AccessFlags;
+import net.imglib2.img.basictypeaccess.ArrayDataAccessFactory;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileAccess;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.type.PrimitiveType;
+
+import java.nio.ByteBuffer;
+import java.util.Set;
+
+/**
+ * Copies the primitive payload of a {@link Cell} to and from a
+ * {@link ByteBuffer}, so that cells can be kept outside of the java heap (see
+ * {@link OffHeapGlobalCache}). Only the payload is written in the buffer: the
+ * small {@link Descriptor} (cell dimensions, position, access flags) stays on
+ * the heap and is needed to rebuild the cell. Cells which are not backed by a
+ * primitive {@link ArrayDataAccess} cannot be encoded.
+ *
+ * @author Nicolas Chiaruttini
+ */
+final class CellCodec {
+
+	private CellCodec() {}
+
+	/**
+	 * @param value object to test
+	 * @return true if the object is a valid cell backed by a primitive array
+	 *         which can be encoded
+	 */
+	static boolean canEncode(Object value) {
+		if (!(value instanceof Cell)) return false;
+		Object data = ((Cell<?>) value).getData();
+		if (!(data instanceof ArrayDataAccess)) return false;
+		// Smaller on the heap than encoded
+		if (data instanceof ConstantCells.ConstantAccess) return false;
+		if ((data instanceof VolatileAccess) && (!((VolatileAccess) data)
+			.isValid())) return false; // Never keep an invalid volatile cell
+		return primitiveTypeOf(((ArrayDataAccess<?>) data)
+			.getCurrentStorageArray()) != null;
+	}
+
+	/**
+	 * @param cell a cell which can be encoded, see {@link #canEncode(Object)}
+	 * @return the descriptor of the cell, which is necessary to rebuild it
+	 */
+	static Descriptor describe(Cell<?> cell) {
+		ArrayDataAccess<?> access = (ArrayDataAccess<?>) cell.getData();
+		int nDims = cell.numDimensions();
+		int[] dimensions = new int[nDims];
+		long[] min = new long[nDims];
+		for (int d = 0; d < nDims; d++) {
+			dimensions[d] = (int) cell.dimension(d);
+			min[d] = cell.min(d);
+		}
+		return new Descriptor(dimensions, min, primitiveTypeOf(access
+			.getCurrentStorageArray()), AccessFlags.ofAccess(access), access
+				.getArrayLength(), (access instanceof Dirty) && ((Dirty) access)
+					.isDirty());
+	}
+
+	/**
+	 * Writes the payload of the cell at the current position of the buffer
+	 *
+	 * @param cell cell to write
+	 * @param buffer buffer with at least {@link Descriptor#payloadSize()} bytes
+	 *          remaining, in native byte order
+	 */
+	static void write(Cell<?> cell, ByteBuffer buffer) {
+		Object array = ((ArrayDataAccess<?>) cell.getData())
+			.getCurrentStorageArray();
+		ByteBuffer target = buffer.duplicate().order(buffer.order());
+		switch (primitiveTypeOf(array)) {
+			case BYTE:
+				target.put((byte[]) array);
+				break;
+			case CHAR:
+				target.asCharBuffer().put((char[]) array);
+				break;
+			case SHORT:
+				target.asShortBuffer().put((short[]) array);
+				break;
+			case INT:
+				target.asIntBuffer().put((int[]) array);
+				break;
+			case LONG:
+				target.asLongBuffer().put((long[]) array);
+				break;
+			case FLOAT:
+				target.asFloatBuffer().put((float[]) array);
+				break;
+			case DOUBLE:
+				target.asDoubleBuffer().put((double[]) array);
+				break;
+			default:
+				throw new UnsupportedOperationException("Cannot encode array " + array
+					.getClass());
+		}
+	}
+
+	/**
+	 * Rebuilds a cell on the heap from its descriptor and its payload
+	 *
+	 * @param descriptor descriptor of the cell
+	 * @param buffer buffer containing the payload at its current position
+	 * @return a new cell, with an access of the same kind as the one encoded
+	 */
+	static Cell<?> read(Descriptor descriptor, ByteBuffer buffer) {
+		ArrayDataAccess<?> access = createAccess(descriptor.type,
+			descriptor.flags, descriptor.numEntities);
+		Object array = access.getCurrentStorageArray();
+		ByteBuffer source = buffer.duplicate().order(buffer.order());
+		switch (descriptor.type) {
+			case BYTE:
+				source.get((byte[]) array);
+				break;
+			case CHAR:
+				source.asCharBuffer().get((char[]) array);
+				break;
+			case SHORT:
+				source.asShortBuffer().get((short[]) array);
+				break;
+			case INT:
+				source.asIntBuffer().get((int[]) array);
+				break;
+			case LONG:
+				source.asLongBuffer().get((long[]) array);
+				break;
+			case FLOAT:
+				source.asFloatBuffer().get((float[]) array);
+				break;
+			case DOUBLE:
+				source.asDoubleBuffer().get((double[]) array);
+				break;
+			default:
+				throw new UnsupportedOperationException("Cannot decode type " +
+					descriptor.type);
+		}
+		if (descriptor.dirty && (access instanceof Dirty)) {
+			((Dirty) access).setDirty();
+		}
+		return new Cell<>(descriptor.dimensions.clone(), descriptor.min.clone(),
+			access);
+	}
+
+	private static <A extends ArrayDataAccess<A>> A createAccess(
+		PrimitiveType type, Set<AccessFlags> flags, int numEntities)
+	{
+		final A template = ArrayDataAccessFactory.get(type, flags);
+		return template.createArray(numEntities);
+	}
+
+	static PrimitiveType primitiveTypeOf(Object array) {
+		if (array instanceof byte[]) return PrimitiveType.BYTE;
+		if (array instanceof char[]) return PrimitiveType.CHAR;
+		if (array instanceof short[]) return PrimitiveType.SHORT;
+		if (array instanceof int[]) return PrimitiveType.INT;
+		if (array instanceof long[]) return PrimitiveType.LONG;
+		if (array instanceof float[]) return PrimitiveType.FLOAT;
+		if (array instanceof double[]) return PrimitiveType.DOUBLE;
+		return null;
+	}
+
+	static int bytesPerElement(PrimitiveType type) {
+		switch (type) {
+			case BYTE:
+				return 1;
+			case CHAR:
+			case SHORT:
+				return 2;
+			case INT:
+			case FLOAT:
+				return 4;
+			case LONG:
+			case DOUBLE:
+				return 8;
+			default:
+				throw new UnsupportedOperationException("Unsupported type " + type);
+		}
+	}
+
+	/**
+	 * Small heap object which contains everything that is needed to rebuild a
+	 * cell from its payload
+	 */
+	static class Descriptor {
+
+		final int[] dimensions;
+
+		final long[] min;
+
+		final PrimitiveType type;
+
+		final Set<AccessFlags> flags;
+
+		final int numEntities;
+
+		final boolean dirty;
+
+		Descriptor(int[] dimensions, long[] min, PrimitiveType type,
+			Set<AccessFlags> flags, int numEntities, boolean dirty)
+		{
+			this.dimensions = dimensions;
+			this.min = min;
+			this.type = type;
+			this.flags = flags;
+			this.numEntities = numEntities;
+			this.dirty = dirty;
+		}
+
+		int payloadSize() {
+			return numEntities * bytesPerElement(type);
+		}
+	}
+
+}
@@ -0,0 +1,207 @@
+/*-
+ * #%L
+ * BigDataViewer-Playground
+ * %%
+ * Copyright (C) 2019 - 2025 Nicolas Chiaruttini, EPFL - Robert Haase, MPI CBG - Christian Tischer, EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.bdvpg.cache;
+
+import bdv.export.ProgressWriter;
+import bdv.export.ProgressWriterConsole;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sc.fiji.bdvpg.services.SourceAndConverterServices;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Computes up front all the cells of cached cell images (for instance the
+ * RAIs of a cached {@link bdv.util.ResampledSource}), so that the processing
+ * which follows reads them from the cache. Cells are computed in a fork-join
+ * pool with as many threads as cores, shared by all precomputations. The
+ * precomputation can be cancelled with {@link ForkJoinTask#cancel(boolean)}:
+ * the cells not computed yet are skipped. If the cells do not fit in the
+ * global cache budget, the least recently used ones are evicted and will be
+ * computed again when accessed: a warning is then reported.
+ *
+ * @author Nicolas Chiaruttini
+ */
+public class CellPrecomputation {
+
+	final static Logger logger = LoggerFactory.getLogger(
+		CellPrecomputation.class);
+
+	private static ForkJoinPool pool = null;
+
+	private CellPrecomputation() {}
+
+	private static synchronized ForkJoinPool getPool() {
+		if (pool == null) {
+			pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		}
+		return pool;
+	}
+
+	/**
+	 * Starts the computation of all the cells of cached cell images. RAIs which
+	 * are not cell images are skipped.
+	 *
+	 * @param rais cached cell images
+	 * @param progress progress and messages of the computation, the console if
+	 *          null
+	 * @return the running computation, whose result is the number of cells
+	 *         computed, and which can be cancelled
+	 */
+	public static ForkJoinTask<Integer> submit(
+		List<? extends RandomAccessibleInterval<?>> rais, ProgressWriter progress)
+	{
+		final List<CacheWarmUp.CellRequest> cells = new ArrayList<>();
+		for (RandomAccessibleInterval<?> rai : rais) {
+			if (!(rai instanceof AbstractCellImg)) {
+				logger.warn("Not a cell image, it can't be precomputed: " + rai);
+				continue;
+			}
+			final AbstractCellImg<?, ?, ?, ?> img = (AbstractCellImg<?, ?, ?, ?>) rai;
+			final CellGrid grid = img.getCellGrid();
+			final long[] gridDims = grid.getGridDimensions();
+			final long nCells = Intervals.numElements(gridDims);
+			for (long index = 0; index < nCells; index++) {
+				final long[] position = new long[gridDims.length];
+				IntervalIndexer.indexToPosition(index, gridDims, position);
+				cells.add(new CacheWarmUp.CellRequest(img, position));
+			}
+		}
+		final Precomputation precomputation = new Precomputation(cells,
+			(progress == null) ? new ProgressWriterConsole() : progress);
+		return getPool().submit(precomputation.root);
+	}
+
+	/**
+	 * State shared by the tasks of a precomputation
+	 */
+	static class Precomputation {
+
+		final List<CacheWarmUp.CellRequest> cells;
+
+		final ProgressWriter progress;
+
+		final AtomicInteger done = new AtomicInteger();
+
+		final AtomicLong computedBytes = new AtomicLong();
+
+		final int progressStep;
+
+		final Range root;
+
+		Precomputation(List<CacheWarmUp.CellRequest> cells,
+			ProgressWriter progress)
+		{
+			this.cells = cells;
+			this.progress = progress;
+			this.progressStep = Math.max(1, cells.size() / 100);
+			this.root = new Range(this, 0, cells.size());
+		}
+
+		void finished() {
+			if (root.isCancelled()) {
+				progress.err().println("Precomputation cancelled after " + done
+					.get() + " / " + cells.size() + " cells");
+				return;
+			}
+			progress.out().println("Precomputed " + done.get() + " cells, " +
+				(computedBytes.get() / (1024 * 1024)) + " Mb");
+			long budget = SourceAndConverterServices.getSourceAndConverterService()
+				.getCache().getMaxSize();
+			if (computedBytes.get() > budget) {
+				progress.err().println("The precomputed cells do not fit in the cache (" +
+					(budget / (1024 * 1024)) +
+					" Mb): the oldest ones will be computed again when accessed");
+			}
+			progress.setProgress(1.0);
+		}
+	}
+
+	/**
+	 * Computes the cells of indices from (included) to (excluded), by splitting
+	 * the range in halves down to a single cell
+	 */
+	static class Range extends RecursiveTask<Integer> {
+
+		private static final long serialVersionUID = 1L;
+
+		final transient Precomputation precomputation;
+
+		final int from, to;
+
+		Range(Precomputation precomputation, int from, int to) {
+			this.precomputation = precomputation;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Integer compute() {
+			final int computed;
+			if (precomputation.root.isCancelled()) {
+				computed = 0;
+			}
+			else if (to - from > 1) {
+				final int middle = (from + to) >>> 1;
+				final Range left = new Range(precomputation, from, middle);
+				final Range right = new Range(precomputation, middle, to);
+				right.fork();
+				computed = left.compute() + right.join();
+			}
+			else if (to - from == 1) {
+				final Object cell = precomputation.cells.get(from).load();
+				precomputation.computedBytes.addAndGet(CacheWeighers.weigh(cell));
+				final int n = precomputation.done.incrementAndGet();
+				if (n % precomputation.progressStep == 0) {
+					precomputation.progress.setProgress((double) n / precomputation.cells
+						.size());
+				}
+				computed = 1;
+			}
+			else {
+				computed = 0;
+			}
+			if (this == precomputation.root) precomputation.finished();
+			return computed;
+		}
+	}
+
+}
@@ -0,0 +1,315 @@
+/*-
+ * #%L
+ * BigDataViewer-Playground
+ * %%
+ * Copyright (C) 2019 - 2025 Nicolas Chiaruttini, EPFL - Robert Haase, MPI CBG - Christian Tischer, EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.bdvpg.cache;
+
+import net.imglib2.img.cell.Cell;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * {@link CacheTier} which keeps evicted cells compressed in memory, and
+ * decompresses them when they are accessed again. Label images and sparse
+ * volumes typically compress several times, so the same amount of memory
+ * holds several times more cells than the upper level. Cells are compressed
+ * with the fastest deflate level; cells which do not compress are kept raw, in
+ * order not to pay for decompression. Cells are evicted in least recently used
+ * order when the compressed size exceeds the budget of the tier, and are then
+ * handed over to the next tier, if any (a disk spill tier for instance). Only
+ * cells backed by a primitive array are kept, other values are forwarded to
+ * the next tier directly.
+ *
+ * @author Nicolas Chiaruttini
+ */
+public class CompressedCellTier implements CacheTier {
+
+	final static Logger logger = LoggerFactory.getLogger(
+		CompressedCellTier.class);
+
+	// Heap overhead of an entry: map node, key reference, descriptor, array
+	// header
+	final static int ENTRY_OVERHEAD = 128;
+
+	private static final ThreadLocal<Deflater> deflaters = ThreadLocal
+		.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+
+	private static final ThreadLocal<Inflater> inflaters = ThreadLocal
+		.withInitial(Inflater::new);
+
+	final long maxSize;
+
+	final CacheTier nextTier;
+
+	// Access ordered -> least recently used first
+	final LinkedHashMap<GlobalCacheKey, CompressedEntry> entries =
+		new LinkedHashMap<>(100, 0.75f, true);
+
+	long usedBytes = 0;
+
+	final LongAdder hits = new LongAdder();
+
+	final LongAdder misses = new LongAdder();
+
+	final LongAdder evictions = new LongAdder();
+
+	final LongAdder rawBytesStored = new LongAdder();
+
+	final LongAdder compressedBytesStored = new LongAdder();
+
+	/**
+	 * @param maxSize maximal number of bytes used by the compressed cells
+	 * @param nextTier tier receiving the cells evicted from this tier, can be
+	 *          null
+	 */
+	public CompressedCellTier(long maxSize, CacheTier nextTier) {
+		this.maxSize = maxSize;
+		this.nextTier = nextTier;
+		logger.info("Compressed cache tier of " + (maxSize / (1024 * 1024)) +
+			" Mb");
+	}
+
+	@Override
+	public void put(GlobalCacheKey key, Object value) {
+		if (!CellCodec.canEncode(value)) {
+			if (nextTier != null) nextTier.put(key, value);
+			return;
+		}
+		synchronized (this) {
+			if (entries.get(key) != null) return; // Already compressed
+		}
+		// Compressed outside of the lock
+		CompressedEntry entry = compress((Cell<?>) value);
+		List<Map.Entry<GlobalCacheKey, CompressedEntry>> evictedEntries;
+		synchronized (this) {
+			if (entries.containsKey(key)) return;
+			entries.put(key, entry);
+			usedBytes += entry.weight();
+			rawBytesStored.add(entry.descriptor.payloadSize());
+			compressedBytesStored.add(entry.data.length);
+			evictedEntries = evictIfNecessary();
+		}
+		// Entries are immutable: decompressed and handed over outside of the lock
+		if (nextTier != null) {
+			evictedEntries.forEach(eldest -> nextTier.put(eldest.getKey(),
+				decompress(eldest.getValue())));
+		}
+	}
+
+	@Override
+	public Object getIfPresent(GlobalCacheKey key) {
+		CompressedEntry entry;
+		synchronized (this) {
+			entry = entries.get(key);
+		}
+		if (entry == null) {
+			misses.increment();
+			return (nextTier == null) ? null : nextTier.getIfPresent(key);
+		}
+		hits.increment();
+		// Entries are immutable: decompressed outside of the lock
+		return decompress(entry);
+	}
+
+	@Override
+	public void invalidate(GlobalCacheKey key) {
+		synchronized (this) {
+			CompressedEntry entry = entries.remove(key);
+			if (entry != null) usedBytes -= entry.weight();
+		}
+		if (nextTier != null) nextTier.invalidate(key);
+	}
+
+	@Override
+	public void invalidateIf(Predicate<GlobalCacheKey> condition) {
+		synchronized (this) {
+			Iterator<Map.Entry<GlobalCacheKey, CompressedEntry>> it = entries
+				.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<GlobalCacheKey, CompressedEntry> entry = it.next();
+				if (condition.test(entry.getKey())) {
+					it.remove();
+					usedBytes -= entry.getValue().weight();
+				}
+			}
+		}
+		if (nextTier != null) nextTier.invalidateIf(condition);
+	}
+
+	@Override
+	public void invalidateAll() {
+		synchronized (this) {
+			entries.clear();
+			usedBytes = 0;
+		}
+		if (nextTier != null) nextTier.invalidateAll();
+	}
+
+	@Override
+	public long getEstimatedSize() {
+		return usedBytes;
+	}
+
+	@Override
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	public CacheTier getNextTier() {
+		return nextTier;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * @return raw size divided by compressed size of all cells stored so far
+	 */
+	public double getCompressionRatio() {
+		long compressed = compressedBytesStored.sum();
+		return compressed == 0 ? 1 : (double) rawBytesStored.sum() /
+			(double) compressed;
+	}
+
+	/**
+	 * Should be called with the lock held
+	 *
+	 * @return the entries evicted, to be handed over to the next tier once the
+	 *         lock is released
+	 */
+	private List<Map.Entry<GlobalCacheKey, CompressedEntry>> evictIfNecessary() {
+		List<Map.Entry<GlobalCacheKey, CompressedEntry>> evictedEntries =
+			new ArrayList<>();
+		Iterator<Map.Entry<GlobalCacheKey, CompressedEntry>> it = entries
+			.entrySet().iterator();
+		while ((usedBytes > maxSize) && it.hasNext()) {
+			Map.Entry<GlobalCacheKey, CompressedEntry> eldest = it.next();
+			it.remove();
+			usedBytes -= eldest.getValue().weight();
+			evictions.increment();
+			evictedEntries.add(eldest);
+		}
+		return evictedEntries;
+	}
+
+	static CompressedEntry compress(Cell<?> cell) {
+		CellCodec.Descriptor descriptor = CellCodec.describe(cell);
+		ByteBuffer raw = ByteBuffer.allocate(descriptor.payloadSize()).order(
+			ByteOrder.nativeOrder());
+		CellCodec.write(cell, raw);
+		byte[] input = raw.array();
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setInput(input);
+		deflater.finish();
+		// No room for more than the raw size: incompressible cells are kept raw
+		byte[] output = new byte[input.length];
+		int length = deflater.deflate(output);
+		if (!deflater.finished()) return new CompressedEntry(descriptor, input,
+			false);
+		return new CompressedEntry(descriptor, Arrays.copyOf(output, length), true);
+	}
+
+	static Cell<?> decompress(CompressedEntry entry) {
+		byte[] raw = entry.data;
+		if (entry.compressed) {
+			raw = new byte[entry.descriptor.payloadSize()];
+			Inflater inflater = inflaters.get();
+			inflater.reset();
+			inflater.setInput(entry.data);
+			try {
+				int offset = 0;
+				while ((offset < raw.length) && (!inflater.finished())) {
+					offset += inflater.inflate(raw, offset, raw.length - offset);
+				}
+			}
+			catch (DataFormatException e) {
+				throw new IllegalStateException("Corrupted compressed cell", e);
+			}
+		}
+		return CellCodec.read(entry.descriptor, ByteBuffer.wrap(raw).order(
+			ByteOrder.nativeOrder()));
+	}
+
+	static class CompressedEntry {
+
+		final CellCodec.Descriptor descriptor;
+
+		final byte[] data;
+
+		final boolean compressed;
+
+		CompressedEntry(CellCodec.Descriptor descriptor, byte[] data,
+			boolean compressed)
+		{
+			this.descriptor = descriptor;
+			this.data = data;
+			this.compressed = compressed;
+		}
+
+		long weight() {
+			return ENTRY_OVERHEAD + data.length;
+		}
+	}
+
+	@Override
+	public String toString() {
+		long h = getHits();
+		long m = getMisses();
+		return "Compressed tier : " + (usedBytes / (1024 * 1024)) + " Mb (" +
+			(int) (100.0 * (double) usedBytes / (double) maxSize) + " %), ratio " +
+			String.format("%.1f", getCompressionRatio()) + ", hits: " + h +
+			", misses: " + m + " (" + ((h + m) == 0 ? 0 : (int) (100 * h / (h +
+				m))) + " % hits), evictions: " + getEvictions() + ((nextTier ==
+					null) ? "" : "\n" + nextTier);
+	}
+
+}
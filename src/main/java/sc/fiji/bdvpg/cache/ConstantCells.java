@@ -0,0 +1,470 @@
+/*-
+ * #%L
+ * BigDataViewer-Playground
+ * %%
+ * Copyright (C) 2019 - 2025 Nicolas Chiaruttini, EPFL - Robert Haase, MPI CBG - Christian Tischer, EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.bdvpg.cache;
+
+import net.imglib2.Dirty;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileAccess;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileArrayDataAccess;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileByteAccess;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileDoubleAccess;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileFloatAccess;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileIntAccess;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileLongAccess;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileShortAccess;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.type.PrimitiveType;
+
+import java.util.Arrays;
+
+/**
+ * Compact representation of uniform cells: resampled atlases, empty models or
+ * padded volumes produce many cells where all pixels have the same value
+ * (often zero). Such cells of read-only derived sources are replaced, when
+ * they are loaded, by a cell backed by a {@link ConstantAccess}, which only
+ * stores the value, so that the cache budget goes to the cells with real
+ * content (see {@link GlobalLoaderCache#setCompactUniformCells(boolean)}).
+ * Constant accesses are
+ * read-only, and are valid volatile accesses of the same primitive type as
+ * the cell they replace. Code which requires the storage array of a cell still
+ * gets one, allocated at each call (see
+ * {@link ConstantAccess#getCurrentStorageArray()}). Zero accesses of a given
+ * length are shared.
+ *
+ * @author Nicolas Chiaruttini
+ */
+public final class ConstantCells {
+
+	private ConstantCells() {}
+
+	/**
+	 * @param value a loaded value
+	 * @return a cell backed by a constant access if the value is a uniform,
+	 *         valid and non-dirty cell backed by a primitive array, the value
+	 *         itself otherwise
+	 */
+	public static Object compact(Object value) {
+		if (!(value instanceof Cell)) return value;
+		Cell<?> cell = (Cell<?>) value;
+		Object data = cell.getData();
+		if ((!(data instanceof ArrayDataAccess)) || (data instanceof ConstantAccess))
+			return value;
+		if (data instanceof Dirty) return value; // May be written to
+		if ((data instanceof VolatileAccess) && (!((VolatileAccess) data)
+			.isValid())) return value;
+		ConstantAccess<?> constant = constantOf(((ArrayDataAccess<?>) data)
+			.getCurrentStorageArray());
+		if (constant == null) return value;
+		int nDims = cell.numDimensions();
+		int[] dimensions = new int[nDims];
+		long[] min = new long[nDims];
+		for (int d = 0; d < nDims; d++) {
+			dimensions[d] = (int) cell.dimension(d);
+			min[d] = cell.min(d);
+		}
+		return new Cell<>(dimensions, min, constant);
+	}
+
+	/**
+	 * @param type primitive type of the access
+	 * @param length number of elements of the access
+	 * @return a zero access, shared when possible, or null if the type is not
+	 *         supported
+	 */
+	public static ConstantAccess<?> zero(PrimitiveType type, int length) {
+		switch (type) {
+			case BYTE:
+				return ConstantByteAccess.zero(length);
+			case SHORT:
+				return ConstantShortAccess.zero(length);
+			case INT:
+				return ConstantIntAccess.zero(length);
+			case LONG:
+				return new ConstantLongAccess(0, length);
+			case FLOAT:
+				return ConstantFloatAccess.zero(length);
+			case DOUBLE:
+				return new ConstantDoubleAccess(0, length);
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * @param array a primitive array
+	 * @return a constant access equivalent to the array, or null if the array
+	 *         is empty, not uniform, or of an unsupported type
+	 */
+	static ConstantAccess<?> constantOf(Object array) {
+		if (array instanceof byte[]) {
+			byte[] a = (byte[]) array;
+			if (a.length == 0) return null;
+			for (int i = 1; i < a.length; i++)
+				if (a[i] != a[0]) return null;
+			return (a[0] == 0) ? ConstantByteAccess.zero(a.length)
+				: new ConstantByteAccess(a[0], a.length);
+		}
+		if (array instanceof short[]) {
+			short[] a = (short[]) array;
+			if (a.length == 0) return null;
+			for (int i = 1; i < a.length; i++)
+				if (a[i] != a[0]) return null;
+			return (a[0] == 0) ? ConstantShortAccess.zero(a.length)
+				: new ConstantShortAccess(a[0], a.length);
+		}
+		if (array instanceof int[]) {
+			int[] a = (int[]) array;
+			if (a.length == 0) return null;
+			for (int i = 1; i < a.length; i++)
+				if (a[i] != a[0]) return null;
+			return (a[0] == 0) ? ConstantIntAccess.zero(a.length)
+				: new ConstantIntAccess(a[0], a.length);
+		}
+		if (array instanceof long[]) {
+			long[] a = (long[]) array;
+			if (a.length == 0) return null;
+			for (int i = 1; i < a.length; i++)
+				if (a[i] != a[0]) return null;
+			return new ConstantLongAccess(a[0], a.length);
+		}
+		if (array instanceof float[]) {
+			// Bitwise comparison: -0 and NaN payloads are preserved
+			float[] a = (float[]) array;
+			if (a.length == 0) return null;
+			int bits = Float.floatToRawIntBits(a[0]);
+			for (int i = 1; i < a.length; i++)
+				if (Float.floatToRawIntBits(a[i]) != bits) return null;
+			return (bits == 0) ? ConstantFloatAccess.zero(a.length)
+				: new ConstantFloatAccess(a[0], a.length);
+		}
+		if (array instanceof double[]) {
+			double[] a = (double[]) array;
+			if (a.length == 0) return null;
+			long bits = Double.doubleToRawLongBits(a[0]);
+			for (int i = 1; i < a.length; i++)
+				if (Double.doubleToRawLongBits(a[i]) != bits) return null;
+			return new ConstantDoubleAccess(a[0], a.length);
+		}
+		return null;
+	}
+
+	/**
+	 * Read-only access where all pixels have the same value. It is always
+	 * valid.
+	 */
+	public static abstract class ConstantAccess<A> implements
+		VolatileArrayDataAccess<A>
+	{
+
+		final int length;
+
+		ConstantAccess(int length) {
+			this.length = length;
+		}
+
+		@Override
+		public boolean isValid() {
+			return true;
+		}
+
+		@Override
+		public A createArray(int numEntities, boolean isValid) {
+			return createArray(numEntities);
+		}
+
+		@Override
+		public int getArrayLength() {
+			return length;
+		}
+
+		/**
+		 * @return a new array filled with the constant value: not retained, so
+		 *         that the access stays small
+		 */
+		@Override
+		public abstract Object getCurrentStorageArray();
+
+		static UnsupportedOperationException readOnly() {
+			return new UnsupportedOperationException(
+				"Cannot write into a constant cell");
+		}
+	}
+
+	static final class ConstantByteAccess extends
+		ConstantAccess<ConstantByteAccess> implements VolatileByteAccess
+	{
+
+		private static volatile ConstantByteAccess lastZero;
+
+		final byte value;
+
+		ConstantByteAccess(byte value, int length) {
+			super(length);
+			this.value = value;
+		}
+
+		static ConstantByteAccess zero(int length) {
+			ConstantByteAccess zero = lastZero;
+			if ((zero == null) || (zero.length != length)) {
+				zero = new ConstantByteAccess((byte) 0, length);
+				lastZero = zero;
+			}
+			return zero;
+		}
+
+		@Override
+		public byte getValue(int index) {
+			return value;
+		}
+
+		@Override
+		public void setValue(int index, byte value) {
+			if (value != this.value) throw readOnly();
+		}
+
+		@Override
+		public ConstantByteAccess createArray(int numEntities) {
+			return new ConstantByteAccess(value, numEntities);
+		}
+
+		@Override
+		public Object getCurrentStorageArray() {
+			byte[] array = new byte[length];
+			Arrays.fill(array, value);
+			return array;
+		}
+	}
+
+	static final class ConstantShortAccess extends
+		ConstantAccess<ConstantShortAccess> implements VolatileShortAccess
+	{
+
+		private static volatile ConstantShortAccess lastZero;
+
+		final short value;
+
+		ConstantShortAccess(short value, int length) {
+			super(length);
+			this.value = value;
+		}
+
+		static ConstantShortAccess zero(int length) {
+			ConstantShortAccess zero = lastZero;
+			if ((zero == null) || (zero.length != length)) {
+				zero = new ConstantShortAccess((short) 0, length);
+				lastZero = zero;
+			}
+			return zero;
+		}
+
+		@Override
+		public short getValue(int index) {
+			return value;
+		}
+
+		@Override
+		public void setValue(int index, short value) {
+			if (value != this.value) throw readOnly();
+		}
+
+		@Override
+		public ConstantShortAccess createArray(int numEntities) {
+			return new ConstantShortAccess(value, numEntities);
+		}
+
+		@Override
+		public Object getCurrentStorageArray() {
+			short[] array = new short[length];
+			Arrays.fill(array, value);
+			return array;
+		}
+	}
+
+	static final class ConstantIntAccess extends
+		ConstantAccess<ConstantIntAccess> implements VolatileIntAccess
+	{
+
+		private static volatile ConstantIntAccess lastZero;
+
+		final int value;
+
+		ConstantIntAccess(int value, int length) {
+			super(length);
+			this.value = value;
+		}
+
+		static ConstantIntAccess zero(int length) {
+			ConstantIntAccess zero = lastZero;
+			if ((zero == null) || (zero.length != length)) {
+				zero = new ConstantIntAccess(0, length);
+				lastZero = zero;
+			}
+			return zero;
+		}
+
+		@Override
+		public int getValue(int index) {
+			return value;
+		}
+
+		@Override
+		public void setValue(int index, int value) {
+			if (value != this.value) throw readOnly();
+		}
+
+		@Override
+		public ConstantIntAccess createArray(int numEntities) {
+			return new ConstantIntAccess(value, numEntities);
+		}
+
+		@Override
+		public Object getCurrentStorageArray() {
+			int[] array = new int[length];
+			Arrays.fill(array, value);
+			return array;
+		}
+	}
+
+	static final class ConstantLongAccess extends
+		ConstantAccess<ConstantLongAccess> implements VolatileLongAccess
+	{
+
+		final long value;
+
+		ConstantLongAccess(long value, int length) {
+			super(length);
+			this.value = value;
+		}
+
+		@Override
+		public long getValue(int index) {
+			return value;
+		}
+
+		@Override
+		public void setValue(int index, long value) {
+			if (value != this.value) throw readOnly();
+		}
+
+		@Override
+		public ConstantLongAccess createArray(int numEntities) {
+			return new ConstantLongAccess(value, numEntities);
+		}
+
+		@Override
+		public Object getCurrentStorageArray() {
+			long[] array = new long[length];
+			Arrays.fill(array, value);
+			return array;
+		}
+	}
+
+	static final class ConstantFloatAccess extends
+		ConstantAccess<ConstantFloatAccess> implements VolatileFloatAccess
+	{
+
+		private static volatile ConstantFloatAccess lastZero;
+
+		final float value;
+
+		ConstantFloatAccess(float value, int length) {
+			super(length);
+			this.value = value;
+		}
+
+		static ConstantFloatAccess zero(int length) {
+			ConstantFloatAccess zero = lastZero;
+			if ((zero == null) || (zero.length != length)) {
+				zero = new ConstantFloatAccess(0, length);
+				lastZero = zero;
+			}
+			return zero;
+		}
+
+		@Override
+		public float getValue(int index) {
+			return value;
+		}
+
+		@Override
+		public void setValue(int index, float value) {
+			if (Float.floatToRawIntBits(value) != Float.floatToRawIntBits(
+				this.value)) throw readOnly();
+		}
+
+		@Override
+		public ConstantFloatAccess createArray(int numEntities) {
+			return new ConstantFloatAccess(value, numEntities);
+		}
+
+		@Override
+		public Object getCurrentStorageArray() {
+			float[] array = new float[length];
+			Arrays.fill(array, value);
+			return array;
+		}
+	}
+
+	static final class ConstantDoubleAccess extends
+		ConstantAccess<ConstantDoubleAccess> implements VolatileDoubleAccess
+	{
+
+		final double value;
+
+		ConstantDoubleAccess(double value, int length) {
+			super(length);
+			this.value = value;
+		}
+
+		@Override
+		public double getValue(int index) {
+			return value;
+		}
+
+		@Override
+		public void setValue(int index, double value) {
+			if (Double.doubleToRawLongBits(value) != Double.doubleToRawLongBits(
+				this.value)) throw readOnly();
+		}
+
+		@Override
+		public ConstantDoubleAccess createArray(int numEntities) {
+			return new ConstantDoubleAccess(value, numEntities);
+		}
+
+		@Override
+		public Object getCurrentStorageArray() {
+			double[] array = new double[length];
+			Arrays.fill(array, value);
+			return array;
+		}
+	}
+
+}
@@ -0,0 +1,294 @@
+/*-
+ * #%L
+ * BigDataViewer-Playground
+ * %%
+ * Copyright (C) 2019 - 2025 Nicolas Chiaruttini, EPFL - Robert Haase, MPI CBG - Christian Tischer, EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.bdvpg.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Predicate;
+
+/**
+ * Global cache which evicts first the entries which are the cheapest to load
+ * again, relatively to their size, following the GreedyDual-Size policy. The
+ * priority of an entry is its load cost per byte, as measured by
+ * {@link GlobalLoaderCache}, plus an inflation value. When an entry is
+ * evicted, the inflation is raised to its priority, so that entries which
+ * are not accessed anymore eventually get evicted, however expensive they
+ * were. As a result, cells of derived sources (resampled, warped) which take
+ * long to compute stay longer in the cache than raw cells which are quickly
+ * read from disk. Entries put without a known cost get the average cost per
+ * byte measured so far. Values are strongly referenced.
+ *
+ * @author Nicolas Chiaruttini
+ */
+public class CostAwareGlobalCache extends AbstractGlobalCache {
+
+	final static Logger logger = LoggerFactory.getLogger(
+		CostAwareGlobalCache.class);
+
+	final Map<GlobalCacheKey, Entry> entries = new HashMap<>();
+
+	// Lowest priority first: next entry to evict
+	final TreeSet<Entry> queue = new TreeSet<>(Comparator.comparingDouble(
+		(Entry e) -> e.priority).thenComparingLong(e -> e.sequence));
+
+	long maxCacheSize;
+
+	long totalWeight = 0;
+
+	double inflation = 0;
+
+	long sequence = 0;
+
+	double meanCostPerByte = 0;
+
+	long nMeasuredCosts = 0;
+
+	CostAwareGlobalCache(long maxCacheSize, boolean log, int msBetweenLogs) {
+		this.maxCacheSize = maxCacheSize;
+
+		if (log) {
+			TimerTask periodicLogger = new TimerTask() {
+
+				@Override
+				public void run() {
+					logger.info(CostAwareGlobalCache.this.toString());
+				}
+			};
+
+			logTimer = new Timer(); // Instantiate Timer Object
+			logTimer.schedule(periodicLogger, 0, msBetweenLogs);
+		}
+	}
+
+	@Override
+	public void setMaxSize(long maxCacheSize) {
+		List<Entry> evictedEntries;
+		synchronized (this) {
+			this.maxCacheSize = maxCacheSize;
+			evictedEntries = evictIfNecessary();
+		}
+		forward(evictedEntries);
+	}
+
+	@Override
+	public void put(GlobalCacheKey key, Object value) {
+		put(key, value, -1);
+	}
+
+	@Override
+	public void put(GlobalCacheKey key, Object value, long loadCostInNanos) {
+		evictDemotedIfNecessary(value);
+		List<Entry> evictedEntries;
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null) {
+				if (loadCostInNanos >= 0) entry.costPerByte = costPerByte(
+					loadCostInNanos, entry.weight);
+				refresh(entry);
+				return;
+			}
+			long weight = getWeight(value);
+			double costPerByte = (loadCostInNanos >= 0) ? costPerByte(
+				loadCostInNanos, weight) : meanCostPerByte;
+			entry = new Entry(key, value, weight, costPerByte);
+			entry.priority = inflation + costPerByte;
+			entry.sequence = sequence++;
+			entries.put(key, entry);
+			queue.add(entry);
+			index.add(key);
+			totalWeight += weight;
+			evictedEntries = evictIfNecessary();
+		}
+		forward(evictedEntries);
+	}
+
+	private double costPerByte(long loadCostInNanos, long weight) {
+		double costPerByte = (double) loadCostInNanos / (double) Math.max(1,
+			weight);
+		// Running mean over the last thousand measures, roughly
+		nMeasuredCosts = Math.min(nMeasuredCosts + 1, 1000);
+		meanCostPerByte += (costPerByte - meanCostPerByte) / nMeasuredCosts;
+		return costPerByte;
+	}
+
+	// The priority of an entry can't be modified while it is in the queue
+	private void refresh(Entry entry) {
+		queue.remove(entry);
+		entry.priority = inflation + entry.costPerByte;
+		entry.sequence = sequence++;
+		queue.add(entry);
+	}
+
+	@Override
+	public Object get(GlobalCacheKey key) throws ExecutionException {
+		return getIfPresent(key);
+	}
+
+	@Override
+	synchronized public Object getIfPresent(GlobalCacheKey key) {
+		Entry entry = entries.get(key);
+		if (entry == null) return getFromNextTier(key);
+		refresh(entry);
+		return entry.value;
+	}
+
+	@Override
+	synchronized protected long purge(GlobalCacheKey key) {
+		Entry entry = entries.remove(key);
+		if (entry != null) {
+			queue.remove(entry);
+			totalWeight -= entry.weight;
+		}
+		index.remove(key);
+		invalidateNextTier(key);
+		return (entry == null) ? 0 : entry.weight;
+	}
+
+	@Override
+	synchronized public void invalidateIf(long parallelismThreshold,
+		Predicate<GlobalCacheKey> condition)
+	{
+		Iterator<Entry> it = queue.iterator();
+		while (it.hasNext()) {
+			Entry entry = it.next();
+			if (condition.test(entry.key)) {
+				it.remove();
+				entries.remove(entry.key);
+				index.remove(entry.key);
+				totalWeight -= entry.weight;
+			}
+		}
+		invalidateNextTierIf(condition);
+	}
+
+	@Override
+	synchronized public void invalidateAll(long parallelismThreshold) {
+		entries.clear();
+		queue.clear();
+		index.clear();
+		totalWeight = 0;
+		invalidateNextTierAll();
+	}
+
+	@Override
+	public long getMaxSize() {
+		return maxCacheSize;
+	}
+
+	@Override
+	public long getEstimatedSize() {
+		return totalWeight;
+	}
+
+	@Override
+	synchronized protected void forEachKey(
+		ObjLongConsumer<GlobalCacheKey> consumer)
+	{
+		queue.forEach(entry -> consumer.accept(entry.key, entry.weight));
+	}
+
+	@Override
+	synchronized public boolean refresh(GlobalCacheKey key) {
+		Entry entry = entries.get(key);
+		if (entry == null) return false;
+		refresh(entry);
+		return true;
+	}
+
+	// Not synchronized: put evicts outside of the lock
+	@Override
+	public <V> void touch(GlobalCacheKey key, V value) {
+		if (!refresh(key)) put(key, value);
+	}
+
+	/**
+	 * Should be called with the lock held. The entries evicted are returned,
+	 * to be forwarded to the next tier once the lock is released.
+	 */
+	private List<Entry> evictIfNecessary() {
+		List<Entry> evictedEntries = new ArrayList<>();
+		while ((totalWeight > maxCacheSize) && (!queue.isEmpty())) {
+			Entry entry = queue.pollFirst();
+			entries.remove(entry.key);
+			index.remove(entry.key);
+			totalWeight -= entry.weight;
+			inflation = entry.priority;
+			evictedEntries.add(entry);
+		}
+		return evictedEntries;
+	}
+
+	private void forward(List<Entry> evictedEntries) {
+		evictedEntries.forEach(e -> evicted(e.key, e.value, e.weight));
+	}
+
+	static class Entry {
+
+		final GlobalCacheKey key;
+
+		final Object value;
+
+		final long weight;
+
+		double costPerByte;
+
+		double priority;
+
+		long sequence;
+
+		Entry(GlobalCacheKey key, Object value, long weight, double costPerByte) {
+			this.key = key;
+			this.value = value;
+			this.weight = weight;
+			this.costPerByte = costPerByte;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Cache size : " + (totalWeight / (1024 * 1024)) + " Mb (" +
+			(int) (100.0 * (double) totalWeight / (double) maxCacheSize) +
+			" %), mean load cost " + String.format("%.1f", meanCostPerByte * 1024 *
+				1024 / 1e6) + " ms/Mb";
+	}
+
+}
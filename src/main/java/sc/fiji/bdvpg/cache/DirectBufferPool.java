@@ -0,0 +1,135 @@
+/*-
+ * #%L
+ * BigDataViewer-Playground
+ * %%
+ * Copyright (C) 2019 - 2025 Nicolas Chiaruttini, EPFL - Robert Haase, MPI CBG - Christian Tischer, EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.bdvpg.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Recycles direct {@link ByteBuffer}s of identical capacities. Cell payloads
+ * of a given source usually all have the same size, so most buffers released
+ * by an eviction are immediately reused by the next cell put in the cache.
+ * Buffers which are not kept in the pool are freed explicitly, without waiting
+ * for the garbage collector, when the JVM allows it. Not thread safe: callers
+ * synchronize on their own lock.
+ *
+ * @author Nicolas Chiaruttini
+ */
+class DirectBufferPool {
+
+	final static Logger logger = LoggerFactory.getLogger(DirectBufferPool.class);
+
+	final Map<Integer, ArrayDeque<ByteBuffer>> freeBuffers = new HashMap<>();
+
+	long maxPooledBytes;
+
+	long pooledBytes = 0;
+
+	DirectBufferPool(long maxPooledBytes) {
+		this.maxPooledBytes = maxPooledBytes;
+	}
+
+	ByteBuffer acquire(int capacity) {
+		ArrayDeque<ByteBuffer> buffers = freeBuffers.get(capacity);
+		if ((buffers != null) && (!buffers.isEmpty())) {
+			pooledBytes -= capacity;
+			ByteBuffer buffer = buffers.pop();
+			buffer.clear();
+			return buffer;
+		}
+		return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+	}
+
+	void release(ByteBuffer buffer) {
+		if (pooledBytes + buffer.capacity() <= maxPooledBytes) {
+			freeBuffers.computeIfAbsent(buffer.capacity(), c -> new ArrayDeque<>())
+				.push(buffer);
+			pooledBytes += buffer.capacity();
+		}
+		else {
+			free(buffer);
+		}
+	}
+
+	void setMaxPooledBytes(long maxPooledBytes) {
+		this.maxPooledBytes = maxPooledBytes;
+		if (pooledBytes > maxPooledBytes) clear();
+	}
+
+	void clear() {
+		freeBuffers.values().forEach(buffers -> buffers.forEach(
+			DirectBufferPool::free));
+		freeBuffers.clear();
+		pooledBytes = 0;
+	}
+
+	// --- Explicit release of direct memory
+
+	private static final Object unsafe;
+
+	private static final Method invokeCleaner;
+
+	static {
+		Object theUnsafe = null;
+		Method cleaner = null;
+		try { // Java 9+
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			theUnsafe = field.get(null);
+			cleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+		}
+		catch (Exception e) {
+			logger.debug(
+				"Direct buffers can't be freed explicitly, they will be freed on garbage collection");
+		}
+		unsafe = theUnsafe;
+		invokeCleaner = cleaner;
+	}
+
+	static void free(ByteBuffer buffer) {
+		if ((invokeCleaner == null) || (!buffer.isDirect())) return;
+		try {
+			invokeCleaner.invoke(unsafe, buffer);
+		}
+		catch (Exception e) {
+			logger.debug("Could not free direct buffer: " + e.getMessage());
+		}
+	}
+
+}
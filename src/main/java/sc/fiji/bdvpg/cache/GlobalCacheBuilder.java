@@ -32,6 +32,10 @@ package sc.fiji.bdvpg.cache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Objects;
+
 public class GlobalCacheBuilder {
 
 	final static Logger logger = LoggerFactory.getLogger(
@@ -39,6 +43,9 @@ public class GlobalCacheBuilder {
 
 	final public static String LINKED_HASH_MAP = "LinkedHashMap";
 	final public static String CAFFEINE = "Caffeine";
+	final public static String OFF_HEAP = "OffHeap";
+	final public static String STRIPED = "Striped";
+	final public static String COST_AWARE = "CostAware";
 
 	final static double defaultPolicyRatio = 0.5;
 
@@ -57,8 +64,32 @@ public class GlobalCacheBuilder {
 	// Policy three : specify the amount of ram not used for caching
 	private long memoryInBytesForEverythingElse = -1;
 
+	// Optional disk spill tier, disabled if the size is negative
+	private String spillDirectory = System.getProperty("java.io.tmpdir");
+
+	private long spillMemoryInBytes = -1;
+
+	// Optional compressed tier, before the disk spill, disabled if negative
+	private long compressedMemoryInBytes = -1;
+
+	// If true, the cache size computed above is a maximum, reduced when the
+	// rest of the application needs memory
+	private boolean adaptiveBudget = false;
+
+	// Fetcher threads shared by all sources, default if negative
+	private int ioFetcherThreads = -1;
+
+	private int cpuFetcherThreads = -1;
+
+	// Root directory of the on-disk stores of derived sources, disabled if null
+	private String persistentStoreDirectory = null;
+
 	transient long maxAvailableMemoryInBytes;
 
+	// True if maxAvailableMemoryInBytes was given, false if it was computed
+	// from the heap size
+	private transient boolean explicitMaxAvailableMemory = false;
+
 	String cacheType = CAFFEINE;
 
 	protected GlobalCacheBuilder() {
@@ -75,6 +106,7 @@ public class GlobalCacheBuilder {
 
 	protected GlobalCacheBuilder(long maxAvailableMemoryInBytes) {
 		this.maxAvailableMemoryInBytes = maxAvailableMemoryInBytes;
+		this.explicitMaxAvailableMemory = true;
 	}
 
 	// Accessors for the scijava cache option command
@@ -102,6 +134,34 @@ public class GlobalCacheBuilder {
 		return memoryRatioForCache;
 	}
 
+	public String getSpillDirectory() {
+		return spillDirectory;
+	}
+
+	public long getSpillMemoryInBytes() {
+		return spillMemoryInBytes;
+	}
+
+	public long getCompressedMemoryInBytes() {
+		return compressedMemoryInBytes;
+	}
+
+	public boolean getAdaptiveBudget() {
+		return adaptiveBudget;
+	}
+
+	public int getIOFetcherThreads() {
+		return ioFetcherThreads;
+	}
+
+	public int getCPUFetcherThreads() {
+		return cpuFetcherThreads;
+	}
+
+	public String getPersistentStoreDirectory() {
+		return persistentStoreDirectory;
+	}
+
 	// builder methods
 	public static GlobalCacheBuilder builder() {
 		return new GlobalCacheBuilder();
@@ -132,6 +192,41 @@ public class GlobalCacheBuilder {
 		return this;
 	}
 
+	/**
+	 * Concurrent LRU cache split in independently locked segments, see
+	 * {@link StripedGlobalCache}
+	 * 
+	 * @return the builder
+	 */
+	public GlobalCacheBuilder striped() {
+		cacheType = STRIPED;
+		return this;
+	}
+
+	/**
+	 * Evicts first the cells which are the cheapest to load again, see
+	 * {@link CostAwareGlobalCache}
+	 * 
+	 * @return the builder
+	 */
+	public GlobalCacheBuilder costAware() {
+		cacheType = COST_AWARE;
+		return this;
+	}
+
+	/**
+	 * Keeps the cached cells outside of the java heap, see
+	 * {@link OffHeapGlobalCache}. The memory policy is applied in the same way,
+	 * but the budget is then taken from the direct memory of the JVM: half of
+	 * the direct memory limit is available, instead of half of the heap.
+	 * 
+	 * @return the builder
+	 */
+	public GlobalCacheBuilder offHeap() {
+		cacheType = OFF_HEAP;
+		return this;
+	}
+
 	public GlobalCacheBuilder memoryRatioForCache(double ratio) {
 		memoryRatioForCache = ratio;
 		memoryInBytesForCache = -1;
@@ -153,8 +248,43 @@ public class GlobalCacheBuilder {
 		return this;
 	}
 
-	public AbstractGlobalCache create() {
+	/**
+	 * Adds a second tier to the cache: evicted cells are written to memory-mapped
+	 * files in the specified directory, and read back from there instead of
+	 * being loaded again, see {@link MappedFileCellTier}
+	 * 
+	 * @param directory scratch directory, ideally on a local SSD
+	 * @param nBytes maximal number of bytes written on disk, negative to disable
+	 * @return the builder
+	 */
+	public GlobalCacheBuilder diskSpill(String directory, long nBytes) {
+		spillDirectory = directory;
+		spillMemoryInBytes = nBytes;
+		return this;
+	}
+
+	/**
+	 * Adds a compressed tier to the cache: evicted cells are kept compressed in
+	 * memory, and decompressed instead of being loaded again, see
+	 * {@link CompressedCellTier}. If a disk spill is set as well, cells evicted
+	 * from the compressed tier are spilled to disk.
+	 * 
+	 * @param nBytes maximal number of bytes used by the compressed cells,
+	 *          negative to disable. Not counted in the cache size.
+	 * @return the builder
+	 */
+	public GlobalCacheBuilder compressedTier(long nBytes) {
+		compressedMemoryInBytes = nBytes;
+		return this;
+	}
+
+	/**
+	 * @return the cache size in bytes resulting from the memory policy of this
+	 *         builder
+	 */
+	public long computeCacheSize() {
 		long cacheSize;
+		long maxAvailableMemoryInBytes = getMaxAvailableMemory();
 
 		if (memoryRatioForCache > 0) {
 			cacheSize = (long) (memoryRatioForCache * maxAvailableMemoryInBytes);
@@ -187,16 +317,122 @@ public class GlobalCacheBuilder {
 			" Mb available (" + (int) (100.0 * (cacheSize / (1024.0 * 1024.0)) /
 				(maxAvailableMemoryInBytes / (1024.0 * 1024.0))) + "%)");
 
+		return cacheSize;
+	}
+
+	/**
+	 * @return the memory from which the cache size is computed: the cells of an
+	 *         off-heap cache live in direct memory, so unless a maximum was given
+	 *         explicitly, it is half of the direct memory limit instead of half
+	 *         of the heap
+	 */
+	long getMaxAvailableMemory() {
+		if (OFF_HEAP.equals(cacheType) && (!explicitMaxAvailableMemory)) {
+			return OffHeapGlobalCache.maxDirectMemory() / 2;
+		}
+		return maxAvailableMemoryInBytes;
+	}
+
+	/**
+	 * @param other another builder
+	 * @return true if a cache built by the other builder would only differ by
+	 *         its size, in which case the existing cache can simply be resized
+	 */
+	public boolean isResizeOf(GlobalCacheBuilder other) {
+		return cacheType.equals(other.cacheType) && (log == other.log) &&
+			(msBetweenLog == other.msBetweenLog) &&
+			(adaptiveBudget == other.adaptiveBudget) &&
+			(spillMemoryInBytes == other.spillMemoryInBytes) &&
+			(compressedMemoryInBytes == other.compressedMemoryInBytes) &&
+			Objects.equals(spillDirectory, other.spillDirectory);
+	}
+
+	/**
+	 * Makes the cache size follow the memory pressure: the size resulting from
+	 * the memory policy becomes a maximum, and the cache shrinks when the heap
+	 * used after garbage collections leaves not enough room for it, see
+	 * {@link AdaptiveCacheBudget}
+	 * 
+	 * @param adaptiveBudget true to adapt the cache size
+	 * @return the builder
+	 */
+	public GlobalCacheBuilder adaptiveBudget(boolean adaptiveBudget) {
+		this.adaptiveBudget = adaptiveBudget;
+		return this;
+	}
+
+	/**
+	 * Sets the number of threads of the fetch queues shared by all sources, see
+	 * {@link SharedFetchQueues}
+	 * 
+	 * @param nIOThreads threads reading datasets, default if negative
+	 * @param nCPUThreads threads computing derived sources, default if negative
+	 * @return the builder
+	 */
+	public GlobalCacheBuilder fetcherThreads(int nIOThreads, int nCPUThreads) {
+		ioFetcherThreads = nIOThreads;
+		cpuFetcherThreads = nCPUThreads;
+		return this;
+	}
+
+	/**
+	 * Keeps the cells of cached derived sources on disk across sessions, see
+	 * {@link PersistentCellStore}
+	 * 
+	 * @param directory root directory of the stores, null to disable
+	 * @return the builder
+	 */
+	public GlobalCacheBuilder persistentStore(String directory) {
+		persistentStoreDirectory = directory;
+		return this;
+	}
+
+	public AbstractGlobalCache create() {
+		long cacheSize = computeCacheSize();
+
+		AbstractGlobalCache cache;
 		switch (cacheType) {
 			case CAFFEINE:
-				return new CaffeineGlobalCache(cacheSize, log, msBetweenLog);
+				cache = new CaffeineGlobalCache(cacheSize, log, msBetweenLog);
+				break;
 			case LINKED_HASH_MAP:
-				return new BoundedLinkedHashMapGlobalCache(100, cacheSize, log,
+				cache = new BoundedLinkedHashMapGlobalCache(100, cacheSize, log,
 					msBetweenLog);
+				break;
+			case OFF_HEAP:
+				cache = new OffHeapGlobalCache(cacheSize, log, msBetweenLog);
+				break;
+			case STRIPED:
+				cache = new StripedGlobalCache(StripedGlobalCache
+					.defaultNumberOfSegments(), cacheSize, log, msBetweenLog);
+				break;
+			case COST_AWARE:
+				cache = new CostAwareGlobalCache(cacheSize, log, msBetweenLog);
+				break;
 			default:
 				throw new UnsupportedOperationException("Cannot create cache of type " +
 					cacheType);
 		}
+
+		CacheTier tier = null;
+		if ((spillMemoryInBytes > 0) && (spillDirectory != null)) {
+			try {
+				tier = new MappedFileCellTier(Paths.get(spillDirectory),
+					spillMemoryInBytes);
+			}
+			catch (IOException e) {
+				logger.error("Could not create disk spill tier in " + spillDirectory +
+					": " + e.getMessage());
+			}
+		}
+		if (compressedMemoryInBytes > 0) {
+			tier = new CompressedCellTier(compressedMemoryInBytes, tier);
+		}
+		cache.setNextTier(tier);
+
+		if (adaptiveBudget) AdaptiveCacheBudget.attach(cache, cacheSize);
+
+		return cache;
 	}
 
 }
@@ -29,59 +29,271 @@
 
 package sc.fiji.bdvpg.cache;
 
+import bdv.img.cache.VolatileGlobalCellCache;
+
 import java.lang.ref.WeakReference;
 
+/**
+ * Key of the global cache. A key is made of a {@link Scope} - a source, a
+ * timepoint and a resolution level, shared by all the keys of a
+ * {@link GlobalLoaderCache} - and of the key of the value within this scope.
+ * Cell keys, which are long indices, are stored as primitives: a key then
+ * holds no reference to a boxed index, and remains valid as long as its
+ * source is alive. Other keys are weakly referenced. Lookups can be done
+ * without allocating, with a per-thread probe key (see {@link #probe()}),
+ * which should never be stored: {@link #copy()} creates a key that can be
+ * put in a cache.
+ *
+ * @author Nicolas Chiaruttini
+ */
 public class GlobalCacheKey {
 
-	private final WeakReference<Object> source;
+	/**
+	 * Source, timepoint and level shared by many keys
+	 */
+	static final class Scope {
+
+		final WeakReference<Object> source;
+
+		final int sourceIdentity;
+
+		final int timepoint;
+
+		final int level;
+
+		// On-disk store of the values of this scope, null if not persisted
+		final PersistentCellStore store;
+
+		Scope(final Object source, final int timepoint, final int level) {
+			this(source, timepoint, level, null);
+		}
+
+		Scope(final Object source, final int timepoint, final int level,
+			final PersistentCellStore store)
+		{
+			this.source = new WeakReference<>(source);
+			this.sourceIdentity = System.identityHashCode(source);
+			this.timepoint = timepoint;
+			this.level = level;
+			this.store = store;
+		}
+
+		boolean matches(final Scope that) {
+			if (this == that) return true;
+			return (this.sourceIdentity == that.sourceIdentity) &&
+				(this.timepoint == that.timepoint) && (this.level == that.level) &&
+				(this.source.get() == that.source.get());
+		}
+	}
+
+	private static final ThreadLocal<GlobalCacheKey> probes = ThreadLocal
+		.withInitial(GlobalCacheKey::new);
+
+	// Fields are only mutated in probe keys
+	private Scope scope;
+
+	private long index;
 
-	private final int timepoint;
+	// Weak reference to a non primitive key, null for primitive keys
+	private WeakReference<Object> key;
 
-	private final int level;
+	// Non primitive key of a probe, strongly referenced only during a lookup
+	private Object probeKey;
 
-	public final WeakReference<Object> key;
+	private int hashcode;
+
+	// Timepoint of the value: the one of the scope, or, for the cells of a
+	// spimdata, which share a single scope, the one of the bdv cell key
+	private int cellTimepoint;
+
+	private GlobalCacheKey() {}
 
 	public GlobalCacheKey(final Object source, final int timepoint,
 		final int level, final Object key)
 	{
-		this.source = new WeakReference<>(source);
-		this.timepoint = timepoint;
-		this.level = level;
-		this.key = new WeakReference<>(key);
+		this(new Scope(source, timepoint, level), key);
+	}
+
+	GlobalCacheKey(final Scope scope, final Object key) {
+		if (key instanceof Long) {
+			set(scope, ((Long) key).longValue());
+		}
+		else {
+			this.scope = scope;
+			this.key = new WeakReference<>(key);
+			this.hashcode = hash(scope, key.hashCode());
+			this.cellTimepoint = cellTimepoint(scope, key);
+		}
+	}
+
+	GlobalCacheKey(final Scope scope, final long index) {
+		set(scope, index);
+	}
 
-		int value = source.hashCode();
-		value = 31 * value + level;
-		value = 31 * value + key.hashCode();
-		value = 31 * value + timepoint;
-		hashcode = value;
+	/**
+	 * @return a reusable key of the current thread, for lookups only
+	 */
+	static GlobalCacheKey probe() {
+		return probes.get();
+	}
+
+	GlobalCacheKey set(final Scope scope, final long index) {
+		this.scope = scope;
+		this.index = index;
+		this.key = null;
+		this.probeKey = null;
+		this.hashcode = hash(scope, Long.hashCode(index));
+		this.cellTimepoint = scope.timepoint;
+		return this;
+	}
+
+	/**
+	 * Only for probe keys: the key is not wrapped in a weak reference
+	 */
+	GlobalCacheKey set(final Scope scope, final Object key) {
+		if (key instanceof Long) return set(scope, ((Long) key).longValue());
+		this.scope = scope;
+		this.index = 0;
+		this.key = null;
+		this.probeKey = key;
+		this.hashcode = hash(scope, key.hashCode());
+		this.cellTimepoint = cellTimepoint(scope, key);
+		return this;
+	}
+
+	/**
+	 * @return a key equal to this one, which can be stored
+	 */
+	GlobalCacheKey copy() {
+		if (probeKey != null) return new GlobalCacheKey(scope, probeKey);
+		final GlobalCacheKey copy = new GlobalCacheKey();
+		copy.scope = scope;
+		copy.index = index;
+		copy.key = key;
+		copy.hashcode = hashcode;
+		copy.cellTimepoint = cellTimepoint;
+		return copy;
+	}
+
+	private boolean isPrimitive() {
+		return (key == null) && (probeKey == null);
+	}
+
+	private Object keyObject() {
+		return (probeKey != null) ? probeKey : (key == null) ? null : key.get();
+	}
+
+	private static int cellTimepoint(final Scope scope, final Object key) {
+		if ((scope.timepoint < 0) && (key instanceof VolatileGlobalCellCache.Key)) {
+			return ((VolatileGlobalCellCache.Key) key).getTimepoint();
+		}
+		return scope.timepoint;
+	}
+
+	private static int hash(final Scope scope, final int keyHash) {
+		int value = scope.sourceIdentity;
+		value = 31 * value + scope.level;
+		value = 31 * value + keyHash;
+		value = 31 * value + scope.timepoint;
+		return value;
+	}
+
+	/**
+	 * @return the source of this key, or null if it has been garbage collected
+	 */
+	public Object getSource() {
+		return scope.source.get();
+	}
+
+	public int getTimepoint() {
+		return scope.timepoint;
+	}
+
+	public int getLevel() {
+		return scope.level;
+	}
+
+	/**
+	 * @return the timepoint of the value, which, unlike
+	 *         {@link #getTimepoint()}, is also known for the cells of a
+	 *         spimdata; negative if the value is not specific to a timepoint
+	 */
+	int getCellTimepoint() {
+		return cellTimepoint;
+	}
+
+	int getSourceIdentity() {
+		return scope.sourceIdentity;
+	}
+
+	/**
+	 * @return true if the values of this key can be written to an on-disk
+	 *         store, see {@link PersistentCellStore}. Only cell indices are
+	 *         persisted.
+	 */
+	boolean isPersistent() {
+		return (scope.store != null) && isPrimitive();
+	}
+
+	/**
+	 * Writes a value of this key to the on-disk store of its scope, if it is
+	 * persistent. Called on eviction: the value is dropped if the store is
+	 * saturated.
+	 *
+	 * @param value value to write
+	 */
+	void persist(final Object value) {
+		if ((value != null) && isPersistent()) {
+			scope.store.write(scope.level, index, value);
+		}
+	}
+
+	/**
+	 * Same as {@link #persist(Object)}, but the value is written by the caller
+	 * if the store is saturated, see {@link PersistentCellStore#save}
+	 *
+	 * @param value value to write
+	 */
+	void save(final Object value) {
+		if ((value != null) && isPersistent()) {
+			scope.store.save(scope.level, index, value);
+		}
+	}
+
+	/**
+	 * @return the key of the value within its source, timepoint and level, or
+	 *         null if it has been garbage collected
+	 */
+	public Object getKey() {
+		return isPrimitive() ? Long.valueOf(index) : keyObject();
 	}
 
 	public boolean partialEquals(final Object source, final int timepoint,
 		final int level)
 	{
-		if (this.source.get() == null) return false;
-		if (key.get() == null) return false;
+		final Object thisSource = scope.source.get();
+		if (thisSource == null) return false;
+		if ((!isPrimitive()) && (keyObject() == null)) return false;
 
-		return (this.source.get() == source) && (this.timepoint == timepoint) &&
-			(this.level == level);
+		return (thisSource == source) && (scope.timepoint == timepoint) &&
+			(scope.level == level);
 	}
 
 	@Override
 	public boolean equals(final Object other) {
-		if (source.get() == null) return false;
-		if (key.get() == null) return false;
-
-		if (this == other) return true;
+		if (this == other) return true; // Even if the references are cleared
 		if (!(other instanceof GlobalCacheKey)) return false;
 		final GlobalCacheKey that = (GlobalCacheKey) other;
+		if (this.hashcode != that.hashcode) return false;
+		if (scope.source.get() == null) return false;
+		if (!scope.matches(that.scope)) return false;
 
-		return (this.source.get() == that.source.get()) &&
-			(this.timepoint == that.timepoint) && (this.level == that.level) &&
-			(this.key.get().equals(that.key.get()));
+		if (isPrimitive()) return that.isPrimitive() && (index == that.index);
+		if (that.isPrimitive()) return false;
+		final Object thisKey = keyObject();
+		return (thisKey != null) && thisKey.equals(that.keyObject());
 	}
 
-	final int hashcode;
-
 	@Override
 	public int hashCode() {
 		return hashcode;
@@ -0,0 +1,158 @@
+/*-
+ * #%L
+ * BigDataViewer-Playground
+ * %%
+ * Copyright (C) 2019 - 2025 Nicolas Chiaruttini, EPFL - Robert Haase, MPI CBG - Christian Tischer, EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.bdvpg.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Secondary index of the keys held in a global cache, grouped by source,
+ * timepoint and resolution level. It allows to invalidate the entries of a
+ * single source in a time proportional to the number of entries of this
+ * source, instead of scanning the whole cache. Sources are indexed by their
+ * identity hash code, so that no reference to the source is kept by the index;
+ * keys are filtered on retrieval in case of hash collision. Updates of a given
+ * source are serialized, updates of different sources are concurrent. Keys
+ * are also grouped by timepoint, whatever their source.
+ *
+ * @author Nicolas Chiaruttini
+ */
+class GlobalCacheKeyIndex {
+
+	final ConcurrentHashMap<Integer, Map<Long, Set<GlobalCacheKey>>> index =
+		new ConcurrentHashMap<>();
+
+	// Keys of all sources grouped by timepoint, for the eviction during a
+	// playback, see GlobalCacheKey#getCellTimepoint. Keys which are not
+	// specific to a timepoint are not included
+	final ConcurrentHashMap<Integer, Set<GlobalCacheKey>> byTimepoint =
+		new ConcurrentHashMap<>();
+
+	void add(GlobalCacheKey key) {
+		index.compute(key.getSourceIdentity(), (id, slots) -> {
+			if (slots == null) slots = new HashMap<>();
+			slots.computeIfAbsent(slot(key.getTimepoint(), key.getLevel()),
+				s -> new HashSet<>()).add(key);
+			return slots;
+		});
+		if (key.getCellTimepoint() >= 0) {
+			byTimepoint.compute(key.getCellTimepoint(), (t, keys) -> {
+				if (keys == null) keys = ConcurrentHashMap.newKeySet();
+				keys.add(key);
+				return keys;
+			});
+		}
+	}
+
+	void remove(GlobalCacheKey key) {
+		index.computeIfPresent(key.getSourceIdentity(), (id, slots) -> {
+			long slot = slot(key.getTimepoint(), key.getLevel());
+			Set<GlobalCacheKey> keys = slots.get(slot);
+			if (keys != null) {
+				keys.remove(key);
+				if (keys.isEmpty()) slots.remove(slot);
+			}
+			return slots.isEmpty() ? null : slots;
+		});
+		if (key.getCellTimepoint() >= 0) {
+			byTimepoint.computeIfPresent(key.getCellTimepoint(), (t, keys) -> {
+				keys.remove(key);
+				return keys.isEmpty() ? null : keys;
+			});
+		}
+	}
+
+	/**
+	 * @return a snapshot of the keys of a source at a given timepoint and level
+	 */
+	List<GlobalCacheKey> keysOf(Object source, int timepoint, int level) {
+		List<GlobalCacheKey> result = new ArrayList<>();
+		index.computeIfPresent(System.identityHashCode(source), (id, slots) -> {
+			Set<GlobalCacheKey> keys = slots.get(slot(timepoint, level));
+			if (keys != null) {
+				for (GlobalCacheKey key : keys) {
+					if (key.partialEquals(source, timepoint, level)) result.add(key);
+				}
+			}
+			return slots;
+		});
+		return result;
+	}
+
+	/**
+	 * @return a snapshot of the keys of a source, for all timepoints and levels
+	 */
+	List<GlobalCacheKey> keysOf(Object source) {
+		List<GlobalCacheKey> result = new ArrayList<>();
+		index.computeIfPresent(System.identityHashCode(source), (id, slots) -> {
+			for (Set<GlobalCacheKey> keys : slots.values()) {
+				for (GlobalCacheKey key : keys) {
+					if (key.getSource() == source) result.add(key);
+				}
+			}
+			return slots;
+		});
+		return result;
+	}
+
+	/**
+	 * @return a snapshot of the timepoints of the keys held, negative
+	 *         timepoints excluded
+	 */
+	List<Integer> timepoints() {
+		return new ArrayList<>(byTimepoint.keySet());
+	}
+
+	/**
+	 * @return the keys, of all sources, of a timepoint: a live view, which can
+	 *         be iterated while keys are added or removed
+	 */
+	Collection<GlobalCacheKey> keysAt(int timepoint) {
+		final Set<GlobalCacheKey> keys = byTimepoint.get(timepoint);
+		return (keys == null) ? Collections.emptySet() : keys;
+	}
+
+	void clear() {
+		index.clear();
+		byTimepoint.clear();
+	}
+
+	private static long slot(int timepoint, int level) {
+		return (((long) timepoint) << 32) | (level & 0xFFFFFFFFL);
+	}
+
+}
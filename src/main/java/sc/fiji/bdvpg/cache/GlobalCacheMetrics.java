@@ -0,0 +1,384 @@
+/*-
+ * #%L
+ * BigDataViewer-Playground
+ * %%
+ * Copyright (C) 2019 - 2025 Nicolas Chiaruttini, EPFL - Robert Haase, MPI CBG - Christian Tischer, EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.bdvpg.cache;
+
+import bdv.viewer.Source;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hit, miss, load and eviction counters of the global cache, with load
+ * latency histograms, in total and broken down per source and resolution
+ * level. Hits and loads are recorded by {@link GlobalLoaderCache}, evictions by
+ * the {@link AbstractGlobalCache} implementations. The memory reclaimed by
+ * purging the entries of sources which are not used anymore is counted in
+ * total only, see {@link AbstractGlobalCache#invalidateSource(Object)}. The
+ * latency histogram has
+ * {@link #N_LATENCY_BUCKETS} buckets: bucket i counts the loads which took
+ * between 2^i and 2^(i+1) microseconds (the first bucket also counts faster
+ * loads, the last bucket also counts slower loads). All counters are
+ * lock-free. The counters of a source are held in a weak identity map: they
+ * are dropped when the source is purged or garbage collected.
+ *
+ * @author Nicolas Chiaruttini
+ */
+public class GlobalCacheMetrics {
+
+	public final static int N_LATENCY_BUCKETS = 24;
+
+	final Counters total = new Counters("All sources", -1);
+
+	// Counters of each source, indexed by identity hash code. Sources sharing a
+	// hash code are told apart by identity
+	final ConcurrentHashMap<Integer, List<SourceCounters>> perSource =
+		new ConcurrentHashMap<>();
+
+	// Counters of the entries whose source has been garbage collected
+	final ConcurrentHashMap<Integer, Counters> collected =
+		new ConcurrentHashMap<>();
+
+	// Sources garbage collected, whose counters are still in the map
+	private final ReferenceQueue<Object> collectedSources =
+		new ReferenceQueue<>();
+
+	public void recordHit(Object source, int level) {
+		total.hits.increment();
+		countersOf(source, level).hits.increment();
+	}
+
+	public void recordMiss(Object source, int level) {
+		total.misses.increment();
+		countersOf(source, level).misses.increment();
+	}
+
+	public void recordLoad(Object source, int level, long loadTimeNanos) {
+		total.recordLoad(loadTimeNanos);
+		countersOf(source, level).recordLoad(loadTimeNanos);
+	}
+
+	public void recordEviction(Object source, int level, long bytes) {
+		total.recordEviction(bytes);
+		countersOf(source, level).recordEviction(bytes);
+	}
+
+	/**
+	 * Counts the memory reclaimed by purging a source
+	 *
+	 * @param bytes memory released
+	 */
+	public void recordPurge(long bytes) {
+		total.purges.increment();
+		total.reclaimedBytes.add(bytes);
+	}
+
+	/**
+	 * @return counters summed over all sources
+	 */
+	public Counters getTotal() {
+		return total;
+	}
+
+	/**
+	 * @return a snapshot of the counters of each source and level
+	 */
+	public Collection<Counters> getPerSourceLevel() {
+		expungeCollectedSources();
+		List<Counters> result = new ArrayList<>();
+		for (Integer id : perSource.keySet()) {
+			perSource.computeIfPresent(id, (i, entries) -> {
+				for (SourceCounters entry : entries) {
+					result.addAll(entry.perLevel.values());
+				}
+				return entries;
+			});
+		}
+		result.addAll(collected.values());
+		return result;
+	}
+
+	// Counters are reset in place: they may be held by loader caches
+	public void reset() {
+		total.reset();
+		for (Integer id : perSource.keySet()) {
+			perSource.computeIfPresent(id, (i, entries) -> {
+				for (SourceCounters entry : entries) {
+					entry.perLevel.values().forEach(Counters::reset);
+				}
+				return entries;
+			});
+		}
+		collected.values().forEach(Counters::reset);
+	}
+
+	/**
+	 * Drops the counters of a source, called when the source is purged from the
+	 * cache, see {@link AbstractGlobalCache#invalidateSource(Object)}. Counters
+	 * still held by a loader cache keep being updated, but are not listed
+	 * anymore.
+	 *
+	 * @param source source whose counters are removed
+	 */
+	public void removeSource(Object source) {
+		if (source == null) return;
+		perSource.computeIfPresent(System.identityHashCode(source), (id,
+			entries) -> {
+			entries.removeIf(entry -> (entry.get() == null) || (entry
+				.get() == source));
+			return entries.isEmpty() ? null : entries;
+		});
+	}
+
+	// Allocation free variants, for counters resolved once by the caller
+
+	void recordHit(Counters counters) {
+		total.hits.increment();
+		counters.hits.increment();
+	}
+
+	void recordMiss(Counters counters) {
+		total.misses.increment();
+		counters.misses.increment();
+	}
+
+	void recordLoad(Counters counters, long loadTimeNanos) {
+		total.recordLoad(loadTimeNanos);
+		counters.recordLoad(loadTimeNanos);
+	}
+
+	Counters countersOf(Object source, int level) {
+		if (source == null) {
+			return collected.computeIfAbsent(level, l -> new Counters(labelOf(null),
+				l));
+		}
+		final SourceCounters[] found = new SourceCounters[1];
+		perSource.compute(System.identityHashCode(source), (id, entries) -> {
+			if (entries == null) entries = new ArrayList<>(1);
+			for (SourceCounters entry : entries) {
+				if (entry.get() == source) {
+					found[0] = entry;
+					return entries;
+				}
+			}
+			found[0] = new SourceCounters(source, collectedSources);
+			entries.add(found[0]);
+			return entries;
+		});
+		expungeCollectedSources();
+		return found[0].perLevel.computeIfAbsent(level, l -> new Counters(labelOf(
+			source), l));
+	}
+
+	// Removes the counters of the sources which have been garbage collected
+	private void expungeCollectedSources() {
+		Reference<?> reference;
+		while ((reference = collectedSources.poll()) != null) {
+			perSource.computeIfPresent(((SourceCounters) reference).identity, (id,
+				entries) -> {
+				entries.removeIf(entry -> entry.get() == null);
+				return entries.isEmpty() ? null : entries;
+			});
+		}
+	}
+
+	/**
+	 * Counters of each level of a source, weakly referencing the source
+	 */
+	private static final class SourceCounters extends WeakReference<Object> {
+
+		final int identity;
+
+		final ConcurrentHashMap<Integer, Counters> perLevel =
+			new ConcurrentHashMap<>();
+
+		SourceCounters(Object source, ReferenceQueue<Object> queue) {
+			super(source, queue);
+			this.identity = System.identityHashCode(source);
+		}
+	}
+
+	static String labelOf(Object source) {
+		if (source == null) return "(garbage collected)";
+		if (source instanceof Source) return ((Source<?>) source).getName();
+		return source.getClass().getSimpleName() + "@" + Integer.toHexString(System
+			.identityHashCode(source));
+	}
+
+	static int latencyBucket(long nanos) {
+		long micros = Math.max(1, nanos / 1000);
+		return Math.min(N_LATENCY_BUCKETS - 1, 63 - Long.numberOfLeadingZeros(
+			micros));
+	}
+
+	/**
+	 * Counters of a source at a given level, or of all sources
+	 */
+	public static class Counters {
+
+		final String source;
+
+		final int level;
+
+		final LongAdder hits = new LongAdder();
+
+		final LongAdder misses = new LongAdder();
+
+		final LongAdder loads = new LongAdder();
+
+		final LongAdder loadTimeNanos = new LongAdder();
+
+		final LongAdder evictions = new LongAdder();
+
+		final LongAdder evictedBytes = new LongAdder();
+
+		final LongAdder purges = new LongAdder();
+
+		final LongAdder reclaimedBytes = new LongAdder();
+
+		final LongAdder[] latencyHistogram = new LongAdder[N_LATENCY_BUCKETS];
+
+		Counters(String source, int level) {
+			this.source = source;
+			this.level = level;
+			for (int i = 0; i < N_LATENCY_BUCKETS; i++) {
+				latencyHistogram[i] = new LongAdder();
+			}
+		}
+
+		void recordLoad(long nanos) {
+			loads.increment();
+			loadTimeNanos.add(nanos);
+			latencyHistogram[latencyBucket(nanos)].increment();
+		}
+
+		void recordEviction(long bytes) {
+			evictions.increment();
+			evictedBytes.add(bytes);
+		}
+
+		void reset() {
+			hits.reset();
+			misses.reset();
+			loads.reset();
+			loadTimeNanos.reset();
+			evictions.reset();
+			evictedBytes.reset();
+			purges.reset();
+			reclaimedBytes.reset();
+			for (LongAdder bucket : latencyHistogram) {
+				bucket.reset();
+			}
+		}
+
+		public String getSource() {
+			return source;
+		}
+
+		/**
+		 * @return resolution level, -1 if unknown or if all levels are counted
+		 */
+		public int getLevel() {
+			return level;
+		}
+
+		public long getHits() {
+			return hits.sum();
+		}
+
+		public long getMisses() {
+			return misses.sum();
+		}
+
+		public double getHitRatio() {
+			long h = getHits();
+			long m = getMisses();
+			return (h + m) == 0 ? 0 : (double) h / (double) (h + m);
+		}
+
+		public long getLoads() {
+			return loads.sum();
+		}
+
+		public double getAverageLoadTimeMs() {
+			long n = getLoads();
+			return n == 0 ? 0 : loadTimeNanos.sum() / (1e6 * n);
+		}
+
+		public long getEvictions() {
+			return evictions.sum();
+		}
+
+		public long getEvictedBytes() {
+			return evictedBytes.sum();
+		}
+
+		/**
+		 * @return number of sources purged, only counted in total
+		 */
+		public long getPurges() {
+			return purges.sum();
+		}
+
+		/**
+		 * @return memory released by purging sources, in bytes, only counted in
+		 *         total
+		 */
+		public long getReclaimedBytes() {
+			return reclaimedBytes.sum();
+		}
+
+		public long[] getLatencyHistogram() {
+			long[] histogram = new long[N_LATENCY_BUCKETS];
+			for (int i = 0; i < N_LATENCY_BUCKETS; i++) {
+				histogram[i] = latencyHistogram[i].sum();
+			}
+			return histogram;
+		}
+
+		@Override
+		public String toString() {
+			return source + (level >= 0 ? " [level " + level + "]" : "") +
+				" - hits: " + getHits() + ", misses: " + getMisses() + " (" +
+				(int) (100 * getHitRatio()) + " % hits), loads: " + getLoads() +
+				" (avg " + String.format("%.2f", getAverageLoadTimeMs()) +
+				" ms), evictions: " + getEvictions() + " (" + (getEvictedBytes() /
+					(1024 * 1024)) + " Mb)" + (getPurges() > 0 ? ", purged sources: " +
+						getPurges() + " (" + (getReclaimedBytes() / (1024 * 1024)) +
+						" Mb reclaimed)" : "");
+		}
+	}
+
+}
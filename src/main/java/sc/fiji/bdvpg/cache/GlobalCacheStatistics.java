@@ -0,0 +1,191 @@
+/*-
+ * #%L
+ * BigDataViewer-Playground
+ * %%
+ * Copyright (C) 2019 - 2025 Nicolas Chiaruttini, EPFL - Robert Haase, MPI CBG - Christian Tischer, EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.bdvpg.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Comparator;
+import java.util.function.Supplier;
+
+/**
+ * Exposes the metrics of the current global cache through JMX (jconsole,
+ * VisualVM, ...). The cache is fetched from a supplier at each call, so the
+ * statistics follow the global cache even if it is replaced.
+ *
+ * @author Nicolas Chiaruttini
+ */
+public class GlobalCacheStatistics implements GlobalCacheStatisticsMXBean {
+
+	final static Logger logger = LoggerFactory.getLogger(
+		GlobalCacheStatistics.class);
+
+	public final static String OBJECT_NAME = "sc.fiji.bdvpg:type=GlobalCache";
+
+	final Supplier<AbstractGlobalCache> cacheSupplier;
+
+	public GlobalCacheStatistics(Supplier<AbstractGlobalCache> cacheSupplier) {
+		this.cacheSupplier = cacheSupplier;
+	}
+
+	/**
+	 * Registers the statistics of the global cache in the platform MBean server,
+	 * replacing any previous registration
+	 *
+	 * @param cacheSupplier supplies the current global cache
+	 */
+	public static void register(Supplier<AbstractGlobalCache> cacheSupplier) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (server.isRegistered(name)) server.unregisterMBean(name);
+			server.registerMBean(new GlobalCacheStatistics(cacheSupplier), name);
+		}
+		catch (Exception e) {
+			logger.warn("Could not register cache statistics MBean: " + e
+				.getMessage());
+		}
+	}
+
+	private GlobalCacheMetrics.Counters total() {
+		return cacheSupplier.get().getMetrics().getTotal();
+	}
+
+	@Override
+	public String getCacheType() {
+		return cacheSupplier.get().getClass().getSimpleName();
+	}
+
+	@Override
+	public long getMaxSizeBytes() {
+		return cacheSupplier.get().getMaxSize();
+	}
+
+	@Override
+	public long getEstimatedSizeBytes() {
+		return cacheSupplier.get().getEstimatedSize();
+	}
+
+	@Override
+	public long getHitCount() {
+		return total().getHits();
+	}
+
+	@Override
+	public long getMissCount() {
+		return total().getMisses();
+	}
+
+	@Override
+	public double getHitRatio() {
+		return total().getHitRatio();
+	}
+
+	@Override
+	public long getLoadCount() {
+		return total().getLoads();
+	}
+
+	@Override
+	public double getAverageLoadTimeMs() {
+		return total().getAverageLoadTimeMs();
+	}
+
+	@Override
+	public long getEvictionCount() {
+		return total().getEvictions();
+	}
+
+	@Override
+	public long getEvictedBytes() {
+		return total().getEvictedBytes();
+	}
+
+	@Override
+	public long getPurgedSourceCount() {
+		return total().getPurges();
+	}
+
+	@Override
+	public long getReclaimedBytes() {
+		return total().getReclaimedBytes();
+	}
+
+	@Override
+	public long[] getLoadTimeHistogram() {
+		return total().getLatencyHistogram();
+	}
+
+	@Override
+	public String[] getPerSourceStatistics() {
+		return cacheSupplier.get().getMetrics().getPerSourceLevel().stream()
+			.sorted(Comparator.comparing(GlobalCacheMetrics.Counters::getSource)
+				.thenComparingInt(GlobalCacheMetrics.Counters::getLevel)).map(
+					GlobalCacheMetrics.Counters::toString).toArray(String[]::new);
+	}
+
+	@Override
+	public void resetStatistics() {
+		cacheSupplier.get().getMetrics().reset();
+	}
+
+	/**
+	 * @return a human readable report of the cache statistics
+	 */
+	public String report() {
+		StringBuilder builder = new StringBuilder();
+		builder.append(getCacheType()).append(" - ").append(cacheSupplier.get()
+			.toString()).append("\n");
+		if (cacheSupplier.get().getAdaptiveBudget() != null) {
+			builder.append(cacheSupplier.get().getAdaptiveBudget().toString())
+				.append("\n");
+		}
+		if (cacheSupplier.get().getNextTier() != null) {
+			builder.append(cacheSupplier.get().getNextTier().toString()).append(
+				"\n");
+		}
+		builder.append(total().toString()).append("\n");
+		builder.append("Load time histogram (us):");
+		long[] histogram = getLoadTimeHistogram();
+		for (int i = 0; i < histogram.length; i++) {
+			if (histogram[i] > 0) builder.append(" [").append(1L << i).append(
+				"-").append(1L << (i + 1)).append("[: ").append(histogram[i]);
+		}
+		builder.append("\n");
+		for (String line : getPerSourceStatistics()) {
+			builder.append(line).append("\n");
+		}
+		return builder.toString();
+	}
+
+}
@@ -0,0 +1,84 @@
+/*-
+ * #%L
+ * BigDataViewer-Playground
+ * %%
+ * Copyright (C) 2019 - 2025 Nicolas Chiaruttini, EPFL - Robert Haase, MPI CBG - Christian Tischer, EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.bdvpg.cache;
+
+/**
+ * JMX view of the global cache of BigDataViewer-Playground, registered as
+ * {@link GlobalCacheStatistics#OBJECT_NAME}, see {@link GlobalCacheMetrics}
+ *
+ * @author Nicolas Chiaruttini
+ */
+public interface GlobalCacheStatisticsMXBean {
+
+	String getCacheType();
+
+	long getMaxSizeBytes();
+
+	long getEstimatedSizeBytes();
+
+	long getHitCount();
+
+	long getMissCount();
+
+	double getHitRatio();
+
+	long getLoadCount();
+
+	double getAverageLoadTimeMs();
+
+	long getEvictionCount();
+
+	long getEvictedBytes();
+
+	/**
+	 * @return number of sources whose entries were purged when they were not
+	 *         used anymore
+	 */
+	long getPurgedSourceCount();
+
+	/**
+	 * @return memory released by purging sources, in bytes
+	 */
+	long getReclaimedBytes();
+
+	/**
+	 * @return number of loads per latency bucket, bucket i being [2^i, 2^(i+1)[
+	 *         microseconds
+	 */
+	long[] getLoadTimeHistogram();
+
+	/**
+	 * @return one line of statistics per source and resolution level
+	 */
+	String[] getPerSourceStatistics();
+
+	void resetStatistics();
+
+}
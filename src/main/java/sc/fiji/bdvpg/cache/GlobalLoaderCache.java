@@ -32,9 +32,12 @@ package sc.fiji.bdvpg.cache;
 import net.imglib2.cache.CacheLoader;
 import net.imglib2.cache.LoaderCache;
 import net.imglib2.cache.ref.WeakRefLoaderCache;
+import sc.fiji.bdvpg.services.ISourceAndConverterService;
 import sc.fiji.bdvpg.services.SourceAndConverterServices;
 
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Predicate;
 
 /**
@@ -48,12 +51,52 @@ public class GlobalLoaderCache<K, V> implements LoaderCache<K, V> {
 
 	private final LoaderCache<K, V> cache = new WeakRefLoaderCache<>();
 
-	private final AbstractGlobalCache globalCache;
-
 	private final Object source;
 
 	private final int timepoint, level;
 
+	// Shared by all the keys of this loader cache
+	private final GlobalCacheKey.Scope scope;
+
+	/**
+	 * Global cache and metrics counters of this source and level, resolved once
+	 * and updated when the global cache is replaced
+	 */
+	private static final class Binding {
+
+		final AbstractGlobalCache globalCache;
+
+		final GlobalCacheMetrics.Counters counters;
+
+		Binding(AbstractGlobalCache globalCache, Object source, int level) {
+			this.globalCache = globalCache;
+			this.counters = globalCache.getMetrics().countersOf(source, level);
+		}
+	}
+
+	private volatile Binding binding;
+
+	/**
+	 * One hit out of REFRESH_SAMPLING refreshes the recency of the value in the
+	 * global cache. Values in use, such as the cells displayed at each frame,
+	 * are hit many times, and are still refreshed often enough not to be
+	 * evicted. A value evicted while still in use is put back on a later
+	 * sampled hit.
+	 */
+	static final int REFRESH_SAMPLING = 16;
+
+	/**
+	 * Changed by each invalidation: a value fetched while an invalidation
+	 * happens may be outdated, it is then fetched again
+	 */
+	private final AtomicLong epoch = new AtomicLong();
+
+	// Set when this cache is replaced by another one of the same scope
+	private volatile boolean discarded = false;
+
+	// Uniform cells are replaced by a constant cell, see ConstantCells
+	private volatile boolean compactUniformCells = false;
+
 	/**
 	 * Creates a loader cache object for a 3D rai of a source
 	 * 
@@ -63,11 +106,28 @@ public class GlobalLoaderCache<K, V> implements LoaderCache<K, V> {
 	 * @param level resolution level
 	 */
 	public GlobalLoaderCache(Object source, int timepoint, int level) {
+		this(source, timepoint, level, null);
+	}
+
+	/**
+	 * Creates a loader cache object for a 3D rai of a source, whose cells are
+	 * kept on disk across sessions. Cells found in the store are not loaded
+	 * again, and cells evicted from the global cache are written to the store.
+	 *
+	 * @param source used in the keys of the global cache to know which object it
+	 *          belongs to
+	 * @param timepoint timepoint of the rai cached
+	 * @param level resolution level
+	 * @param store on-disk store of the cells of this timepoint, null if the
+	 *          cells are not persisted
+	 */
+	public GlobalLoaderCache(Object source, int timepoint, int level,
+		PersistentCellStore store)
+	{
 		this.source = source;
 		this.timepoint = timepoint;
 		this.level = level;
-		globalCache = SourceAndConverterServices.getSourceAndConverterService()
-			.getCache();
+		this.scope = new GlobalCacheKey.Scope(source, timepoint, level, store);
 	}
 
 	/**
@@ -77,59 +137,184 @@ public class GlobalLoaderCache<K, V> implements LoaderCache<K, V> {
 	 *          belongs to
 	 */
 	public GlobalLoaderCache(Object source) {
-		this.source = source;
-		this.timepoint = -1;
-		this.level = -1;
-		globalCache = SourceAndConverterServices.getSourceAndConverterService()
-			.getCache();
+		this(source, -1, -1);
 	}
 
+	/**
+	 * The global cache is looked up at each access, because it can be replaced
+	 * at runtime (see {@link ISourceAndConverterService#setCache})
+	 *
+	 * @return the current global cache
+	 */
+	private static AbstractGlobalCache globalCache() {
+		return SourceAndConverterServices.getSourceAndConverterService().getCache();
+	}
+
+	private Binding binding() {
+		final AbstractGlobalCache globalCache = globalCache();
+		Binding current = binding;
+		if ((current == null) || (current.globalCache != globalCache)) {
+			current = new Binding(globalCache, source, level);
+			binding = current;
+		}
+		return current;
+	}
+
+	/**
+	 * Hot path: a value held locally is not looked up in the global cache. Its
+	 * recency is only refreshed on a sample of the hits, see
+	 * {@link #REFRESH_SAMPLING}
+	 */
 	@Override
 	public V getIfPresent(final K key) {
 		final V value = cache.getIfPresent(key);
-		if (value != null) globalCache.touch(BoundedLinkedHashMapGlobalCache.getKey(
-			source, timepoint, level, key), value);
+		if (value != null) hit(key, value, binding());
 		return value;
 	}
 
+	private void hit(final K key, final V value, final Binding binding) {
+		binding.globalCache.getMetrics().recordHit(binding.counters);
+		if (ThreadLocalRandom.current().nextInt(REFRESH_SAMPLING) != 0) return;
+		final GlobalCacheKey probe = GlobalCacheKey.probe().set(scope, key);
+		if (!binding.globalCache.refresh(probe)) {
+			// Evicted from the global cache while still in use: put back
+			binding.globalCache.put(probe.copy(), value);
+		}
+	}
+
 	@Override
 	public V get(final K key, final CacheLoader<? super K, ? extends V> loader)
 		throws ExecutionException
 	{
-		final V value = cache.get(key, loader);
-		globalCache.put(BoundedLinkedHashMapGlobalCache.getKey(source, timepoint,
-			level, key), value);
-		return value;
+		final Binding binding = binding();
+		final V present = cache.getIfPresent(key);
+		if (present != null) {
+			hit(key, present, binding);
+			return present;
+		}
+		final AbstractGlobalCache globalCache = binding.globalCache;
+		final GlobalCacheMetrics metrics = globalCache.getMetrics();
+		// Only reached on a local miss. The global cache may still hold a value
+		// which is not referenced anymore locally (off-heap cache for instance):
+		// it is checked before loading
+		return cache.get(key, k -> {
+			while (true) {
+				final long loadEpoch = epoch.get();
+				final V value;
+				long loadCost = -1;
+				@SuppressWarnings("unchecked")
+				final V cached = (V) globalCache.getIfPresent(GlobalCacheKey.probe()
+					.set(scope, k));
+				final V stored = (cached == null) ? readStored(k) : null;
+				if (cached != null) {
+					metrics.recordHit(binding.counters);
+					value = cached;
+				}
+				else if (stored != null) {
+					metrics.recordHit(binding.counters);
+					value = stored;
+				}
+				else {
+					metrics.recordMiss(binding.counters);
+					final long start = System.nanoTime();
+					final V loaded = compactIfEnabled(loader.get(k));
+					loadCost = System.nanoTime() - start;
+					metrics.recordLoad(binding.counters, loadCost);
+					value = loaded;
+				}
+				if (discarded) return value; // Not shared anymore
+				if (loadCost < 0) {
+					globalCache.put(new GlobalCacheKey(scope, k), value);
+				}
+				else {
+					// The load cost is used by cost aware caches to pick what to evict
+					globalCache.put(new GlobalCacheKey(scope, k), value, loadCost);
+				}
+				if (loadEpoch == epoch.get()) return value;
+				// Invalidated meanwhile: the value may be outdated, it is fetched again
+				globalCache.invalidate(new GlobalCacheKey(scope, k));
+			}
+		});
+	}
+
+	// The global keys of the scope of this cache were all created from a K
+	@SuppressWarnings("unchecked")
+	private K keyOf(final GlobalCacheKey globalKey) {
+		return (K) globalKey.getKey();
+	}
+
+	@SuppressWarnings("unchecked")
+	private V readStored(final K key) {
+		if ((scope.store == null) || (!(key instanceof Long))) return null;
+		return compactIfEnabled((V) scope.store.read(level, (Long) key));
+	}
+
+	/**
+	 * Replaces the uniform cells loaded by a constant cell, see
+	 * {@link ConstantCells}. Only valid for read-only images: a constant cell
+	 * can't be written. Disabled by default.
+	 *
+	 * @param compactUniformCells true to compact the uniform cells
+	 */
+	public void setCompactUniformCells(boolean compactUniformCells) {
+		this.compactUniformCells = compactUniformCells;
+	}
+
+	@SuppressWarnings("unchecked")
+	private V compactIfEnabled(final V value) {
+		return compactUniformCells ? (V) ConstantCells.compact(value) : value;
 	}
 
 	@Override
-	public void persist(final K key) {}
+	public void persist(final K key) {
+		globalCache().persist(GlobalCacheKey.probe().set(scope, key));
+	}
 
 	@Override
-	public void persistIf(final Predicate<K> condition) {}
+	public void persistIf(final Predicate<K> condition) {
+		globalCache().persistIf(AbstractGlobalCache.getCondition(source,
+			timepoint, level, condition));
+	}
 
 	@Override
-	public void persistAll() {}
+	public void persistAll() {
+		persistIf(key -> true);
+	}
 
 	@Override
 	public void invalidate(final K key) {
+		epoch.incrementAndGet();
 		cache.invalidate(key);
-		globalCache.invalidate(BoundedLinkedHashMapGlobalCache.getKey(source,
-			timepoint, level, key));
+		globalCache().invalidate(new GlobalCacheKey(scope, key));
 	}
 
 	@Override
 	public void invalidateIf(final long parallelismThreshold,
 		final Predicate<K> condition)
 	{
+		epoch.incrementAndGet();
 		cache.invalidateIf(parallelismThreshold, condition);
-		globalCache.invalidateIf(BoundedLinkedHashMapGlobalCache.getCondition(
-			source, timepoint, level, condition));
+		globalCache().invalidateIf(source, timepoint, level,
+			globalKey -> condition.test(keyOf(globalKey)));
 	}
 
 	@Override
 	public void invalidateAll(final long parallelismThreshold) {
+		epoch.incrementAndGet();
 		cache.invalidateAll(parallelismThreshold);
+		globalCache().invalidateIf(source, timepoint, level, globalKey -> true);
+	}
+
+	/**
+	 * Invalidates all the values of this cache, and stops sharing values with
+	 * the global cache. To be called when this cache is replaced by another one
+	 * of the same source, timepoint and level: loads still in progress then
+	 * can't put outdated values in the global cache, where the new cache would
+	 * find them.
+	 */
+	public void discard() {
+		discarded = true;
+		invalidateAll();
 	}
 
 }
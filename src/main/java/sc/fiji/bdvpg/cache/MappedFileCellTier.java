@@ -0,0 +1,295 @@
+/*-
+ * #%L
+ * BigDataViewer-Playground
+ * %%
+ * Copyright (C) 2019 - 2025 Nicolas Chiaruttini, EPFL - Robert Haase, MPI CBG - Christian Tischer, EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.bdvpg.cache;
+
+import net.imglib2.img.cell.Cell;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * {@link CacheTier} which spills evicted cells to a local scratch directory,
+ * through memory-mapped segment files. Each segment file is divided into slots
+ * of identical size (the payload size rounded up to a power of two), so that
+ * the slot of an evicted cell can be directly reused by another cell of the
+ * same size class. Cells are evicted in least recently used order, and the
+ * total size of the segment files never exceeds the budget of the tier. Only
+ * cells backed by a primitive array can be spilled, other values are ignored.
+ * The segment files are deleted when the tier is cleared and on JVM exit.
+ *
+ * @author Nicolas Chiaruttini
+ */
+public class MappedFileCellTier implements CacheTier {
+
+	final static Logger logger = LoggerFactory.getLogger(
+		MappedFileCellTier.class);
+
+	final static int MIN_SLOT_SIZE = 4096;
+
+	final static long SEGMENT_SIZE = 64L * 1024L * 1024L;
+
+	final Path directory;
+
+	final long maxSize;
+
+	// Access ordered -> least recently used first
+	final LinkedHashMap<GlobalCacheKey, SlotEntry> entries =
+		new LinkedHashMap<>(100, 0.75f, true);
+
+	final List<Segment> segments = new ArrayList<>();
+
+	long mappedBytes = 0;
+
+	long usedBytes = 0;
+
+	int segmentCounter = 0;
+
+	/**
+	 * @param scratchDirectory directory where the segment files are written,
+	 *          ideally on a fast local drive
+	 * @param maxSize maximal number of bytes written in the scratch directory
+	 * @throws IOException if the scratch directory can't be created
+	 */
+	public MappedFileCellTier(Path scratchDirectory, long maxSize)
+		throws IOException
+	{
+		Files.createDirectories(scratchDirectory);
+		this.directory = Files.createTempDirectory(scratchDirectory,
+			"bdvpg-spill-");
+		this.directory.toFile().deleteOnExit();
+		this.maxSize = maxSize;
+		logger.info("Cache spilled to " + directory + " (max " + (maxSize /
+			(1024 * 1024)) + " Mb)");
+	}
+
+	@Override
+	synchronized public void put(GlobalCacheKey key, Object value) {
+		if (entries.get(key) != null) return; // Already spilled
+		if (!CellCodec.canEncode(value)) return;
+		Cell<?> cell = (Cell<?>) value;
+		CellCodec.Descriptor descriptor = CellCodec.describe(cell);
+		int slotSize = slotSize(descriptor.payloadSize());
+		Segment segment = findOrMakeSegment(slotSize);
+		if (segment == null) return; // Too big for this tier
+		int slot = segment.freeSlots.pop();
+		CellCodec.write(cell, segment.slot(slot));
+		entries.put(key, new SlotEntry(descriptor, segment, slot));
+		usedBytes += slotSize;
+	}
+
+	@Override
+	synchronized public Object getIfPresent(GlobalCacheKey key) {
+		SlotEntry entry = entries.get(key);
+		if (entry == null) return null;
+		return CellCodec.read(entry.descriptor, entry.segment.slot(entry.slot));
+	}
+
+	@Override
+	synchronized public void invalidate(GlobalCacheKey key) {
+		SlotEntry entry = entries.remove(key);
+		if (entry != null) release(entry);
+	}
+
+	@Override
+	synchronized public void invalidateIf(Predicate<GlobalCacheKey> condition) {
+		Iterator<Map.Entry<GlobalCacheKey, SlotEntry>> it = entries.entrySet()
+			.iterator();
+		while (it.hasNext()) {
+			Map.Entry<GlobalCacheKey, SlotEntry> entry = it.next();
+			if (condition.test(entry.getKey())) {
+				it.remove();
+				release(entry.getValue());
+			}
+		}
+	}
+
+	@Override
+	synchronized public void invalidateAll() {
+		entries.clear();
+		new ArrayList<>(segments).forEach(this::deleteSegment);
+		usedBytes = 0;
+	}
+
+	@Override
+	public long getEstimatedSize() {
+		return usedBytes;
+	}
+
+	@Override
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	private Segment findOrMakeSegment(int slotSize) {
+		if (segmentBytes(slotSize) > maxSize) return null;
+		while (true) {
+			for (Segment segment : segments) {
+				if ((segment.slotSize == slotSize) && (!segment.freeSlots.isEmpty()))
+					return segment;
+			}
+			long segmentBytes = segmentBytes(slotSize);
+			if (mappedBytes + segmentBytes <= maxSize) {
+				try {
+					return makeSegment(slotSize);
+				}
+				catch (IOException e) {
+					logger.error("Could not create spill segment: " + e.getMessage());
+					return null;
+				}
+			}
+			if (entries.isEmpty()) return null;
+			// Evicts the least recently used cell and tries again
+			Iterator<SlotEntry> it = entries.values().iterator();
+			SlotEntry eldest = it.next();
+			it.remove();
+			release(eldest);
+		}
+	}
+
+	private void release(SlotEntry entry) {
+		Segment segment = entry.segment;
+		segment.freeSlots.push(entry.slot);
+		usedBytes -= segment.slotSize;
+		if (segment.freeSlots.size() == segment.nSlots) {
+			// Empty segment: gives back its space for other size classes
+			deleteSegment(segment);
+		}
+	}
+
+	private Segment makeSegment(int slotSize) throws IOException {
+		File file = directory.resolve("segment-" + (segmentCounter++) + ".bin")
+			.toFile();
+		file.deleteOnExit();
+		Segment segment = new Segment(file, slotSize, (int) (segmentBytes(
+			slotSize) / slotSize));
+		segments.add(segment);
+		mappedBytes += segment.size();
+		return segment;
+	}
+
+	private void deleteSegment(Segment segment) {
+		segments.remove(segment);
+		mappedBytes -= segment.size();
+		segment.close();
+	}
+
+	private static long segmentBytes(int slotSize) {
+		return Math.max(slotSize, (SEGMENT_SIZE / slotSize) * slotSize);
+	}
+
+	private static int slotSize(int payloadSize) {
+		return Math.max(MIN_SLOT_SIZE, Integer.highestOneBit(payloadSize - 1) << 1);
+	}
+
+	static class SlotEntry {
+
+		final CellCodec.Descriptor descriptor;
+
+		final Segment segment;
+
+		final int slot;
+
+		SlotEntry(CellCodec.Descriptor descriptor, Segment segment, int slot) {
+			this.descriptor = descriptor;
+			this.segment = segment;
+			this.slot = slot;
+		}
+	}
+
+	static class Segment {
+
+		final File file;
+
+		final int slotSize;
+
+		final int nSlots;
+
+		final MappedByteBuffer buffer;
+
+		final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+
+		Segment(File file, int slotSize, int nSlots) throws IOException {
+			this.file = file;
+			this.slotSize = slotSize;
+			this.nSlots = nSlots;
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				FileChannel channel = raf.getChannel())
+			{
+				// The mapping remains valid after the channel is closed
+				buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+					(long) slotSize * nSlots);
+			}
+			buffer.order(ByteOrder.nativeOrder());
+			for (int i = nSlots - 1; i >= 0; i--) {
+				freeSlots.push(i);
+			}
+		}
+
+		ByteBuffer slot(int slot) {
+			ByteBuffer view = buffer.duplicate();
+			view.position(slot * slotSize);
+			return view.slice().order(ByteOrder.nativeOrder());
+		}
+
+		long size() {
+			return (long) slotSize * nSlots;
+		}
+
+		void close() {
+			DirectBufferPool.free(buffer);
+			if (!file.delete()) {
+				logger.debug("Could not delete spill segment " + file);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Disk spill : " + (usedBytes / (1024 * 1024)) + " Mb (" +
+			(int) (100.0 * (double) usedBytes / (double) maxSize) + " %)";
+	}
+
+}
@@ -0,0 +1,338 @@
+/*-
+ * #%L
+ * BigDataViewer-Playground
+ * %%
+ * Copyright (C) 2019 - 2025 Nicolas Chiaruttini, EPFL - Robert Haase, MPI CBG - Christian Tischer, EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.bdvpg.cache;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileAccess;
+import net.imglib2.img.cell.Cell;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutionException;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Predicate;
+
+/**
+ * Global cache which keeps the payload of cells outside of the java heap. Only
+ * a small handle ({@link OffHeapEntry}) per cell remains on the heap, so the
+ * size of the cache does not need to be accounted for in the heap size, and
+ * the cache does not put any pressure on the garbage collector. Cached values
+ * are copied back to the heap when they are accessed: the copy then lives as
+ * long as it is in use, and is managed by the local {@link GlobalLoaderCache}.
+ * The memory of evicted cells is released explicitly. Values which are not
+ * cells backed by a primitive array are kept on the heap, and still count
+ * towards the memory budget. The free buffers kept for reuse by the
+ * {@link DirectBufferPool} count towards the budget as well. The budget is
+ * computed from the direct memory limit of the JVM (see
+ * {@link GlobalCacheBuilder#offHeap()}), which can be raised with
+ * -XX:MaxDirectMemorySize for big caches.
+ *
+ * @author Nicolas Chiaruttini
+ */
+public class OffHeapGlobalCache extends AbstractGlobalCache {
+
+	final static Logger logger = LoggerFactory.getLogger(
+		OffHeapGlobalCache.class);
+
+	// Access ordered -> least recently used first
+	final LinkedHashMap<GlobalCacheKey, OffHeapEntry> cache =
+		new LinkedHashMap<>(100, 0.75f, true);
+
+	final DirectBufferPool pool;
+
+	long maxCacheSize;
+
+	long totalWeight = 0;
+
+	OffHeapGlobalCache(long maxCacheSize, boolean log, int msBetweenLogs) {
+		this.maxCacheSize = maxCacheSize;
+		pool = new DirectBufferPool(maxCacheSize / 16);
+
+		if (log) {
+			TimerTask periodicLogger = new TimerTask() {
+
+				@Override
+				public void run() {
+					logger.info(OffHeapGlobalCache.this.toString());
+				}
+			};
+
+			logTimer = new Timer(); // Instantiate Timer Object
+			logTimer.schedule(periodicLogger, 0, msBetweenLogs);
+		}
+	}
+
+	@Override
+	public void setMaxSize(long maxCacheSize) {
+		List<Map.Entry<GlobalCacheKey, OffHeapEntry>> evictedEntries;
+		synchronized (this) {
+			this.maxCacheSize = maxCacheSize;
+			pool.setMaxPooledBytes(maxCacheSize / 16);
+			evictedEntries = evictIfNecessary();
+		}
+		forward(evictedEntries);
+	}
+
+	@Override
+	public void put(GlobalCacheKey key, Object value) {
+		if (isStored(key)) return;
+		evictDemotedIfNecessary(value);
+		List<Map.Entry<GlobalCacheKey, OffHeapEntry>> evictedEntries;
+		synchronized (this) {
+			OffHeapEntry previous = cache.get(key);
+			if (previous != null) {
+				if (!previous.isInvalidVolatile()) return; // Put in the meantime
+				release(previous); // Replaced by the loaded value
+			}
+			OffHeapEntry entry;
+			if (CellCodec.canEncode(value)) {
+				Cell<?> cell = (Cell<?>) value;
+				CellCodec.Descriptor descriptor = CellCodec.describe(cell);
+				ByteBuffer payload = pool.acquire(descriptor.payloadSize());
+				CellCodec.write(cell, payload);
+				entry = new OffHeapEntry(descriptor, payload, null, descriptor
+					.payloadSize());
+			}
+			else {
+				entry = new OffHeapEntry(null, null, value, getWeight(value));
+			}
+			cache.put(key, entry);
+			index.add(key);
+			totalWeight += entry.weight;
+			evictedEntries = evictIfNecessary();
+		}
+		forward(evictedEntries);
+	}
+
+	/**
+	 * Same key, same content: a stored value is only replaced if it is an
+	 * invalid volatile placeholder, which is kept on the heap (see
+	 * {@link CellCodec#canEncode(Object)})
+	 *
+	 * @return true if the key holds a value which should be kept, whose access
+	 *         order is refreshed
+	 */
+	private synchronized boolean isStored(GlobalCacheKey key) {
+		OffHeapEntry entry = cache.get(key);
+		return (entry != null) && (!entry.isInvalidVolatile());
+	}
+
+	@Override
+	public Object get(GlobalCacheKey key) throws ExecutionException {
+		return getIfPresent(key);
+	}
+
+	@Override
+	synchronized public Object getIfPresent(GlobalCacheKey key) {
+		OffHeapEntry entry = cache.get(key);
+		if (entry == null) return getFromNextTier(key);
+		return entry.value();
+	}
+
+	@Override
+	synchronized protected long purge(GlobalCacheKey key) {
+		OffHeapEntry entry = cache.remove(key);
+		if (entry != null) release(entry);
+		index.remove(key);
+		invalidateNextTier(key);
+		return (entry == null) ? 0 : entry.weight;
+	}
+
+	@Override
+	synchronized public void invalidateIf(long parallelismThreshold,
+		Predicate<GlobalCacheKey> condition)
+	{
+		Iterator<Map.Entry<GlobalCacheKey, OffHeapEntry>> it = cache.entrySet()
+			.iterator();
+		while (it.hasNext()) {
+			Map.Entry<GlobalCacheKey, OffHeapEntry> entry = it.next();
+			if (condition.test(entry.getKey())) {
+				it.remove();
+				index.remove(entry.getKey());
+				release(entry.getValue());
+			}
+		}
+		invalidateNextTierIf(condition);
+	}
+
+	@Override
+	synchronized public void invalidateAll(long parallelismThreshold) {
+		cache.values().forEach(this::release);
+		cache.clear();
+		index.clear();
+		pool.clear();
+		invalidateNextTierAll();
+	}
+
+	@Override
+	public long getMaxSize() {
+		return maxCacheSize;
+	}
+
+	@Override
+	public long getEstimatedSize() {
+		return totalWeight + pool.pooledBytes;
+	}
+
+	@Override
+	synchronized protected void forEachKey(
+		ObjLongConsumer<GlobalCacheKey> consumer)
+	{
+		cache.forEach((key, entry) -> consumer.accept(key, entry.weight));
+	}
+
+	@Override
+	synchronized public boolean refresh(GlobalCacheKey key) {
+		return cache.get(key) != null; // Not decoded
+	}
+
+	@Override
+	public <V> void touch(GlobalCacheKey key, V value) {
+		put(key, value);
+	}
+
+	/**
+	 * Should be called with the lock held. The entries evicted are removed from
+	 * the budget and returned: they are handed over to the next tier, and their
+	 * payload is released, by {@link #forward(List)} once the lock is released.
+	 */
+	private List<Map.Entry<GlobalCacheKey, OffHeapEntry>> evictIfNecessary() {
+		List<Map.Entry<GlobalCacheKey, OffHeapEntry>> evictedEntries =
+			new ArrayList<>();
+		Iterator<Map.Entry<GlobalCacheKey, OffHeapEntry>> it = cache.entrySet()
+			.iterator();
+		while ((totalWeight + pool.pooledBytes > maxCacheSize) && it.hasNext()) {
+			Map.Entry<GlobalCacheKey, OffHeapEntry> eldest = it.next();
+			it.remove();
+			index.remove(eldest.getKey());
+			totalWeight -= eldest.getValue().weight;
+			evictedEntries.add(eldest);
+		}
+		return evictedEntries;
+	}
+
+	private void forward(
+		List<Map.Entry<GlobalCacheKey, OffHeapEntry>> evictedEntries)
+	{
+		if (evictedEntries.isEmpty()) return;
+		// Not in the map anymore: the payloads can be decoded without the lock
+		for (Map.Entry<GlobalCacheKey, OffHeapEntry> eldest : evictedEntries) {
+			// Only decoded if it is needed by the next tier or the on-disk store
+			evicted(eldest.getKey(), ((getNextTier() == null) && (!eldest.getKey()
+				.isPersistent())) ? null : eldest.getValue().value(), eldest
+					.getValue().weight);
+		}
+		synchronized (this) { // The pool is not thread safe
+			for (Map.Entry<GlobalCacheKey, OffHeapEntry> eldest : evictedEntries) {
+				if (eldest.getValue().payload != null) pool.release(eldest.getValue()
+					.payload);
+			}
+		}
+	}
+
+	private void release(OffHeapEntry entry) {
+		totalWeight -= entry.weight;
+		if (entry.payload != null) pool.release(entry.payload);
+	}
+
+	/**
+	 * Heap handle of a cached value: either a descriptor and its off-heap
+	 * payload, or the value itself if it can't be stored off-heap
+	 */
+	static class OffHeapEntry {
+
+		final CellCodec.Descriptor descriptor;
+
+		final ByteBuffer payload;
+
+		final Object onHeapValue;
+
+		final long weight;
+
+		OffHeapEntry(CellCodec.Descriptor descriptor, ByteBuffer payload,
+			Object onHeapValue, long weight)
+		{
+			this.descriptor = descriptor;
+			this.payload = payload;
+			this.onHeapValue = onHeapValue;
+			this.weight = weight;
+		}
+
+		Object value() {
+			if (onHeapValue != null) return onHeapValue;
+			return CellCodec.read(descriptor, payload);
+		}
+
+		// Volatile cells are only encoded off-heap when they are valid
+		boolean isInvalidVolatile() {
+			if (!(onHeapValue instanceof Cell)) return false;
+			Object data = ((Cell<?>) onHeapValue).getData();
+			return (data instanceof VolatileAccess) && (!((VolatileAccess) data)
+				.isValid());
+		}
+	}
+
+	/**
+	 * @return the maximal amount of direct memory of the JVM: the value of
+	 *         -XX:MaxDirectMemorySize if it is set, the maximal heap size
+	 *         otherwise, which is the default limit of HotSpot
+	 */
+	static long maxDirectMemory() {
+		try {
+			HotSpotDiagnosticMXBean bean = ManagementFactory.getPlatformMXBean(
+				HotSpotDiagnosticMXBean.class);
+			long limit = Long.parseLong(bean.getVMOption("MaxDirectMemorySize")
+				.getValue());
+			if (limit > 0) return limit;
+		}
+		catch (RuntimeException e) {
+			logger.debug("Could not read the direct memory limit: " + e
+				.getMessage());
+		}
+		return Runtime.getRuntime().maxMemory();
+	}
+
+	@Override
+	public String toString() {
+		long size = getEstimatedSize();
+		return "Cache size : " + (size / (1024 * 1024)) + " Mb (" +
+			(int) (100.0 * (double) size / (double) maxCacheSize) + " %) off-heap";
+	}
+
+}
@@ -0,0 +1,358 @@
+/*-
+ * #%L
+ * BigDataViewer-Playground
+ * %%
+ * Copyright (C) 2019 - 2025 Nicolas Chiaruttini, EPFL - Robert Haase, MPI CBG - Christian Tischer, EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.bdvpg.cache;
+
+import net.imglib2.img.basictypeaccess.AccessFlags;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.type.PrimitiveType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * On-disk store of the cells of a derived source, which survives the end of
+ * the session. A store is identified by a stable description of the pipeline
+ * which computes the cells (see {@link SourcePipelineDescription}): the same
+ * pipeline, rebuilt in another session, finds the cells computed before. Each
+ * cell is stored in its own file, in a directory named after the hash of the
+ * description, under the root directory of all stores. The cells are written
+ * back when they are evicted from the global cache, or when
+ * {@link AbstractGlobalCache#persistAll()} is called, in a background thread.
+ * Persistence is disabled as long as no root directory is set.
+ *
+ * @author Nicolas Chiaruttini
+ */
+public class PersistentCellStore {
+
+	final static Logger logger = LoggerFactory.getLogger(
+		PersistentCellStore.class);
+
+	final static int FORMAT_VERSION = 1;
+
+	private static volatile Path rootDirectory = null;
+
+	private static final Map<String, PersistentCellStore> stores =
+		new ConcurrentHashMap<>();
+
+	// Single writer. Cells are evicted with no time to spare: if too many
+	// cells are pending, the evicted ones are not written, they will be written
+	// when they are evicted again. Cells saved explicitly are written by the
+	// caller
+	private static final ThreadPoolExecutor writer = new ThreadPoolExecutor(1, 1,
+		0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(1024), r -> {
+			Thread thread = new Thread(r, "Bdv Playground - cell store writer");
+			thread.setDaemon(true);
+			return thread;
+		}, (r, executor) -> {
+			if ((r instanceof PendingWrite) && ((PendingWrite) r).dropIfSaturated) {
+				((PendingWrite) r).discard();
+			}
+			else r.run();
+		});
+
+	final Path directory;
+
+	final String description;
+
+	// Cells queued for writing, which are not queued again
+	private final Set<PendingWrite> pendingWrites = ConcurrentHashMap
+		.newKeySet();
+
+	private PersistentCellStore(Path directory, String description)
+		throws IOException
+	{
+		this.directory = directory;
+		this.description = description;
+		Files.createDirectories(directory);
+		Path descriptionFile = directory.resolve("description.txt");
+		if (!Files.exists(descriptionFile)) {
+			Files.write(descriptionFile, description.getBytes(
+				StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * @param directory root directory of the stores, null to disable
+	 *          persistence
+	 */
+	public static void setRootDirectory(Path directory) {
+		if ((directory == null) ? (rootDirectory != null) : !directory.equals(
+			rootDirectory))
+		{
+			stores.clear();
+		}
+		rootDirectory = directory;
+	}
+
+	public static Path getRootDirectory() {
+		return rootDirectory;
+	}
+
+	/**
+	 * @param description stable description of a pipeline, null if it can't
+	 *          be described
+	 * @return the store of this pipeline, or null if persistence is disabled or
+	 *         the pipeline can't be described
+	 */
+	public static PersistentCellStore forDescription(String description) {
+		final Path root = rootDirectory;
+		if ((root == null) || (description == null)) return null;
+		String hash = hash(description);
+		return stores.computeIfAbsent(hash, h -> {
+			try {
+				return new PersistentCellStore(root.resolve(h), description);
+			}
+			catch (IOException e) {
+				logger.error("Could not create cell store in " + root + ": " + e
+					.getMessage());
+				return null;
+			}
+		});
+	}
+
+	static String hash(String description) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(description
+				.getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder();
+			for (int i = 0; i < 16; i++) {
+				hex.append(String.format("%02x", digest[i]));
+			}
+			return hex.toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	Path pathOf(int level, long index) {
+		return directory.resolve("l" + level).resolve(index + ".cell");
+	}
+
+	/**
+	 * @param level resolution level of the cell
+	 * @param index index of the cell in its grid
+	 * @return the stored cell, or null if it has not been stored
+	 */
+	public Cell<?> read(int level, long index) {
+		Path path = pathOf(level, index);
+		if (!Files.exists(path)) return null;
+		try (InputStream input = Files.newInputStream(path);
+				DataInputStream data = new DataInputStream(input))
+		{
+			if (data.readInt() != FORMAT_VERSION) return null;
+			PrimitiveType type = PrimitiveType.valueOf(data.readUTF());
+			Set<AccessFlags> flags = EnumSet.noneOf(AccessFlags.class);
+			int nFlags = data.readInt();
+			for (int i = 0; i < nFlags; i++) {
+				flags.add(AccessFlags.valueOf(data.readUTF()));
+			}
+			int nDims = data.readInt();
+			int[] dimensions = new int[nDims];
+			long[] min = new long[nDims];
+			for (int d = 0; d < nDims; d++) {
+				dimensions[d] = data.readInt();
+				min[d] = data.readLong();
+			}
+			int numEntities = data.readInt();
+			CellCodec.Descriptor descriptor = new CellCodec.Descriptor(dimensions,
+				min, type, flags, numEntities, false);
+			byte[] payload = new byte[descriptor.payloadSize()];
+			data.readFully(payload);
+			return CellCodec.read(descriptor, ByteBuffer.wrap(payload).order(
+				ByteOrder.LITTLE_ENDIAN));
+		}
+		catch (IOException | IllegalArgumentException e) {
+			logger.warn("Could not read stored cell " + path + ": " + e
+				.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Writes a cell in the background, unless it is already stored. Called on
+	 * eviction: the file system is only accessed by the writer thread, and the
+	 * cell is dropped if the writer is saturated.
+	 *
+	 * @param level resolution level of the cell
+	 * @param index index of the cell in its grid
+	 * @param value cell to store, ignored if it is not an encodable cell
+	 */
+	public void write(int level, long index, Object value) {
+		write(level, index, value, true);
+	}
+
+	/**
+	 * Writes a cell in the background, unless it is already stored. The cell is
+	 * written by the caller if the writer is saturated: used when the cells are
+	 * saved explicitly, see {@link AbstractGlobalCache#persistAll()}
+	 *
+	 * @param level resolution level of the cell
+	 * @param index index of the cell in its grid
+	 * @param value cell to store, ignored if it is not an encodable cell
+	 */
+	public void save(int level, long index, Object value) {
+		write(level, index, value, false);
+	}
+
+	private void write(int level, long index, Object value,
+		boolean dropIfSaturated)
+	{
+		if (!CellCodec.canEncode(value)) return;
+		PendingWrite pendingWrite = new PendingWrite(level, index, (Cell<?>) value,
+			dropIfSaturated);
+		if (pendingWrites.add(pendingWrite)) writer.execute(pendingWrite);
+	}
+
+	/**
+	 * Cell queued for writing. Equal to the other writes of the same cell,
+	 * whatever their content: cells of a pipeline never change.
+	 */
+	private final class PendingWrite implements Runnable {
+
+		final int level;
+
+		final long index;
+
+		final Cell<?> cell;
+
+		final boolean dropIfSaturated;
+
+		PendingWrite(int level, long index, Cell<?> cell,
+			boolean dropIfSaturated)
+		{
+			this.level = level;
+			this.index = index;
+			this.cell = cell;
+			this.dropIfSaturated = dropIfSaturated;
+		}
+
+		@Override
+		public void run() {
+			try {
+				writeNow(pathOf(level, index), cell);
+			}
+			finally {
+				discard();
+			}
+		}
+
+		void discard() {
+			pendingWrites.remove(this);
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof PendingWrite)) return false;
+			PendingWrite that = (PendingWrite) other;
+			return (level == that.level) && (index == that.index);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * level + Long.hashCode(index);
+		}
+	}
+
+	private void writeNow(Path path, Cell<?> cell) {
+		if (Files.exists(path)) return; // Cells of a pipeline never change
+		CellCodec.Descriptor descriptor = CellCodec.describe(cell);
+		ByteBuffer payload = ByteBuffer.allocate(descriptor.payloadSize()).order(
+			ByteOrder.LITTLE_ENDIAN);
+		CellCodec.write(cell, payload);
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(descriptor
+				.payloadSize() + 256);
+			DataOutputStream data = new DataOutputStream(bytes);
+			data.writeInt(FORMAT_VERSION);
+			data.writeUTF(descriptor.type.name());
+			data.writeInt(descriptor.flags.size());
+			for (AccessFlags flag : descriptor.flags) {
+				data.writeUTF(flag.name());
+			}
+			data.writeInt(descriptor.dimensions.length);
+			for (int d = 0; d < descriptor.dimensions.length; d++) {
+				data.writeInt(descriptor.dimensions[d]);
+				data.writeLong(descriptor.min[d]);
+			}
+			data.writeInt(descriptor.numEntities);
+			data.write(payload.array());
+			data.flush();
+			// Atomic move: a cell file is either complete or absent
+			Files.createDirectories(path.getParent());
+			Path temp = Files.createTempFile(path.getParent(), "cell", ".tmp");
+			Files.write(temp, bytes.toByteArray());
+			Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (IOException e) {
+			logger.warn("Could not store cell " + path + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Waits until all pending cells are written
+	 */
+	public static void flush() {
+		try {
+			writer.submit(() -> {}).get();
+		}
+		catch (InterruptedException | ExecutionException e) {
+			logger.warn("Interrupted while flushing the cell stores");
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Cell store " + directory;
+	}
+
+}
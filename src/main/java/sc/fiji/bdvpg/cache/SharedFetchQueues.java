@@ -0,0 +1,174 @@
+/*-
+ * #%L
+ * BigDataViewer-Playground
+ * %%
+ * Copyright (C) 2019 - 2025 Nicolas Chiaruttini, EPFL - Robert Haase, MPI CBG - Christian Tischer, EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.bdvpg.cache;
+
+import bdv.cache.SharedQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fetch queues shared by all the volatile sources of BigDataViewer-Playground,
+ * in order to bound the number of fetcher threads, whatever the number of
+ * datasets and derived sources opened. Two queues are provided:
+ * <ul>
+ * <li>an I/O queue, used by the {@link bdv.img.cache.VolatileGlobalCellCache}
+ * of each dataset: its threads mostly wait for disk or network reads</li>
+ * <li>a CPU queue, used by derived sources (resampled, wrapped as volatile):
+ * its threads compute pixels, and should not exceed the number of cores</li>
+ * </ul>
+ * Both queues keep the priorities of BigDataViewer (coarser resolution levels
+ * are fetched first, and prefetch requests are dropped when a new frame is
+ * rendered). The parallelism of each queue can be configured, see
+ * {@link GlobalCacheBuilder#fetcherThreads(int, int)}. A change of
+ * parallelism only applies to the sources created afterwards: the existing
+ * sources keep the queue they were created with, which remains in use, with
+ * its fetcher threads, until {@link #shutdownRetiredQueues()} is called.
+ *
+ * @author Nicolas Chiaruttini
+ */
+public class SharedFetchQueues {
+
+	final static Logger logger = LoggerFactory.getLogger(
+		SharedFetchQueues.class);
+
+	/**
+	 * Number of priorities of the queues, which should be above the number of
+	 * resolution levels of the sources
+	 */
+	final static int NUM_PRIORITIES = 16;
+
+	private static SharedQueue ioQueue = null;
+
+	private static SharedQueue cpuQueue = null;
+
+	// Queues replaced by a change of parallelism, still used by older sources
+	private static final List<SharedQueue> retiredQueues = new ArrayList<>();
+
+	private static int ioThreads = defaultIOThreads();
+
+	private static int cpuThreads = defaultCPUThreads();
+
+	private SharedFetchQueues() {}
+
+	public static int defaultIOThreads() {
+		return Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+	}
+
+	public static int defaultCPUThreads() {
+		return Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	}
+
+	/**
+	 * @return the queue used to read the cells of datasets
+	 */
+	public static synchronized SharedQueue getIOQueue() {
+		if (ioQueue == null) {
+			ioQueue = new SharedQueue(ioThreads, NUM_PRIORITIES);
+		}
+		return ioQueue;
+	}
+
+	/**
+	 * @return the queue used to compute the cells of derived sources
+	 */
+	public static synchronized SharedQueue getCPUQueue() {
+		if (cpuQueue == null) {
+			cpuQueue = new SharedQueue(cpuThreads, NUM_PRIORITIES);
+		}
+		return cpuQueue;
+	}
+
+	/**
+	 * Sets the number of fetcher threads of the shared queues. New queues are
+	 * created for the sources created afterwards. The former queues are not
+	 * shut down: they keep serving the sources created before.
+	 *
+	 * @param nIOThreads number of threads reading datasets, default if
+	 *          negative
+	 * @param nCPUThreads number of threads computing derived sources, default
+	 *          if negative
+	 */
+	public static synchronized void setParallelism(int nIOThreads,
+		int nCPUThreads)
+	{
+		if (nIOThreads <= 0) nIOThreads = defaultIOThreads();
+		if (nCPUThreads <= 0) nCPUThreads = defaultCPUThreads();
+		if (nIOThreads != ioThreads) {
+			ioThreads = nIOThreads;
+			if (ioQueue != null) retiredQueues.add(ioQueue);
+			ioQueue = null;
+			logger.info("I/O fetcher threads set to " + ioThreads +
+				", for sources opened from now on");
+		}
+		if (nCPUThreads != cpuThreads) {
+			cpuThreads = nCPUThreads;
+			if (cpuQueue != null) retiredQueues.add(cpuQueue);
+			cpuQueue = null;
+			logger.info("CPU fetcher threads set to " + cpuThreads +
+				", for sources created from now on");
+		}
+	}
+
+	/**
+	 * Stops the fetcher threads of the queues replaced by
+	 * {@link #setParallelism(int, int)}. Should only be called once the sources
+	 * created before the change of parallelism are closed: their cells can't be
+	 * loaded anymore.
+	 *
+	 * @return the number of queues shut down
+	 */
+	public static synchronized int shutdownRetiredQueues() {
+		final int n = retiredQueues.size();
+		retiredQueues.forEach(SharedQueue::shutdown);
+		retiredQueues.clear();
+		if (n > 0) logger.info(n + " former fetch queue(s) shut down");
+		return n;
+	}
+
+	/**
+	 * @return the lowest priority of the queues, used to request cells ahead of
+	 *         their display
+	 */
+	public static int getPrefetchPriority() {
+		return NUM_PRIORITIES - 1;
+	}
+
+	public static synchronized int getIOThreads() {
+		return ioThreads;
+	}
+
+	public static synchronized int getCPUThreads() {
+		return cpuThreads;
+	}
+
+}
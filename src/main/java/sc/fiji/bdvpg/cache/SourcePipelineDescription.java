@@ -0,0 +1,174 @@
+/*-
+ * #%L
+ * BigDataViewer-Playground
+ * %%
+ * Copyright (C) 2019 - 2025 Nicolas Chiaruttini, EPFL - Robert Haase, MPI CBG - Christian Tischer, EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.bdvpg.cache;
+
+import bdv.AbstractSpimSource;
+import bdv.tools.transformation.TransformedSource;
+import bdv.util.ResampledSource;
+import bdv.viewer.Source;
+import bdv.viewer.SourceAndConverter;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import sc.fiji.bdvpg.scijava.services.SourceAndConverterService;
+import sc.fiji.bdvpg.services.ISourceAndConverterService;
+import sc.fiji.bdvpg.services.SourceAndConverterServices;
+
+import static sc.fiji.bdvpg.services.ISourceAndConverterService.SPIM_DATA_INFO;
+import static sc.fiji.bdvpg.services.ISourceAndConverterService.SPIM_DATA_LOCATION;
+
+/**
+ * Builds a stable description of the pipeline which computes a source at a
+ * given timepoint, in order to identify its {@link PersistentCellStore} from a
+ * session to the next. Two pipelines with the same description are expected to
+ * compute the same pixels. Only pipelines whose content is fully determined by
+ * what can be described are supported: spimdata sources (identified by the
+ * location of their dataset, their setup id, name, type and geometry),
+ * transformed sources and resampled sources. Other
+ * sources, for instance warped sources, whose transformation is not visible
+ * from the source interface, can't be described.
+ *
+ * @author Nicolas Chiaruttini
+ */
+public final class SourcePipelineDescription {
+
+	private SourcePipelineDescription() {}
+
+	/**
+	 * @param source source to describe
+	 * @param timepoint timepoint of the source
+	 * @return the description of the pipeline computing the source at this
+	 *         timepoint, or null if it can't be described
+	 */
+	public static String of(Source<?> source, int timepoint) {
+		StringBuilder description = new StringBuilder();
+		return append(description, source, timepoint) ? description.toString()
+			: null;
+	}
+
+	private static boolean append(StringBuilder description, Source<?> source,
+		int timepoint)
+	{
+		if (!source.isPresent(timepoint)) return false;
+		if (source instanceof ResampledSource) {
+			ResampledSource<?> resampled = (ResampledSource<?>) source;
+			description.append("Resampled(reuseMipMaps=").append(resampled
+				.areMipmapsReused()).append(", interpolation=").append(resampled
+					.originInterpolation()).append(", levels=[");
+			for (int level = 0; level < resampled.getNumMipmapLevels(); level++) {
+				description.append(resampled.getModelToOriginMipMapLevel(level))
+					.append(' ');
+			}
+			description.append("], origin=");
+			if (!append(description, resampled.getOriginalSource(), timepoint))
+				return false;
+			// Only the geometry of the model matters, not its pixels
+			description.append(", model=");
+			appendGeometry(description, resampled.getModelResamplerSource(),
+				timepoint);
+			description.append(')');
+			return true;
+		}
+		if (source instanceof TransformedSource) {
+			description.append("Transformed(");
+			appendGeometry(description, source, timepoint);
+			description.append(", of=");
+			if (!append(description, ((TransformedSource<?>) source)
+				.getWrappedSource(), timepoint)) return false;
+			description.append(')');
+			return true;
+		}
+		if (source instanceof AbstractSpimSource) {
+			// Two datasets can have setups with the same name and geometry
+			String dataset = datasetOf(source);
+			if (dataset == null) return false;
+			// Pixels depend on the timepoint, unlike the derived sources above
+			description.append("Spim(").append(dataset).append(", ").append(source
+				.getName()).append(", t=")
+				.append(timepoint).append(", ").append(source.getType().getClass()
+					.getName()).append(", ");
+			appendGeometry(description, source, timepoint);
+			description.append(')');
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the location of the spimdata of the source, and the id of its
+	 *         setup, or null if the source is not registered with its spimdata,
+	 *         or if the spimdata has no location
+	 */
+	private static String datasetOf(Source<?> source) {
+		ISourceAndConverterService service = SourceAndConverterServices
+			.getSourceAndConverterService();
+		for (SourceAndConverter<?> sac : service.getSourceAndConverters()) {
+			boolean matches = (sac.getSpimSource() == source) || ((sac
+				.asVolatile() != null) && (sac.asVolatile().getSpimSource() == source));
+			if (!matches) continue;
+			Object info = service.getMetadata(sac, SPIM_DATA_INFO);
+			if (!(info instanceof SourceAndConverterService.SpimDataInfo)) continue;
+			SourceAndConverterService.SpimDataInfo spimDataInfo =
+				(SourceAndConverterService.SpimDataInfo) info;
+			Object location = service.getMetadata(spimDataInfo.asd,
+				SPIM_DATA_LOCATION);
+			String dataset;
+			if ((location instanceof String) && (!((String) location).isEmpty())) {
+				dataset = (String) location;
+			}
+			else if (spimDataInfo.asd.getBasePath() != null) {
+				dataset = spimDataInfo.asd.getBasePath().getAbsolutePath();
+			}
+			else {
+				return null;
+			}
+			return dataset + ", setup=" + spimDataInfo.setupId;
+		}
+		return null;
+	}
+
+	private static void appendGeometry(StringBuilder description,
+		Source<?> source, int timepoint)
+	{
+		AffineTransform3D transform = new AffineTransform3D();
+		description.append('[');
+		for (int level = 0; level < source.getNumMipmapLevels(); level++) {
+			RandomAccessibleInterval<?> rai = source.getSource(timepoint, level);
+			description.append("level ").append(level).append(": ");
+			for (int d = 0; d < rai.numDimensions(); d++) {
+				description.append(rai.min(d)).append('-').append(rai.max(d)).append(
+					' ');
+			}
+			source.getSourceTransform(timepoint, level, transform);
+			description.append(transform).append("; ");
+		}
+		description.append(']');
+	}
+
+}
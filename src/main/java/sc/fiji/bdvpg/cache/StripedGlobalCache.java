@@ -0,0 +1,314 @@
+/*-
+ * #%L
+ * BigDataViewer-Playground
+ * %%
+ * Copyright (C) 2019 - 2025 Nicolas Chiaruttini, EPFL - Robert Haase, MPI CBG - Christian Tischer, EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.bdvpg.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Predicate;
+
+/**
+ * Concurrent global cache made of independent LRU segments. Each key belongs
+ * to a segment (according to the hash of the {@link GlobalCacheKey}), and each
+ * segment is an access-ordered {@link LinkedHashMap} guarded by its own lock,
+ * with its own weight accounting. The memory budget is global: when it is
+ * exceeded, the least recently used entries of the segments are evicted in a
+ * round-robin manner. With many fetcher threads, the lock contention is
+ * divided by the number of segments compared to
+ * {@link BoundedLinkedHashMapGlobalCache}. Values are strongly referenced, so
+ * the budget is exactly what the cache retains.
+ *
+ * @author Nicolas Chiaruttini
+ */
+public class StripedGlobalCache extends AbstractGlobalCache {
+
+	final static Logger logger = LoggerFactory.getLogger(
+		StripedGlobalCache.class);
+
+	final Segment[] segments;
+
+	final int segmentMask;
+
+	final AtomicLong totalWeight = new AtomicLong();
+
+	final AtomicInteger evictionCursor = new AtomicInteger();
+
+	volatile long maxCacheSize;
+
+	StripedGlobalCache(int nSegments, long maxCacheSize, boolean log,
+		int msBetweenLogs)
+	{
+		int n = Integer.highestOneBit(Math.max(1, nSegments - 1)) << 1;
+		segments = new Segment[n];
+		for (int i = 0; i < n; i++) {
+			segments[i] = new Segment();
+		}
+		segmentMask = n - 1;
+		this.maxCacheSize = maxCacheSize;
+
+		if (log) {
+			TimerTask periodicLogger = new TimerTask() {
+
+				@Override
+				public void run() {
+					logger.info(StripedGlobalCache.this.toString());
+				}
+			};
+
+			logTimer = new Timer(); // Instantiate Timer Object
+			logTimer.schedule(periodicLogger, 0, msBetweenLogs);
+		}
+	}
+
+	/**
+	 * @return a number of segments adapted to the number of cores
+	 */
+	static int defaultNumberOfSegments() {
+		return Math.min(64, 4 * Runtime.getRuntime().availableProcessors());
+	}
+
+	private Segment segmentFor(GlobalCacheKey key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16); // Spreads the high bits
+		return segments[h & segmentMask];
+	}
+
+	@Override
+	public void setMaxSize(long maxCacheSize) {
+		this.maxCacheSize = maxCacheSize;
+		evictIfNecessary();
+	}
+
+	@Override
+	public void put(GlobalCacheKey key, Object value) {
+		evictDemotedIfNecessary(value);
+		Segment segment = segmentFor(key);
+		long weight = getWeight(value);
+		synchronized (segment) {
+			if (segment.map.get(key) != null) return; // already present: access
+																								// order refreshed
+			segment.map.put(key, new Entry(value, weight));
+			segment.weight += weight;
+			index.add(key);
+		}
+		if (totalWeight.addAndGet(weight) > maxCacheSize) evictIfNecessary();
+	}
+
+	@Override
+	public Object get(GlobalCacheKey key) throws ExecutionException {
+		return getIfPresent(key);
+	}
+
+	@Override
+	public Object getIfPresent(GlobalCacheKey key) {
+		Segment segment = segmentFor(key);
+		Entry entry;
+		synchronized (segment) {
+			entry = segment.map.get(key);
+		}
+		return (entry == null) ? getFromNextTier(key) : entry.value;
+	}
+
+	@Override
+	protected long purge(GlobalCacheKey key) {
+		Segment segment = segmentFor(key);
+		Entry entry;
+		synchronized (segment) {
+			entry = segment.map.remove(key);
+			if (entry != null) segment.weight -= entry.weight;
+			index.remove(key);
+		}
+		if (entry != null) totalWeight.addAndGet(-entry.weight);
+		invalidateNextTier(key);
+		return (entry == null) ? 0 : entry.weight;
+	}
+
+	@Override
+	public void invalidateIf(long parallelismThreshold,
+		Predicate<GlobalCacheKey> condition)
+	{
+		for (Segment segment : segments) {
+			long removed = 0;
+			synchronized (segment) {
+				Iterator<Map.Entry<GlobalCacheKey, Entry>> it = segment.map.entrySet()
+					.iterator();
+				while (it.hasNext()) {
+					Map.Entry<GlobalCacheKey, Entry> entry = it.next();
+					if (condition.test(entry.getKey())) {
+						removed += entry.getValue().weight;
+						index.remove(entry.getKey());
+						it.remove();
+					}
+				}
+				segment.weight -= removed;
+			}
+			totalWeight.addAndGet(-removed);
+		}
+		invalidateNextTierIf(condition);
+	}
+
+	@Override
+	public void invalidateAll(long parallelismThreshold) {
+		for (Segment segment : segments) {
+			long removed;
+			synchronized (segment) {
+				removed = segment.weight;
+				segment.map.clear();
+				segment.weight = 0;
+			}
+			totalWeight.addAndGet(-removed);
+		}
+		index.clear();
+		invalidateNextTierAll();
+	}
+
+	@Override
+	public long getMaxSize() {
+		return maxCacheSize;
+	}
+
+	@Override
+	public long getEstimatedSize() {
+		return totalWeight.get();
+	}
+
+	/**
+	 * Segments are only ordered internally: their keys are interleaved, which
+	 * approximates the global recency order when keys are evenly spread
+	 */
+	@Override
+	protected void forEachKey(ObjLongConsumer<GlobalCacheKey> consumer) {
+		List<List<Map.Entry<GlobalCacheKey, Entry>>> snapshots = new ArrayList<>();
+		int maxLength = 0;
+		for (Segment segment : segments) {
+			List<Map.Entry<GlobalCacheKey, Entry>> snapshot;
+			synchronized (segment) {
+				snapshot = new ArrayList<>(segment.map.entrySet());
+			}
+			snapshots.add(snapshot);
+			maxLength = Math.max(maxLength, snapshot.size());
+		}
+		for (int i = 0; i < maxLength; i++) {
+			for (List<Map.Entry<GlobalCacheKey, Entry>> snapshot : snapshots) {
+				if (i < snapshot.size()) consumer.accept(snapshot.get(i).getKey(),
+					snapshot.get(i).getValue().weight);
+			}
+		}
+	}
+
+	@Override
+	public boolean refresh(GlobalCacheKey key) {
+		Segment segment = segmentFor(key);
+		synchronized (segment) {
+			return segment.map.get(key) != null;
+		}
+	}
+
+	@Override
+	public <V> void touch(GlobalCacheKey key, V value) {
+		put(key, value);
+	}
+
+	/**
+	 * Evicts the least recently used entry of each segment in turn until the
+	 * cache is back within its budget
+	 */
+	private void evictIfNecessary() {
+		List<Map.Entry<GlobalCacheKey, Entry>> evictedEntries = new ArrayList<>();
+		int emptySegments = 0;
+		while ((totalWeight.get() > maxCacheSize) &&
+			(emptySegments < segments.length))
+		{
+			Segment segment = segments[evictionCursor.getAndIncrement() &
+				segmentMask];
+			Map.Entry<GlobalCacheKey, Entry> eldest = null;
+			synchronized (segment) {
+				Iterator<Map.Entry<GlobalCacheKey, Entry>> it = segment.map.entrySet()
+					.iterator();
+				if (it.hasNext()) {
+					eldest = it.next();
+					it.remove();
+					index.remove(eldest.getKey());
+					segment.weight -= eldest.getValue().weight;
+				}
+			}
+			if (eldest == null) {
+				emptySegments++;
+				continue;
+			}
+			emptySegments = 0;
+			totalWeight.addAndGet(-eldest.getValue().weight);
+			evictedEntries.add(eldest);
+		}
+		// Forwarded outside of the segment locks
+		evictedEntries.forEach(e -> evicted(e.getKey(), e.getValue().value, e
+			.getValue().weight));
+	}
+
+	static class Segment {
+
+		// Access ordered -> least recently used first
+		final LinkedHashMap<GlobalCacheKey, Entry> map = new LinkedHashMap<>(16,
+			0.75f, true);
+
+		long weight = 0;
+	}
+
+	static class Entry {
+
+		final Object value;
+
+		final long weight;
+
+		Entry(Object value, long weight) {
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+
+	@Override
+	public String toString() {
+		long bytes = totalWeight.get();
+		return "Cache size : " + (bytes / (1024 * 1024)) + " Mb (" +
+			(int) (100.0 * (double) bytes / (double) maxCacheSize) + " %)";
+	}
+
+}
@@ -79,6 +79,10 @@ public class ResampledSourceAdapter implements ISourceAdapter<ResampledSource> {
 		obj.addProperty("name", source.getName());
 		obj.addProperty("mipmaps_reused", source.areMipmapsReused());
 		obj.addProperty("defaultMipmapLevel", source.getDefaultMipMapLevel());
+		if (source.getBlockSize() != null) {
+			obj.add("block_size", jsonSerializationContext.serialize(source
+				.getBlockSize()));
+		}
 
 		Integer idOrigin = sacSerializer.getSourceToId().get(source
 			.getOriginalSource());
@@ -159,7 +163,14 @@ public class ResampledSourceAdapter implements ISourceAdapter<ResampledSource> {
 			return null;
 		}
 
-		return new SourceResampler(originSac, modelSac, name, reuseMipMaps, cache,
-			interpolation.equals(Interpolation.NLINEAR), defaultMipMapLevel).get();
+		SourceAndConverter<?> sac = new SourceResampler(originSac, modelSac, name,
+			reuseMipMaps, cache, interpolation.equals(Interpolation.NLINEAR),
+			defaultMipMapLevel).get();
+		if (obj.has("block_size")) {
+			((ResampledSource<?>) sac.getSpimSource()).setBlockSize(
+				jsonDeserializationContext.deserialize(obj.get("block_size"),
+					int[].class));
+		}
+		return sac;
 	}
 }
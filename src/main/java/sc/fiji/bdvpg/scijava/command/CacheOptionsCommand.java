@@ -41,9 +41,11 @@ import sc.fiji.bdvpg.cache.GlobalCacheBuilder;
 import sc.fiji.bdvpg.scijava.ScijavaBdvDefaults;
 import sc.fiji.bdvpg.scijava.services.SourceAndConverterService;
 
+import java.io.File;
+
 @Plugin(type = BdvPlaygroundActionCommand.class, menuPath = ScijavaBdvDefaults.RootMenu +
 	"Set cache options",
-	description = "Sets Bdv Playground cache options (needs a restart)",
+	description = "Sets Bdv Playground cache options, applied immediately",
 	initializer = "initialize")
 public class CacheOptionsCommand implements BdvPlaygroundActionCommand {
 
@@ -53,8 +55,11 @@ public class CacheOptionsCommand implements BdvPlaygroundActionCommand {
 	@Parameter
 	PrefService prefs;
 
-	@Parameter(label = "Cache type", choices = { "Caffeine", "LinkedHashMap" },
-		persist = false)
+	@Parameter
+	SourceAndConverterService sac_service;
+
+	@Parameter(label = "Cache type", choices = { "Caffeine", "LinkedHashMap",
+		"OffHeap", "Striped", "CostAware" }, persist = false)
 	String cache_type;
 
 	@Parameter(label = "Log cache (ms between log), negative to avoid logging",
@@ -73,6 +78,38 @@ public class CacheOptionsCommand implements BdvPlaygroundActionCommand {
 		callback = "useMbForElse", persist = false)
 	int mem_for_everything_else_mb;
 
+	@Parameter(label = "Shrink the cache when the memory is needed elsewhere",
+		persist = false)
+	boolean adaptive_budget;
+
+	@Parameter(label = "Threads reading datasets, negative for default",
+		persist = false)
+	int io_threads;
+
+	@Parameter(label = "Threads computing derived sources, negative for default",
+		persist = false)
+	int cpu_threads;
+
+	@Parameter(label = "Compressed tier size (Mb), negative to disable",
+		persist = false)
+	int compressed_mb;
+
+	@Parameter(label = "Disk spill size (Mb), negative to disable",
+		persist = false)
+	int spill_mb;
+
+	@Parameter(label = "Disk spill directory", style = "directory",
+		required = false, persist = false)
+	File spill_directory;
+
+	@Parameter(label = "Keep derived sources on disk across sessions",
+		persist = false)
+	boolean persist_derived;
+
+	@Parameter(label = "Derived sources directory", style = "directory",
+		required = false, persist = false)
+	File persistent_store_directory;
+
 	@Parameter(label = "Reset to default", callback = "reset")
 	Button button;
 
@@ -86,6 +123,15 @@ public class CacheOptionsCommand implements BdvPlaygroundActionCommand {
 			case GlobalCacheBuilder.LINKED_HASH_MAP:
 				builder.linkedHashMap();
 				break;
+			case GlobalCacheBuilder.OFF_HEAP:
+				builder.offHeap();
+				break;
+			case GlobalCacheBuilder.STRIPED:
+				builder.striped();
+				break;
+			case GlobalCacheBuilder.COST_AWARE:
+				builder.costAware();
+				break;
 		}
 		if (log_ms > 0) builder.log(log_ms);
 		if (mem_for_cache_mb > 0) builder.memoryForCache((long) mem_for_cache_mb *
@@ -94,6 +140,14 @@ public class CacheOptionsCommand implements BdvPlaygroundActionCommand {
 			(long) mem_for_everything_else_mb * 1024L * 1024L);
 		if (mem_ratio_pc > 0) builder.memoryRatioForCache(((double) mem_ratio_pc) /
 			100);
+		builder.adaptiveBudget(adaptive_budget);
+		builder.fetcherThreads(io_threads, cpu_threads);
+		if (compressed_mb > 0) builder.compressedTier((long) compressed_mb * 1024L *
+			1024L);
+		if ((spill_mb > 0) && (spill_directory != null)) builder.diskSpill(
+			spill_directory.getAbsolutePath(), (long) spill_mb * 1024L * 1024L);
+		if (persist_derived && (persistent_store_directory != null)) builder
+			.persistentStore(persistent_store_directory.getAbsolutePath());
 
 		String serializedCacheBuilder = new Gson().toJson(builder,
 			GlobalCacheBuilder.class);
@@ -102,6 +156,9 @@ public class CacheOptionsCommand implements BdvPlaygroundActionCommand {
 
 		prefs.put(SourceAndConverterService.class, "cache.builder",
 			serializedCacheBuilder);
+
+		// Hot entries are kept, no restart needed
+		sac_service.reconfigureCache(builder);
 	}
 
 	void initialize() {
@@ -129,6 +186,19 @@ public class CacheOptionsCommand implements BdvPlaygroundActionCommand {
 		mem_for_everything_else_mb = builder.getMemoryInBytesForEverythingElse() > 0
 			? (int) (builder.getMemoryInBytesForEverythingElse() / (1024 * 1024))
 			: -1;
+		adaptive_budget = builder.getAdaptiveBudget();
+		io_threads = builder.getIOFetcherThreads();
+		cpu_threads = builder.getCPUFetcherThreads();
+		compressed_mb = builder.getCompressedMemoryInBytes() > 0 ? (int) (builder
+			.getCompressedMemoryInBytes() / (1024 * 1024)) : -1;
+		spill_mb = builder.getSpillMemoryInBytes() > 0 ? (int) (builder
+			.getSpillMemoryInBytes() / (1024 * 1024)) : -1;
+		spill_directory = builder.getSpillDirectory() != null ? new File(builder
+			.getSpillDirectory()) : null;
+		persist_derived = builder.getPersistentStoreDirectory() != null;
+		persistent_store_directory = persist_derived ? new File(builder
+			.getPersistentStoreDirectory()) : new File(System.getProperty(
+				"user.home"), ".bdvpg" + File.separator + "cell-store");
 		if (builder.getLog()) {
 			log_ms = builder.getMsBetweenLog();
 		}
@@ -0,0 +1,103 @@
+/*-
+ * #%L
+ * BigDataViewer-Playground
+ * %%
+ * Copyright (C) 2019 - 2025 Nicolas Chiaruttini, EPFL - Robert Haase, MPI CBG - Christian Tischer, EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.bdvpg.scijava.command;
+
+import bdv.ij.util.ProgressWriterIJ;
+import bdv.viewer.SourceAndConverter;
+import net.imglib2.FinalRealInterval;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import sc.fiji.bdvpg.cache.CacheWarmUp;
+import sc.fiji.bdvpg.scijava.ScijavaBdvDefaults;
+import sc.fiji.bdvpg.scijava.services.SourceAndConverterService;
+
+import java.util.Arrays;
+
+/**
+ * Preloads a region of sources into the global cache, at given resolution
+ * levels and timepoints, see {@link CacheWarmUp}
+ */
+@SuppressWarnings({ "CanBeFinal", "unused" }) // Because SciJava command fields
+																							// are set by SciJava
+																							// pre-processors
+
+@Plugin(type = BdvPlaygroundActionCommand.class, menuPath = ScijavaBdvDefaults.RootMenu +
+	"Warm up cache",
+	description = "Loads a region of sources into the cache, before recording a movie for instance")
+public class CacheWarmUpCommand implements BdvPlaygroundActionCommand {
+
+	@Parameter
+	SourceAndConverterService sac_service;
+
+	@Parameter(label = "Select Source(s)")
+	SourceAndConverter<?>[] sacs;
+
+	@Parameter(label = "Min X (global coordinates)")
+	double minx;
+
+	@Parameter(label = "Min Y (global coordinates)")
+	double miny;
+
+	@Parameter(label = "Min Z (global coordinates)")
+	double minz;
+
+	@Parameter(label = "Max X (global coordinates)")
+	double maxx;
+
+	@Parameter(label = "Max Y (global coordinates)")
+	double maxy;
+
+	@Parameter(label = "Max Z (global coordinates)")
+	double maxz;
+
+	@Parameter(label = "Resolution levels (comma separated, 0 = highest)")
+	String levels = "0";
+
+	@Parameter(label = "Timepoint start (0 = first timepoint)")
+	int timepointbegin = 0;
+
+	@Parameter(label = "Number of timepoints (minimum 1)", min = "1")
+	int numberoftimepoints = 1;
+
+	@Override
+	public void run() {
+		int[] levelArray = Arrays.stream(levels.split(",")).map(String::trim)
+			.filter(s -> !s.isEmpty()).mapToInt(Integer::parseInt).toArray();
+		try {
+			sac_service.warmUpCache(Arrays.asList(sacs), new FinalRealInterval(
+				new double[] { minx, miny, minz }, new double[] { maxx, maxy, maxz }),
+				levelArray, timepointbegin, timepointbegin + numberoftimepoints,
+				new ProgressWriterIJ());
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/*-
+ * #%L
+ * BigDataViewer-Playground
+ * %%
+ * Copyright (C) 2019 - 2025 Nicolas Chiaruttini, EPFL - Robert Haase, MPI CBG - Christian Tischer, EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.bdvpg.scijava.command.source;
+
+import bdv.ij.util.ProgressWriterIJ;
+import bdv.util.ResampledSource;
+import bdv.viewer.SourceAndConverter;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sc.fiji.bdvpg.scijava.ScijavaBdvDefaults;
+import sc.fiji.bdvpg.scijava.command.BdvPlaygroundActionCommand;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Computes up front all the cells of cached resampled sources, before an
+ * export or an analysis for instance, see
+ * {@link ResampledSource#precompute(int, int, int[], bdv.export.ProgressWriter)}
+ */
+@SuppressWarnings({ "CanBeFinal", "unused" }) // Because SciJava command fields
+																							// are set by SciJava
+																							// pre-processors
+
+@Plugin(type = BdvPlaygroundActionCommand.class,
+	menuPath = ScijavaBdvDefaults.RootMenu + "Sources>Precompute Resampled Sources",
+	description = "Computes all the cells of cached resampled sources in parallel")
+public class SourcesPrecomputerCommand implements BdvPlaygroundActionCommand {
+
+	protected static final Logger logger = LoggerFactory.getLogger(
+		SourcesPrecomputerCommand.class);
+
+	@Parameter(label = "Select Resampled Source(s)")
+	SourceAndConverter<?>[] sacs;
+
+	@Parameter(label = "Resolution levels (comma separated, 0 = highest)")
+	String levels = "0";
+
+	@Parameter(label = "Timepoint start (0 = first timepoint)")
+	int timepointbegin = 0;
+
+	@Parameter(label = "Number of timepoints (minimum 1)", min = "1")
+	int numberoftimepoints = 1;
+
+	@Override
+	public void run() {
+		int[] levelArray = Arrays.stream(levels.split(",")).map(String::trim)
+			.filter(s -> !s.isEmpty()).mapToInt(Integer::parseInt).toArray();
+		for (SourceAndConverter<?> sac : sacs) {
+			if (!(sac.getSpimSource() instanceof ResampledSource)) {
+				logger.warn(sac.getSpimSource().getName() +
+					" is not a resampled source, it is skipped");
+				continue;
+			}
+			ResampledSource<?> resampled = (ResampledSource<?>) sac.getSpimSource();
+			if (!resampled.isCached()) {
+				logger.warn(resampled.getName() +
+					" is not cached, its cells can't be precomputed, it is skipped");
+				continue;
+			}
+			ForkJoinTask<Integer> task = resampled.precompute(timepointbegin,
+				timepointbegin + numberoftimepoints, levelArray,
+				new ProgressWriterIJ());
+			try {
+				task.get();
+			}
+			catch (InterruptedException e) {
+				task.cancel(true);
+				Thread.currentThread().interrupt();
+				return;
+			}
+			catch (ExecutionException e) {
+				logger.error("Precomputation of " + sac.getSpimSource().getName() +
+					" failed: " + e.getCause().getMessage());
+			}
+		}
+	}
+}
@@ -31,6 +31,8 @@ package sc.fiji.bdvpg.scijava.services;
 
 import bdv.util.BdvHandle;
 import bdv.viewer.SourceAndConverter;
+import bdv.viewer.ViewerState;
+import bdv.viewer.ViewerStateChange;
 import com.google.gson.Gson;
 import ij.Prefs;
 import net.imglib2.converter.Converter;
@@ -46,6 +48,8 @@ import org.scijava.service.Service;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import sc.fiji.bdvpg.bdv.BdvHandleHelper;
+import sc.fiji.bdvpg.bdv.navigate.PlaybackPrefetcher;
+import sc.fiji.bdvpg.bdv.navigate.TrajectoryPrefetcher;
 import sc.fiji.bdvpg.scijava.services.ui.BdvHandleFilterNode;
 import sc.fiji.bdvpg.scijava.services.ui.SourceFilterNode;
 import sc.fiji.bdvpg.services.SourceAndConverterServices;
@@ -56,12 +60,17 @@ import sc.fiji.bdvpg.bdv.supplier.SerializableBdvOptions;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
@@ -355,15 +364,27 @@ public class SourceAndConverterBdvDisplayService extends AbstractService
 
 	/**
 	 * Closes appropriately a BdvHandle which means that it updates the callbacks
-	 * for ConverterSetups and updates the ObjectService
+	 * for ConverterSetups and updates the ObjectService. The cache entries of
+	 * the sources which are not displayed anymore are released.
 	 * 
 	 * @param bdvh bdvhandle to close
 	 */
 	public void closeBdv(BdvHandle bdvh) {
+		List<SourceAndConverter<?>> displayedSources = new ArrayList<>(
+			getSourceAndConverterOf(bdvh));
+		removePrefetchers(bdvh);
 		os.removeObject(bdvh);
 		displayToMetadata.invalidate(bdvh); // enables memory release on GC - even
 																				// if it bdv was weekly referenced
 
+		// Last display of these sources closed: their cells are not needed anymore
+		long reclaimed = displayedSources.stream().filter(
+			sac -> !isSourceDisplayed(sac)).mapToLong(
+				bdvSourceAndConverterService::purgeCache).sum();
+		logger.debug("Bdv closed, " + (reclaimed / (1024 * 1024)) +
+			" Mb of cache reclaimed");
+		updateCachePriorities();
+
 		// Fix BigWarp closing issue
 		boolean isPaired = pairedBdvs.stream().anyMatch(p -> (p.getA() == bdvh) ||
 			(p.getB() == bdvh));
@@ -380,6 +401,77 @@ public class SourceAndConverterBdvDisplayService extends AbstractService
 		}
 	}
 
+	/**
+	 * Recomputes the cache priorities out of the viewer state listeners, which
+	 * hold the lock of their state: each state is then read without holding
+	 * the lock of another one
+	 */
+	private static final ExecutorService cachePrioritiesUpdater = Executors
+		.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable,
+				"Bdv Playground - cache priorities");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+	// Coalesces the updates requested while one is pending
+	private final AtomicBoolean cachePrioritiesUpdatePending =
+		new AtomicBoolean(false);
+
+	/**
+	 * Demotes in the global cache the sources which are not visible in any
+	 * BdvHandle: their entries are evicted before the entries of visible
+	 * sources, see {@link sc.fiji.bdvpg.cache.AbstractGlobalCache#setDemotedSources}.
+	 * The cells of a spimdata object are shared by all its sources, so they are
+	 * only demoted when none of these sources is visible. Called each time the
+	 * visibility or the sources of a BdvHandle change. The update is done
+	 * asynchronously, on a single thread.
+	 */
+	public void updateCachePriorities() {
+		if (cachePrioritiesUpdatePending.compareAndSet(false, true)) {
+			cachePrioritiesUpdater.execute(() -> {
+				cachePrioritiesUpdatePending.set(false);
+				computeCachePriorities();
+			});
+		}
+	}
+
+	private void computeCachePriorities() {
+		Set<Object> visibleOwners = Collections.newSetFromMap(
+			new IdentityHashMap<>());
+		for (BdvHandle bdvh : getDisplays()) {
+			// Copied under the lock of this state only
+			ViewerState state = bdvh.getViewerPanel().state().snapshot();
+			for (SourceAndConverter<?> sac : state.getVisibleSources()) {
+				visibleOwners.addAll(bdvSourceAndConverterService.getCacheOwnersOf(
+					sac));
+			}
+		}
+		Set<Object> demotedOwners = Collections.newSetFromMap(
+			new IdentityHashMap<>());
+		for (SourceAndConverter<?> sac : bdvSourceAndConverterService
+			.getSourceAndConverters())
+		{
+			for (Object owner : bdvSourceAndConverterService.getCacheOwnersOf(sac)) {
+				if (!visibleOwners.contains(owner)) demotedOwners.add(owner);
+			}
+		}
+		bdvSourceAndConverterService.getCache().setDemotedSources(demotedOwners);
+	}
+
+	/**
+	 * @param sac source to check
+	 * @return true if the source of this sac is displayed in a BdvHandle,
+	 *         through this sac or through another one sharing the same source
+	 */
+	private boolean isSourceDisplayed(SourceAndConverter<?> sac) {
+		List<SourceAndConverter<?>> sharingSource = bdvSourceAndConverterService
+			.getSourceAndConvertersFromSource(sac.getSpimSource());
+		sharingSource.add(sac);
+		return !getDisplaysOf(sharingSource.toArray(new SourceAndConverter[0]))
+			.isEmpty();
+	}
+
 	/**
 	 * Enables proper closing of Big Warp paired BdvHandles
 	 */
@@ -497,6 +589,58 @@ public class SourceAndConverterBdvDisplayService extends AbstractService
 		}
 	}
 
+	final static String TRAJECTORY_PREFETCHER = "TRAJECTORY_PREFETCHER";
+
+	final static String PLAYBACK_PREFETCHER = "PLAYBACK_PREFETCHER";
+
+	/**
+	 * Loads in advance the data about to be displayed in a BdvHandle, while
+	 * navigating (see {@link TrajectoryPrefetcher}) and, if timepointsAhead is
+	 * above 0, while playing a time-lapse (see {@link PlaybackPrefetcher}). The
+	 * prefetchers previously added to this BdvHandle are replaced. They are
+	 * removed when the BdvHandle is closed.
+	 *
+	 * @param bdvh window whose navigation is followed
+	 * @param stepsAhead number of viewer transform changes extrapolated
+	 * @param timepointsAhead number of timepoints loaded after the current one,
+	 *          0 for none
+	 */
+	public void addPrefetchers(BdvHandle bdvh, int stepsAhead,
+		int timepointsAhead)
+	{
+		removePrefetchers(bdvh);
+		TrajectoryPrefetcher trajectoryPrefetcher = new TrajectoryPrefetcher(bdvh,
+			stepsAhead);
+		trajectoryPrefetcher.run();
+		setDisplayMetadata(bdvh, TRAJECTORY_PREFETCHER, trajectoryPrefetcher);
+		if (timepointsAhead > 0) {
+			PlaybackPrefetcher playbackPrefetcher = new PlaybackPrefetcher(bdvh,
+				timepointsAhead);
+			playbackPrefetcher.run();
+			setDisplayMetadata(bdvh, PLAYBACK_PREFETCHER, playbackPrefetcher);
+		}
+	}
+
+	/**
+	 * Stops the prefetchers added to a BdvHandle, see
+	 * {@link #addPrefetchers(BdvHandle, int, int)}. The global cache stops
+	 * evicting its entries by temporal distance.
+	 *
+	 * @param bdvh window whose prefetchers are removed
+	 */
+	public void removePrefetchers(BdvHandle bdvh) {
+		Map<String, Object> metadata = displayToMetadata.getIfPresent(bdvh);
+		if (metadata == null) return;
+		Object trajectoryPrefetcher = metadata.remove(TRAJECTORY_PREFETCHER);
+		if (trajectoryPrefetcher != null) {
+			((TrajectoryPrefetcher) trajectoryPrefetcher).removeFromBdv();
+		}
+		Object playbackPrefetcher = metadata.remove(PLAYBACK_PREFETCHER);
+		if (playbackPrefetcher != null) {
+			((PlaybackPrefetcher) playbackPrefetcher).removeFromBdv();
+		}
+	}
+
 	public void registerBdvHandle(BdvHandle bdvh) {
 		// ------------ Register BdvHandle in ObjectService
 		if (!os.getObjects(BdvHandle.class).contains(bdvh)) { // adds it only if not
@@ -523,6 +667,15 @@ public class SourceAndConverterBdvDisplayService extends AbstractService
 			BdvHandleHelper.setBdvHandleCloseOperation(bdvh, cacheService, this, true,
 				() -> sacService.getUI().removeBdvHandleNodes(bdvh));
 
+			// ------------ Sources hidden everywhere are evicted first from the cache
+			bdvh.getViewerPanel().state().changeListeners().add(change -> {
+				if ((change == ViewerStateChange.VISIBILITY_CHANGED) ||
+					(change == ViewerStateChange.NUM_SOURCES_CHANGED))
+				{
+					updateCachePriorities();
+				}
+			});
+
 			((SourceFilterNode) sacService.getUI().getTreeModel().getRoot()).insert(
 				node, 0);
 		}
@@ -33,11 +33,14 @@ import bdv.SpimSource;
 import bdv.ViewerImgLoader;
 import bdv.ViewerSetupImgLoader;
 import bdv.VolatileSpimSource;
+import bdv.export.ProgressWriter;
 import bdv.img.cache.VolatileGlobalCellCache;
 import bdv.img.hdf5.Hdf5ImageLoader;
 import bdv.img.n5.N5ImageLoader;
 import bdv.spimdata.WrapBasicImgLoader;
 import bdv.tools.brightness.ConverterSetup;
+import bdv.tools.transformation.TransformedSource;
+import bdv.util.WrapVolatileSource;
 import bdv.viewer.Source;
 import bdv.viewer.SourceAndConverter;
 import com.google.common.cache.Cache;
@@ -51,6 +54,7 @@ import mpicbg.spim.data.generic.sequence.BasicViewSetup;
 import mpicbg.spim.data.sequence.Angle;
 import mpicbg.spim.data.sequence.Channel;
 import net.imagej.patcher.LegacyInjector;
+import net.imglib2.RealInterval;
 import net.imglib2.cache.LoaderCache;
 import net.imglib2.converter.Converter;
 import net.imglib2.realtransform.AffineTransform3D;
@@ -75,8 +79,12 @@ import org.scijava.ui.UIService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import sc.fiji.bdvpg.cache.AbstractGlobalCache;
+import sc.fiji.bdvpg.cache.CacheWarmUp;
 import sc.fiji.bdvpg.cache.GlobalCacheBuilder;
+import sc.fiji.bdvpg.cache.GlobalCacheStatistics;
 import sc.fiji.bdvpg.cache.GlobalLoaderCache;
+import sc.fiji.bdvpg.cache.PersistentCellStore;
+import sc.fiji.bdvpg.cache.SharedFetchQueues;
 import sc.fiji.bdvpg.scijava.command.BdvPlaygroundActionCommand;
 import sc.fiji.bdvpg.scijava.services.ui.SourceAndConverterServiceUI;
 import sc.fiji.bdvpg.services.ISourceAndConverterService;
@@ -88,6 +96,7 @@ import sc.fiji.bdvpg.spimdata.IEntityHandlerService;
 import java.io.Closeable;
 import java.io.IOException;
 import java.lang.reflect.Field;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -311,17 +320,84 @@ public class SourceAndConverterService extends AbstractService implements
 		}
 	}
 
-	private AbstractGlobalCache globalCache;
+	private volatile AbstractGlobalCache globalCache;
+
+	/**
+	 * Builder of the current global cache, null if the cache was set directly
+	 */
+	private GlobalCacheBuilder globalCacheBuilder;
 
 	public AbstractGlobalCache getCache() {
 		return globalCache;
 	}
 
+	@Override
+	public synchronized void setCache(AbstractGlobalCache cache) {
+		setCache(cache, null);
+	}
+
+	private synchronized void setCache(AbstractGlobalCache cache,
+		GlobalCacheBuilder builder)
+	{
+		AbstractGlobalCache previousCache = globalCache;
+		// New accesses go to the new cache from now on
+		globalCache = cache;
+		globalCacheBuilder = builder;
+		if ((previousCache == null) || (previousCache == cache)) return;
+		long start = System.currentTimeMillis();
+		int nTransferred = previousCache.transferTo(cache);
+		previousCache.dispose();
+		if (bsds != null) bsds.updateCachePriorities(); // Sources demoted again
+		logger.info("Global cache replaced, " + nTransferred +
+			" entries transferred in " + (System.currentTimeMillis() - start) +
+			" ms");
+	}
+
+	/**
+	 * Applies a cache configuration without restarting: if only the memory
+	 * budget differs, the current cache is resized in place, otherwise a new
+	 * cache is built and replaces the current one, see
+	 * {@link #setCache(AbstractGlobalCache)}
+	 *
+	 * @param builder new cache configuration
+	 */
+	public synchronized void reconfigureCache(GlobalCacheBuilder builder) {
+		SharedFetchQueues.setParallelism(builder.getIOFetcherThreads(), builder
+			.getCPUFetcherThreads());
+		setPersistentStore(builder);
+		if ((globalCacheBuilder != null) && (globalCacheBuilder.isResizeOf(
+			builder)))
+		{
+			long cacheSize = builder.computeCacheSize();
+			if (globalCache.getAdaptiveBudget() != null) {
+				globalCache.getAdaptiveBudget().setMaxBudget(cacheSize);
+			}
+			else {
+				globalCache.setMaxSize(cacheSize);
+			}
+			globalCacheBuilder = builder;
+		}
+		else {
+			setCache(builder.create(), builder);
+		}
+	}
+
+	/**
+	 * Sets the root directory of the on-disk stores of derived sources. Sources
+	 * created before keep their current store.
+	 */
+	private static void setPersistentStore(GlobalCacheBuilder builder) {
+		String directory = builder.getPersistentStoreDirectory();
+		PersistentCellStore.setRootDirectory((directory == null) ? null : Paths
+			.get(directory));
+	}
+
 	private boolean replaceSpimDataCacheByGlobalCache(AbstractSpimData<?> asd) {
 		LoaderCache loaderCache = new GlobalLoaderCache(asd);
 		BasicImgLoader imageLoader = asd.getSequenceDescription().getImgLoader();
-		VolatileGlobalCellCache cache = new VolatileGlobalCellCache(10, Math.max(1,
-			Runtime.getRuntime().availableProcessors() - 1));
+		// All datasets share the same fetcher threads
+		VolatileGlobalCellCache cache = new VolatileGlobalCellCache(
+			SharedFetchQueues.getIOQueue());
 		// Now override the backingCache field of the VolatileGlobalCellCache
 		try {
 			Field backingCacheField = VolatileGlobalCellCache.class.getDeclaredField(
@@ -574,6 +650,7 @@ public class SourceAndConverterService extends AbstractService implements
 	public synchronized void remove(SourceAndConverter<?>... sacs) {
 		// Remove displays
 		if (sacs != null) {
+			long reclaimed = 0;
 			if (bsds != null) {
 				bsds.removeFromAllBdvs(sacs);
 			}
@@ -592,6 +669,7 @@ public class SourceAndConverterService extends AbstractService implements
 							// Last one! Time to invalidate the cache (if there's one,
 							// meaning, if the image loader
 							// is a ViewerImageLoader)
+							reclaimed += getCache().invalidateSource(asd);
 
 							if (asd.getSequenceDescription()
 								.getImgLoader() instanceof ViewerImgLoader)
@@ -648,6 +726,11 @@ public class SourceAndConverterService extends AbstractService implements
 				            at sc.fiji.bdvpg.scijava.services.SourceAndConverterService.register(SourceAndConverterService.java:235)
 				 */
 				objectService.removeObject(sac);
+				// Cells of a source which is not used anymore are released now,
+				// instead of taking the cache budget until they are evicted
+				if (getSourceAndConvertersFromSource(sac.getSpimSource()).isEmpty()) {
+					reclaimed += purgeCache(sac);
+				}
 				/*
 				Does not work
 				AtomicBoolean flagPerformed = new AtomicBoolean();
@@ -661,9 +744,71 @@ public class SourceAndConverterService extends AbstractService implements
 				}*/
 				ui.remove(sac);
 			}
+			logger.debug("Removed sources, " + (reclaimed / (1024 * 1024)) +
+				" Mb of cache reclaimed");
 		}
 	}
 
+	/**
+	 * @param sac a source
+	 * @return the objects under which the cells of this source are keyed in the
+	 *         global cache: the source, its volatile counterpart, the sources
+	 *         they wrap without copying their cells (a transformed cached
+	 *         resampled source is keyed by the resampled source), and its
+	 *         spimdata object if it comes from a spimdata
+	 */
+	public List<Object> getCacheOwnersOf(SourceAndConverter<?> sac) {
+		List<Object> owners = new ArrayList<>();
+		addCacheOwners(sac.getSpimSource(), owners);
+		if (sac.asVolatile() != null) {
+			addCacheOwners(sac.asVolatile().getSpimSource(), owners);
+		}
+		Object info = getMetadata(sac, SPIM_DATA_INFO);
+		if (info != null) owners.add(((SpimDataInfo) info).asd);
+		return owners;
+	}
+
+	private static void addCacheOwners(Source<?> source, List<Object> owners) {
+		while ((source != null) && (!owners.contains(source))) {
+			owners.add(source);
+			if (source instanceof TransformedSource) {
+				source = ((TransformedSource<?>) source).getWrappedSource();
+			}
+			else if (source instanceof WrapVolatileSource) {
+				source = ((WrapVolatileSource<?, ?>) source).getWrappedSource();
+			}
+			else source = null;
+		}
+	}
+
+	@Override
+	public int warmUpCache(List<SourceAndConverter<?>> sacs,
+		RealInterval interval, int[] levels, int timepointBegin, int timepointEnd,
+		ProgressWriter progress) throws InterruptedException
+	{
+		return new CacheWarmUp(getCache(), sacs, interval, levels, timepointBegin,
+			timepointEnd, progress).call();
+	}
+
+	/**
+	 * Releases the entries of the global cache which belong to a source and to
+	 * its volatile counterpart, see
+	 * {@link AbstractGlobalCache#invalidateSource(Object)}. Entries of sources
+	 * backed by a spimdata object are keyed by the spimdata object, and are not
+	 * released.
+	 *
+	 * @param sac source whose entries should be released
+	 * @return the memory released, in bytes
+	 */
+	public long purgeCache(SourceAndConverter<?> sac) {
+		AbstractGlobalCache cache = getCache();
+		long reclaimed = cache.invalidateSource(sac.getSpimSource());
+		if (sac.asVolatile() != null) {
+			reclaimed += cache.invalidateSource(sac.asVolatile().getSpimSource());
+		}
+		return reclaimed;
+	}
+
 	@Override
 	public List<SourceAndConverter<?>> getSourceAndConverters() {
 		List<SourceAndConverter> list = objectService.getObjects(
@@ -731,8 +876,9 @@ public class SourceAndConverterService extends AbstractService implements
 			defaultCacheBuilder);
 
 		try {
-			globalCache = gson.fromJson(cacheBuilderJson, GlobalCacheBuilder.class)
-				.create();
+			globalCacheBuilder = gson.fromJson(cacheBuilderJson,
+				GlobalCacheBuilder.class);
+			globalCache = globalCacheBuilder.create();
 
 		}
 		catch (Exception e) {
@@ -743,9 +889,18 @@ public class SourceAndConverterService extends AbstractService implements
 			logger.debug("Cache builder serialized into : " + cacheBuilderSerialized);
 			// Saved in prefs for next session
 			prefService.put(this.getClass(), "cache.builder", cacheBuilderSerialized);
-			globalCache = GlobalCacheBuilder.builder().create();
+			globalCacheBuilder = GlobalCacheBuilder.builder();
+			globalCache = globalCacheBuilder.create();
 		}
 
+		SharedFetchQueues.setParallelism(globalCacheBuilder.getIOFetcherThreads(),
+			globalCacheBuilder.getCPUFetcherThreads());
+		setPersistentStore(globalCacheBuilder);
+
+		registerCellStoreShutdownHook(this);
+
+		GlobalCacheStatistics.register(this::getCache);
+
 		if (context().getService(UIService.class)!=null) {
 			if (!context().getService(UIService.class).isHeadless()) {
 				logger.debug(
@@ -896,6 +1051,51 @@ public class SourceAndConverterService extends AbstractService implements
 
 	// ------------------- SpimData specific information
 
+	/**
+	 * Writes the cells still in memory to their store before exiting. Registered
+	 * once, whatever the number of services, and removed when the service which
+	 * owns it is disposed.
+	 */
+	private static Thread cellStoreShutdownHook;
+
+	private static volatile SourceAndConverterService cellStoreOwner;
+
+	private static synchronized void registerCellStoreShutdownHook(
+		SourceAndConverterService service)
+	{
+		cellStoreOwner = service;
+		if (cellStoreShutdownHook != null) return;
+		cellStoreShutdownHook = new Thread(() -> {
+			SourceAndConverterService owner = cellStoreOwner;
+			if ((owner == null) || (PersistentCellStore.getRootDirectory() == null))
+				return;
+			owner.getCache().persistAll();
+			PersistentCellStore.flush();
+		}, "Bdv Playground - cell store shutdown");
+		Runtime.getRuntime().addShutdownHook(cellStoreShutdownHook);
+	}
+
+	private static synchronized void unregisterCellStoreShutdownHook(
+		SourceAndConverterService service)
+	{
+		if (cellStoreOwner != service) return;
+		cellStoreOwner = null;
+		if (cellStoreShutdownHook == null) return;
+		try {
+			Runtime.getRuntime().removeShutdownHook(cellStoreShutdownHook);
+		}
+		catch (IllegalStateException e) {
+			// Already shutting down: the hook runs anyway
+		}
+		cellStoreShutdownHook = null;
+	}
+
+	@Override
+	public void dispose() {
+		unregisterCellStoreShutdownHook(this);
+		super.dispose();
+	}
+
 	public static class SpimDataInfo {
 
 		public final AbstractSpimData asd;
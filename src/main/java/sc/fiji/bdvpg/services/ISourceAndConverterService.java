@@ -29,12 +29,14 @@
 
 package sc.fiji.bdvpg.services;
 
+import bdv.export.ProgressWriter;
 import bdv.tools.brightness.ConverterSetup;
 import sc.fiji.bdvpg.cache.AbstractGlobalCache;
 import sc.fiji.bdvpg.cache.BoundedLinkedHashMapGlobalCache;
 import bdv.viewer.Source;
 import bdv.viewer.SourceAndConverter;
 import mpicbg.spim.data.generic.AbstractSpimData;
+import net.imglib2.RealInterval;
 
 import java.util.Collection;
 import java.util.List;
@@ -267,4 +269,33 @@ public interface ISourceAndConverterService {
 
 	AbstractGlobalCache getCache();
 
+	/**
+	 * Replaces the global cache at runtime. The hottest entries of the current
+	 * cache which fit in the new one are transferred, then the current cache is
+	 * disposed. Sources keep working without interruption: they look up the
+	 * global cache at each access.
+	 *
+	 * @param cache the new global cache
+	 */
+	void setCache(AbstractGlobalCache cache);
+
+	/**
+	 * Loads into the global cache the cells of sources which intersect a region,
+	 * so that they can be displayed without delay afterwards. Blocks until the
+	 * cells are loaded, or until the cells loaded fill most of the cache budget,
+	 * see {@link sc.fiji.bdvpg.cache.CacheWarmUp}.
+	 *
+	 * @param sacs sources to warm up
+	 * @param interval region to load, in global coordinates
+	 * @param levels resolution levels to load
+	 * @param timepointBegin first timepoint to load
+	 * @param timepointEnd last timepoint to load, excluded
+	 * @param progress progress and messages of the warm-up, the console if null
+	 * @return the number of cells warmed up
+	 * @throws InterruptedException if the warm-up is interrupted
+	 */
+	int warmUpCache(List<SourceAndConverter<?>> sacs, RealInterval interval,
+		int[] levels, int timepointBegin, int timepointEnd,
+		ProgressWriter progress) throws InterruptedException;
+
 }
@@ -36,7 +36,9 @@ import bdv.tools.brightness.ConverterSetup;
 import bdv.tools.transformation.TransformedSource;
 import bdv.util.BdvHandle;
 import bdv.util.LUTConverterSetup;
+import bdv.util.RandomAccessibleIntervalSource;
 import bdv.util.ResampledSource;
+import bdv.util.TimeInvariantSource;
 import bdv.util.UnmodifiableConverterSetup;
 import bdv.viewer.Interpolation;
 import bdv.viewer.Source;
@@ -897,6 +899,32 @@ public class SourceAndConverterHelper {
 		return rootOrigin;
 	}
 
+	/**
+	 * Tells whether a source returns the same data, with the same transforms, at
+	 * all timepoints, in which case its cells can be shared by all timepoints.
+	 * Sources implementing {@link TimeInvariantSource} tell it themselves.
+	 * Affine transformed and warped sources are time invariant if the source
+	 * they wrap is, since their transformation does not depend on the timepoint.
+	 * {@link RandomAccessibleIntervalSource}s display a single RAI at all
+	 * timepoints. Any other source is considered as time dependent.
+	 *
+	 * @param source source
+	 * @return true if the source is known to be time invariant
+	 */
+	public static boolean isTimeInvariant(Source<?> source) {
+		if (source instanceof TimeInvariantSource) {
+			return ((TimeInvariantSource) source).isTimeInvariant();
+		}
+		if (source instanceof TransformedSource) {
+			return isTimeInvariant(((TransformedSource<?>) source)
+				.getWrappedSource());
+		}
+		if (source instanceof WarpedSource) {
+			return isTimeInvariant(((WarpedSource<?>) source).getWrappedSource());
+		}
+		return source instanceof RandomAccessibleIntervalSource;
+	}
+
 	/**
 	 * see
 	 * {@link SourceAndConverterHelper#getCharacteristicVoxelSize(AffineTransform3D)}
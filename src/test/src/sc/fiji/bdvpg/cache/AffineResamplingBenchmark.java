@@ -0,0 +1,145 @@
+/*-
+ * #%L
+ * BigDataViewer-Playground
+ * %%
+ * Copyright (C) 2019 - 2025 Nicolas Chiaruttini, EPFL - Robert Haase, MPI CBG - Christian Tischer, EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.bdvpg.cache;
+
+import bdv.util.AffineResamplingLoader;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.algorithm.lazy.Caches;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.LoadedCellCacheLoader;
+import net.imglib2.img.Img;
+import net.imglib2.img.basictypeaccess.AccessFlags;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.realtransform.RealViews;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the computation of a 64x64x64 cell of a resampled source, with the
+ * interpolated affine view of the origin (the previous way, and still the way
+ * for non real valued pixel types) and with the scanline
+ * {@link AffineResamplingLoader}. The origin is a 256x256x256 cell image of
+ * unsigned shorts, rotated and scaled into the model. Run the main method.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+public class AffineResamplingBenchmark {
+
+    static final int SIZE = 256;
+
+    static final int CELL = 64;
+
+    @Param({ "nearest", "linear" })
+    public String interpolation;
+
+    LoadedCellCacheLoader<UnsignedShortType, ?> viewLoader;
+
+    LoadedCellCacheLoader<UnsignedShortType, ?> scanlineLoader;
+
+    // A cell in the middle of the model
+    long cellIndex;
+
+    @Setup
+    public void setup() {
+        Img<UnsignedShortType> origin = new CellImgFactory<>(new UnsignedShortType(), CELL).create(SIZE, SIZE, SIZE);
+        Random random = new Random(42);
+        origin.forEach(pixel -> pixel.set(random.nextInt(65536)));
+
+        AffineTransform3D modelToOrigin = new AffineTransform3D();
+        modelToOrigin.translate(-SIZE / 2.0, -SIZE / 2.0, -SIZE / 2.0);
+        modelToOrigin.rotate(2, Math.PI / 6);
+        modelToOrigin.rotate(0, Math.PI / 8);
+        modelToOrigin.scale(0.8);
+        modelToOrigin.translate(SIZE / 2.0, SIZE / 2.0, SIZE / 2.0);
+
+        boolean linear = interpolation.equals("linear");
+        RealRandomAccessible<UnsignedShortType> interpolated = linear ?
+            Views.interpolate(Views.extendZero(origin), new NLinearInterpolatorFactory<>()) :
+            Views.interpolate(Views.extendZero(origin), new NearestNeighborInterpolatorFactory<>());
+        RandomAccessibleInterval<UnsignedShortType> view = Views.interval(
+            RealViews.simplify(RealViews.affine(interpolated, modelToOrigin.inverse())),
+            new long[] { 0, 0, 0 }, new long[] { SIZE - 1, SIZE - 1, SIZE - 1 });
+
+        CellGrid grid = new CellGrid(new long[] { SIZE, SIZE, SIZE }, new int[] { CELL, CELL, CELL });
+        viewLoader = loader(grid, new Caches.RandomAccessibleLoader<>(view));
+        scanlineLoader = loader(grid, new AffineResamplingLoader<>(origin, modelToOrigin, linear));
+        long half = SIZE / CELL / 2;
+        cellIndex = half + (SIZE / CELL) * (half + (SIZE / CELL) * half);
+    }
+
+    static LoadedCellCacheLoader<UnsignedShortType, ?> loader(CellGrid grid, CellLoader<UnsignedShortType> loader) {
+        return LoadedCellCacheLoader.get(grid, loader, new UnsignedShortType(), AccessFlags.setOf(AccessFlags.VOLATILE));
+    }
+
+    @Benchmark
+    public Cell<?> interpolatedView() throws Exception {
+        return viewLoader.get(cellIndex);
+    }
+
+    @Benchmark
+    public Cell<?> scanline() throws Exception {
+        return scanlineLoader.get(cellIndex);
+    }
+
+    public static void main(String... args) throws RunnerException {
+        Options options = new OptionsBuilder()
+            .include(AffineResamplingBenchmark.class.getSimpleName())
+            .build();
+        new Runner(options).run();
+    }
+}
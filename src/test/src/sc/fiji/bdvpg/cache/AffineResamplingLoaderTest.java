@@ -0,0 +1,175 @@
+/*-
+ * #%L
+ * BigDataViewer-Playground
+ * %%
+ * Copyright (C) 2019 - 2025 Nicolas Chiaruttini, EPFL - Robert Haase, MPI CBG - Christian Tischer, EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.bdvpg.cache;
+
+import bdv.util.AffineResamplingLoader;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.algorithm.lazy.Caches;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.LoadedCellCacheLoader;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.basictypeaccess.AccessFlags;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.realtransform.RealViews;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Checks that the cells computed by the {@link AffineResamplingLoader} match
+ * the ones copied from the interpolated affine view of the origin, which is
+ * the way resampled sources are computed otherwise. The model is oblique
+ * with respect to the origin, and larger than it: cells which cross the
+ * border of the origin, and cells entirely outside of it, are compared too.
+ * Both origin layouts read directly by the loader are tested (cell image and
+ * array image).
+ */
+public class AffineResamplingLoaderTest {
+
+    static final long[] ORIGIN_DIMS = { 40, 36, 30 };
+
+    static final long[] MODEL_DIMS = { 64, 64, 48 };
+
+    static final int[] CELL_DIMS = { 16, 16, 16 };
+
+    /**
+     * Integer types, n-linear: {@link net.imglib2.interpolation.randomaccess.NLinearInterpolator}
+     * rounds each of the 8 weighted terms to an integer (up to 0.5 each), while
+     * the loader interpolates in double and rounds once (up to 0.5)
+     */
+    static final double INTEGER_LINEAR_TOLERANCE = 8 * 0.5 + 0.5;
+
+    // Float types, n-linear: the interpolator accumulates in float, a float ulp
+    // is 6e-5 for values up to 1000
+    static final double FLOAT_LINEAR_TOLERANCE = 1e-2;
+
+    static AffineTransform3D obliqueModelToOrigin() {
+        AffineTransform3D modelToOrigin = new AffineTransform3D();
+        modelToOrigin.translate(-MODEL_DIMS[0] / 2.0, -MODEL_DIMS[1] / 2.0, -MODEL_DIMS[2] / 2.0);
+        modelToOrigin.rotate(2, Math.PI / 7);
+        modelToOrigin.rotate(0, Math.PI / 9);
+        modelToOrigin.scale(0.9);
+        modelToOrigin.translate(ORIGIN_DIMS[0] / 2.0 + 0.3, ORIGIN_DIMS[1] / 2.0 - 0.2, ORIGIN_DIMS[2] / 2.0 + 0.1);
+        return modelToOrigin;
+    }
+
+    static <T extends RealType<T> & NativeType<T>> Img<T> origin(ImgFactory<T> factory) {
+        Img<T> origin = factory.create(ORIGIN_DIMS);
+        Random random = new Random(42);
+        // No zero: zeros only come from outside of the origin
+        origin.forEach(pixel -> pixel.setReal(1 + random.nextInt(1000)));
+        return origin;
+    }
+
+    static <T extends NativeType<T>> LoadedCellCacheLoader<T, ?> loader(CellGrid grid, CellLoader<T> loader, T type) {
+        return LoadedCellCacheLoader.get(grid, loader, type, AccessFlags.setOf(AccessFlags.VOLATILE));
+    }
+
+    static double value(Object array, int i) {
+        if (array instanceof short[]) return ((short[]) array)[i] & 0xffff; // Unsigned shorts
+        return ((float[]) array)[i];
+    }
+
+    static <T extends RealType<T> & NativeType<T>> void assertSameCells(Img<T> origin, boolean linear, double tolerance) throws Exception {
+        AffineTransform3D modelToOrigin = obliqueModelToOrigin();
+        T type = origin.firstElement().createVariable();
+        RealRandomAccessible<T> interpolated = linear ?
+            Views.interpolate(Views.extendZero(origin), new NLinearInterpolatorFactory<>()) :
+            Views.interpolate(Views.extendZero(origin), new NearestNeighborInterpolatorFactory<>());
+        RandomAccessibleInterval<T> view = Views.interval(
+            RealViews.affine(interpolated, modelToOrigin.inverse()), new FinalInterval(MODEL_DIMS));
+
+        CellGrid grid = new CellGrid(MODEL_DIMS, CELL_DIMS);
+        LoadedCellCacheLoader<T, ?> expected = loader(grid, new Caches.RandomAccessibleLoader<>(view), type);
+        LoadedCellCacheLoader<T, ?> actual = loader(grid, new AffineResamplingLoader<>(origin, modelToOrigin, linear), type);
+
+        int borderCells = 0, outsideCells = 0;
+        long numCells = Intervals.numElements(grid.getGridDimensions());
+        for (long index = 0; index < numCells; index++) {
+            Object expectedArray = ((ArrayDataAccess<?>) expected.get(index).getData()).getCurrentStorageArray();
+            Cell<?> cell = actual.get(index);
+            Object actualArray = ((ArrayDataAccess<?>) cell.getData()).getCurrentStorageArray();
+            int n = (int) Intervals.numElements(cell);
+            int zeros = 0;
+            for (int i = 0; i < n; i++) {
+                double e = value(expectedArray, i);
+                Assert.assertEquals("Cell " + index + ", voxel " + i, e, value(actualArray, i), tolerance);
+                if (e == 0) zeros++;
+            }
+            if (zeros == n) outsideCells++;
+            else if (zeros > 0) borderCells++;
+        }
+        // The comparison covers the border of the origin and the cells skipped
+        Assert.assertTrue(borderCells > 0);
+        Assert.assertTrue(outsideCells > 0);
+    }
+
+    @Test
+    public void testNearestIntegerType() throws Exception {
+        assertSameCells(origin(new CellImgFactory<>(new UnsignedShortType(), 8)), false, 0);
+        assertSameCells(origin(new ArrayImgFactory<>(new UnsignedShortType())), false, 0);
+    }
+
+    @Test
+    public void testLinearIntegerType() throws Exception {
+        assertSameCells(origin(new CellImgFactory<>(new UnsignedShortType(), 8)), true, INTEGER_LINEAR_TOLERANCE);
+        assertSameCells(origin(new ArrayImgFactory<>(new UnsignedShortType())), true, INTEGER_LINEAR_TOLERANCE);
+    }
+
+    @Test
+    public void testNearestFloatType() throws Exception {
+        assertSameCells(origin(new CellImgFactory<>(new FloatType(), 8)), false, 0);
+        assertSameCells(origin(new ArrayImgFactory<>(new FloatType())), false, 0);
+    }
+
+    @Test
+    public void testLinearFloatType() throws Exception {
+        assertSameCells(origin(new CellImgFactory<>(new FloatType(), 8)), true, FLOAT_LINEAR_TOLERANCE);
+        assertSameCells(origin(new ArrayImgFactory<>(new FloatType())), true, FLOAT_LINEAR_TOLERANCE);
+    }
+
+}
@@ -0,0 +1,117 @@
+/*-
+ * #%L
+ * BigDataViewer-Playground
+ * %%
+ * Copyright (C) 2019 - 2025 Nicolas Chiaruttini, EPFL - Robert Haase, MPI CBG - Christian Tischer, EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.bdvpg.cache;
+
+import bdv.util.RAIHelper;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.util.Intervals;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that the block size adapted to the dimensions and anisotropy of a
+ * model loads fewer cells, and fewer elements, than fixed 64x64x64 blocks when
+ * a plane is displayed.
+ */
+public class BlockSizeTest {
+
+    // Former block size: 64x64x64, capped to the dimensions
+    static int[] fixedBlockSize(long[] dimensions) {
+        int[] blockSize = new int[3];
+        for (int d = 0; d < 3; d++) {
+            blockSize[d] = (int) Math.min(64, dimensions[d]);
+        }
+        return blockSize;
+    }
+
+    /**
+     * @return the number of cells to load to read the plane, and the number of
+     * elements they contain
+     */
+    static long[] load(long[] dimensions, int[] blockSize, Interval plane) {
+        CellGrid grid = new CellGrid(dimensions, blockSize);
+        long[] cellMin = new long[3];
+        int[] cellDims = new int[3];
+        long cells = 0, elements = 0;
+        long numCells = Intervals.numElements(grid.getGridDimensions());
+        for (long index = 0; index < numCells; index++) {
+            grid.getCellDimensions(index, cellMin, cellDims);
+            boolean overlaps = true;
+            for (int d = 0; d < 3; d++) {
+                overlaps &= (cellMin[d] <= plane.max(d)) && (cellMin[d] + cellDims[d] - 1 >= plane.min(d));
+            }
+            if (overlaps) {
+                cells++;
+                elements += (long) cellDims[0] * cellDims[1] * cellDims[2];
+            }
+        }
+        return new long[] { cells, elements };
+    }
+
+    static void assertFewerLoads(long[] dimensions, double[] voxelSize, Interval plane) {
+        int[] adaptive = RAIHelper.blockSize(dimensions, voxelSize);
+        long cellElements = (long) adaptive[0] * adaptive[1] * adaptive[2];
+        Assert.assertTrue("Cells of " + cellElements + " elements", cellElements <= RAIHelper.CELL_ELEMENTS);
+
+        long[] fixedLoads = load(dimensions, fixedBlockSize(dimensions), plane);
+        long[] adaptiveLoads = load(dimensions, adaptive, plane);
+        Assert.assertTrue("Cells loaded: " + adaptiveLoads[0] + " vs " + fixedLoads[0], adaptiveLoads[0] < fixedLoads[0]);
+        Assert.assertTrue("Elements loaded: " + adaptiveLoads[1] + " vs " + fixedLoads[1], adaptiveLoads[1] <= fixedLoads[1]);
+    }
+
+    @Test
+    public void test2DModel() {
+        long[] dimensions = { 512, 512, 1 };
+        Assert.assertArrayEquals(new int[] { 512, 512, 1 }, RAIHelper.blockSize(dimensions, new double[] { 1, 1, 1 }));
+        // 1 cell instead of 64
+        assertFewerLoads(dimensions, new double[] { 1, 1, 1 }, new FinalInterval(dimensions));
+    }
+
+    @Test
+    public void testAnisotropicModel() {
+        // Light-sheet like: z steps 10 times bigger than the pixel size
+        long[] dimensions = { 1024, 1024, 200 };
+        double[] voxelSize = { 0.2, 0.2, 2 };
+        int[] blockSize = RAIHelper.blockSize(dimensions, voxelSize);
+        Assert.assertTrue(blockSize[0] > 64 && blockSize[2] < 64);
+        // Display of a xy plane
+        assertFewerLoads(dimensions, voxelSize, new FinalInterval(new long[] { 0, 0, 100 }, new long[] { 1023, 1023, 100 }));
+    }
+
+    @Test
+    public void testIsotropicModel() {
+        Assert.assertArrayEquals(new int[] { 64, 64, 64 }, RAIHelper.blockSize(new long[] { 1000, 1000, 1000 }, new double[] { 0.5, 0.5, 0.5 }));
+        // Small dimensions are taken whole
+        Assert.assertArrayEquals(new int[] { 30, 40, 50 }, RAIHelper.blockSize(new long[] { 30, 40, 50 }, new double[] { 1, 1, 1 }));
+    }
+
+}
@@ -0,0 +1,128 @@
+/*-
+ * #%L
+ * BigDataViewer-Playground
+ * %%
+ * Copyright (C) 2019 - 2025 Nicolas Chiaruttini, EPFL - Robert Haase, MPI CBG - Christian Tischer, EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.bdvpg.cache;
+
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.basictypeaccess.array.DirtyShortArray;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.IntArray;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.img.basictypeaccess.volatiles.array.DirtyVolatileFloatArray;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileLongArray;
+import net.imglib2.img.cell.Cell;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openjdk.jol.info.GraphLayout;
+
+/**
+ * Checks the weights of the values stored in the global cache: they should
+ * match the payload of the cells, plus a small overhead, whatever the type of
+ * their access, and they should match the memory actually retained by the
+ * cells, as measured by JOL.
+ */
+public class CacheWeighersTest {
+
+    static final int[] DIMS = { 32, 32, 32 };
+
+    static final int N_PIXELS = 32 * 32 * 32;
+
+    // Cell, access and array headers
+    static final long MAX_OVERHEAD = 256;
+
+    static <A> Cell<A> cell(A access) {
+        return new Cell<>(DIMS, new long[] { 0, 0, 0 }, access);
+    }
+
+    static void assertWeight(Object value, long payload) {
+        long weight = CacheWeighers.weigh(value);
+        Assert.assertTrue("Weight " + weight + " below payload " + payload, weight >= payload);
+        Assert.assertTrue("Weight " + weight + " too far from payload " + payload, weight - payload <= MAX_OVERHEAD);
+    }
+
+    @Test
+    public void testArrayAccesses() {
+        assertWeight(cell(new ByteArray(N_PIXELS)), N_PIXELS);
+        assertWeight(cell(new DirtyShortArray(N_PIXELS)), 2L * N_PIXELS);
+        assertWeight(cell(new IntArray(N_PIXELS)), 4L * N_PIXELS); // ARGB cells
+        assertWeight(cell(new FloatArray(N_PIXELS)), 4L * N_PIXELS);
+        assertWeight(cell(new LongArray(N_PIXELS)), 8L * N_PIXELS);
+        assertWeight(cell(new DoubleArray(N_PIXELS)), 8L * N_PIXELS);
+    }
+
+    @Test
+    public void testVolatileAccesses() {
+        assertWeight(cell(new VolatileLongArray(N_PIXELS, true)), 8L * N_PIXELS);
+        assertWeight(cell(new DirtyVolatileFloatArray(N_PIXELS, true)), 4L * N_PIXELS);
+    }
+
+    static class Opaque {}
+
+    static class Huge {}
+
+    @Test
+    public void testRegisteredAndUnknownValues() {
+        Assert.assertEquals(CacheWeighers.UNKNOWN_OBJECT_WEIGHT, CacheWeighers.weigh(new Opaque()));
+        CacheWeighers.register(Opaque.class, opaque -> 1000);
+        Assert.assertEquals(1000, CacheWeighers.weigh(new Opaque()));
+        // Cells with a registered data class
+        Assert.assertTrue(CacheWeighers.weigh(cell(new Opaque())) >= 1000);
+        // Weights above 2 Gb are not truncated, and clamped for int weighers
+        CacheWeighers.register(Huge.class, huge -> 5_000_000_000L);
+        Assert.assertEquals(5_000_000_000L, CacheWeighers.weigh(new Huge()));
+        Assert.assertEquals(Integer.MAX_VALUE, CacheWeighers.weighAsInt(new Huge()));
+    }
+
+    // Differences of layout between JVMs: headers, field packing
+    static final long LAYOUT_TOLERANCE = 64;
+
+    /**
+     * Compares the weight of a value to the memory it actually retains, as
+     * measured by JOL on the running JVM
+     */
+    static void assertRetainedSize(Object value) {
+        long retained = GraphLayout.parseInstance(value).totalSize();
+        long weight = CacheWeighers.weigh(value);
+        Assert.assertTrue("Weight " + weight + " too far from retained size " + retained,
+                Math.abs(weight - retained) <= LAYOUT_TOLERANCE);
+    }
+
+    @Test
+    public void testRetainedSizes() {
+        assertRetainedSize(cell(new ByteArray(N_PIXELS)));
+        assertRetainedSize(cell(new DirtyShortArray(N_PIXELS)));
+        assertRetainedSize(cell(new VolatileLongArray(N_PIXELS, true)));
+        assertRetainedSize(cell(new FloatArray(N_PIXELS)));
+        // Arrays are padded to a multiple of 8 bytes
+        assertRetainedSize(cell(new ByteArray(1001)));
+        assertRetainedSize(cell(new DirtyShortArray(3)));
+    }
+
+}
@@ -0,0 +1,168 @@
+/*-
+ * #%L
+ * BigDataViewer-Playground
+ * %%
+ * Copyright (C) 2019 - 2025 Nicolas Chiaruttini, EPFL - Robert Haase, MPI CBG - Christian Tischer, EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.bdvpg.cache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the lookup of a cell in a map keyed by global cache keys, with the
+ * previous key layout (a new key per access, holding two weak references and
+ * a boxed cell index) and with the current one (a reused probe key, with a
+ * primitive cell index). Also measures the refresh of a cell in a global cache
+ * with a probe key, which is what a cell access costs when the cell is
+ * already loaded. Run the main method: the GC profiler reports the allocation
+ * rate of each benchmark.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+public class GlobalCacheKeyBenchmark {
+
+    static final int N_CELLS = 4096;
+
+    /**
+     * Layout of the global cache key before primitive cell indices
+     */
+    static final class LegacyKey {
+
+        final WeakReference<Object> source;
+        final int timepoint;
+        final int level;
+        final WeakReference<Object> key;
+        final int hashcode;
+
+        LegacyKey(Object source, int timepoint, int level, Object key) {
+            this.source = new WeakReference<>(source);
+            this.timepoint = timepoint;
+            this.level = level;
+            this.key = new WeakReference<>(key);
+            int value = source.hashCode();
+            value = 31 * value + level;
+            value = 31 * value + key.hashCode();
+            value = 31 * value + timepoint;
+            hashcode = value;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) return true;
+            if (source.get() == null) return false;
+            if (key.get() == null) return false;
+            if (!(other instanceof LegacyKey)) return false;
+            LegacyKey that = (LegacyKey) other;
+            return (this.source.get() == that.source.get()) && (this.timepoint == that.timepoint) &&
+                (this.level == that.level) && (this.key.get().equals(that.key.get()));
+        }
+
+        @Override
+        public int hashCode() {
+            return hashcode;
+        }
+    }
+
+    final Object source = new Object();
+
+    final Object value = new Object();
+
+    // Boxed indices, as handed over by imglib2 to the loader cache
+    final Long[] boxedIndices = new Long[N_CELLS];
+
+    final Map<LegacyKey, Object> legacyMap = new HashMap<>();
+
+    final Map<GlobalCacheKey, Object> map = new HashMap<>();
+
+    GlobalCacheKey.Scope scope;
+
+    StripedGlobalCache cache;
+
+    int cursor = 0;
+
+    @Setup
+    public void setup() {
+        scope = new GlobalCacheKey.Scope(source, 0, 0);
+        cache = new StripedGlobalCache(16, Long.MAX_VALUE, false, 0);
+        for (int i = 0; i < N_CELLS; i++) {
+            boxedIndices[i] = (long) i;
+            legacyMap.put(new LegacyKey(source, 0, 0, boxedIndices[i]), value);
+            map.put(new GlobalCacheKey(scope, i), value);
+            cache.put(new GlobalCacheKey(scope, i), value);
+        }
+    }
+
+    private int next() {
+        cursor = (cursor + 1) & (N_CELLS - 1);
+        return cursor;
+    }
+
+    @Benchmark
+    public Object legacyKeyLookup() {
+        return legacyMap.get(new LegacyKey(source, 0, 0, boxedIndices[next()]));
+    }
+
+    @Benchmark
+    public Object probeKeyLookup() {
+        return map.get(GlobalCacheKey.probe().set(scope, next()));
+    }
+
+    @Benchmark
+    public boolean probeKeyCacheRefresh() {
+        return cache.refresh(GlobalCacheKey.probe().set(scope, next()));
+    }
+
+    public static void main(String... args) throws RunnerException {
+        Options options = new OptionsBuilder()
+            .include(GlobalCacheKeyBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,117 @@
+/*-
+ * #%L
+ * BigDataViewer-Playground
+ * %%
+ * Copyright (C) 2019 - 2025 Nicolas Chiaruttini, EPFL - Robert Haase, MPI CBG - Christian Tischer, EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.bdvpg.cache;
+
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.cell.Cell;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the global caches under contention: each operation reads a
+ * random cell, and puts it if it is missing, with a budget smaller than the
+ * working set, so that evictions happen all the time. Run the main method:
+ * the striped cache and the LinkedHashMap cache are measured for an
+ * increasing number of threads.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+public class GlobalCacheThroughputBenchmark {
+
+    static final int N_KEYS = 20_000;
+
+    static final int CELL_SIZE = 16; // 16x16x16 bytes cells
+
+    static final long CELL_WEIGHT = CELL_SIZE * CELL_SIZE * CELL_SIZE;
+
+    static final long BUDGET = (N_KEYS / 4) * CELL_WEIGHT;
+
+    @Param({ "striped", "linkedHashMap" })
+    public String cacheType;
+
+    // Sources are weakly referenced by the keys: they need to be kept alive
+    final Object[] sources = new Object[8];
+
+    final Cell<ByteArray> cell = new Cell<>(new int[] { CELL_SIZE, CELL_SIZE,
+        CELL_SIZE }, new long[] { 0, 0, 0 }, new ByteArray((int) CELL_WEIGHT));
+
+    AbstractGlobalCache cache;
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < sources.length; i++) sources[i] = new Object();
+        GlobalCacheBuilder builder = GlobalCacheBuilder.builder();
+        builder = cacheType.equals("striped") ? builder.striped() : builder.linkedHashMap();
+        cache = builder.memoryForCache(BUDGET).create();
+    }
+
+    @Benchmark
+    public Object getOrPut() {
+        int index = ThreadLocalRandom.current().nextInt(N_KEYS);
+        GlobalCacheKey key = new GlobalCacheKey(sources[index % sources.length],
+                0, 0, (long) index);
+        Object value = cache.getIfPresent(key);
+        if (value == null) {
+            cache.put(key, cell);
+            return cell;
+        }
+        return value;
+    }
+
+    public static void main(String... args) throws RunnerException {
+        for (int nThreads : new int[] { 1, 2, 4, 8, 16, 32 }) {
+            Options options = new OptionsBuilder()
+                .include(GlobalCacheThroughputBenchmark.class.getSimpleName())
+                .threads(nThreads)
+                .build();
+            new Runner(options).run();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*-
+ * #%L
+ * BigDataViewer-Playground
+ * %%
+ * Copyright (C) 2019 - 2025 Nicolas Chiaruttini, EPFL - Robert Haase, MPI CBG - Christian Tischer, EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.bdvpg.cache;
+
+import bdv.img.cache.VolatileGlobalCellCache;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.cell.Cell;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Plays a time-lapse of a spimdata-like source, whose cells are all cached
+ * with a single scope and bdv cell keys: during the playback, the global cache
+ * should evict the timepoints farthest in the playback order, and keep the
+ * ones about to be displayed.
+ */
+public class PlaybackEvictionTest {
+
+    static final int N_TIMEPOINTS = 20;
+
+    static final int TIMEPOINTS_AHEAD = 3;
+
+    static final int CELLS_PER_TIMEPOINT = 8;
+
+    static final int CELL_SIZE = 16;
+
+    final Cell<ByteArray> cell = new Cell<>(new int[] { CELL_SIZE, CELL_SIZE,
+        CELL_SIZE }, new long[] { 0, 0, 0 }, new ByteArray(CELL_SIZE * CELL_SIZE *
+        CELL_SIZE));
+
+    // Like the ones of a spimdata, which are held by bdv caches
+    final Object source = new Object();
+
+    final GlobalCacheKey[][] keys =
+        new GlobalCacheKey[N_TIMEPOINTS][CELLS_PER_TIMEPOINT];
+
+    final VolatileGlobalCellCache.Key[][] cellKeys =
+        new VolatileGlobalCellCache.Key[N_TIMEPOINTS][CELLS_PER_TIMEPOINT];
+
+    public PlaybackEvictionTest() {
+        for (int t = 0; t < N_TIMEPOINTS; t++) {
+            for (int i = 0; i < CELLS_PER_TIMEPOINT; i++) {
+                cellKeys[t][i] = new VolatileGlobalCellCache.Key(t, 0, 0, i);
+                keys[t][i] = new GlobalCacheKey(source, -1, -1, cellKeys[t][i]);
+            }
+        }
+    }
+
+    @Test
+    public void testSpimDataPlayback() {
+        // Room for the window and for two more timepoints
+        long budget = (TIMEPOINTS_AHEAD + 3) * CELLS_PER_TIMEPOINT *
+            AbstractGlobalCache.getWeight(cell);
+        AbstractGlobalCache cache = GlobalCacheBuilder.builder().linkedHashMap()
+            .memoryForCache(budget).create();
+
+        int last = N_TIMEPOINTS - TIMEPOINTS_AHEAD - 1;
+        for (int t = 0; t <= last; t++) {
+            cache.setPlaybackWindow(t, TIMEPOINTS_AHEAD, N_TIMEPOINTS);
+            for (int ahead = 0; ahead <= TIMEPOINTS_AHEAD; ahead++) {
+                for (GlobalCacheKey key : keys[t + ahead]) {
+                    if (cache.getIfPresent(key) == null) cache.put(key, cell);
+                }
+            }
+        }
+
+        Assert.assertTrue(cache.getEstimatedSize() <= budget);
+        // The timepoints about to be displayed are kept
+        for (int t = last; t <= last + TIMEPOINTS_AHEAD; t++) {
+            for (GlobalCacheKey key : keys[t]) {
+                Assert.assertNotNull(cache.getIfPresent(key));
+            }
+        }
+        // The timepoint just displayed is the farthest one in the playback
+        // order, while a least recently used eviction would have kept it
+        for (GlobalCacheKey key : keys[last - 1]) {
+            Assert.assertNull(cache.getIfPresent(key));
+        }
+        cache.clearPlaybackWindow();
+    }
+}
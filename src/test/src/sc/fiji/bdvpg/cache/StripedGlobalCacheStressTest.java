@@ -0,0 +1,137 @@
+/*-
+ * #%L
+ * BigDataViewer-Playground
+ * %%
+ * Copyright (C) 2019 - 2025 Nicolas Chiaruttini, EPFL - Robert Haase, MPI CBG - Christian Tischer, EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.bdvpg.cache;
+
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.cell.Cell;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Concurrent stress test of the global caches: a few threads read and write
+ * random cells, with a budget smaller than the working set, so that evictions
+ * happen all the time. Once all threads are done, the weight of the cache
+ * should match the cells it holds, and respect the budget. The throughput of
+ * the caches is measured by {@link GlobalCacheThroughputBenchmark}.
+ */
+public class StripedGlobalCacheStressTest {
+
+    static final int N_KEYS = 4_000;
+
+    static final int N_THREADS = 4;
+
+    static final int OPERATIONS_PER_THREAD = 20_000;
+
+    static final int CELL_SIZE = 16; // 16x16x16 bytes cells
+
+    static final long CELL_WEIGHT = CELL_SIZE * CELL_SIZE * CELL_SIZE;
+
+    static final long BUDGET = (N_KEYS / 4) * CELL_WEIGHT;
+
+    // Sources are weakly referenced by the keys: they need to be kept alive
+    final Object[] sources = new Object[8];
+
+    final Cell<ByteArray> cell = new Cell<>(new int[] { CELL_SIZE, CELL_SIZE,
+        CELL_SIZE }, new long[] { 0, 0, 0 }, new ByteArray((int) CELL_WEIGHT));
+
+    public StripedGlobalCacheStressTest() {
+        for (int i = 0; i < sources.length; i++) sources[i] = new Object();
+    }
+
+    @Test
+    public void testStripedWeightAccounting() throws Exception {
+        AbstractGlobalCache striped = GlobalCacheBuilder.builder().striped()
+                .memoryForCache(BUDGET).create();
+        run(striped);
+
+        // All threads are done: the budget should be respected exactly
+        Assert.assertTrue(striped.getEstimatedSize() <= BUDGET);
+        long sumOfSegments = 0;
+        int nCells = 0;
+        for (StripedGlobalCache.Segment segment : ((StripedGlobalCache) striped).segments) {
+            sumOfSegments += segment.weight;
+            nCells += segment.map.size();
+            Assert.assertEquals(segment.map.size() * AbstractGlobalCache.getWeight(cell), segment.weight);
+        }
+        Assert.assertEquals(striped.getEstimatedSize(), sumOfSegments);
+        Assert.assertTrue(nCells > 0);
+    }
+
+    @Test
+    public void testLinkedHashMapBudget() throws Exception {
+        AbstractGlobalCache linkedHashMap = GlobalCacheBuilder.builder()
+                .linkedHashMap().memoryForCache(BUDGET).create();
+        run(linkedHashMap);
+
+        Assert.assertTrue(linkedHashMap.getEstimatedSize() <= BUDGET);
+        Assert.assertTrue(linkedHashMap.getEstimatedSize() > 0);
+        Assert.assertEquals(0, linkedHashMap.getEstimatedSize() % AbstractGlobalCache.getWeight(cell));
+    }
+
+    void run(AbstractGlobalCache cache) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(N_THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < N_THREADS; t++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                    int index = random.nextInt(N_KEYS);
+                    GlobalCacheKey key = new GlobalCacheKey(sources[index % sources.length],
+                            0, 0, (long) index);
+                    Object value = cache.getIfPresent(key);
+                    if (value == null) {
+                        cache.put(key, cell);
+                    } else {
+                        Assert.assertSame(cell, value);
+                    }
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        try {
+            for (Future<?> future : futures) future.get(); // Rethrows any error
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+}
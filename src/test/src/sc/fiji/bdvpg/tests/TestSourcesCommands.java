@@ -30,6 +30,7 @@ package sc.fiji.bdvpg.tests;
 
 import bdv.util.BdvHandle;
 import bdv.viewer.SourceAndConverter;
+import net.imglib2.realtransform.AffineTransform3D;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -43,8 +44,11 @@ import sc.fiji.bdvpg.scijava.command.source.NewSourceCommand;
 import sc.fiji.bdvpg.scijava.command.source.SourcesRemoverCommand;
 import sc.fiji.bdvpg.scijava.services.SourceAndConverterBdvDisplayService;
 import sc.fiji.bdvpg.scijava.services.SourceAndConverterService;
+import sc.fiji.bdvpg.sourceandconverter.transform.SourceAffineTransformer;
+import sc.fiji.bdvpg.sourceandconverter.transform.SourceResampler;
 import sc.fiji.bdvpg.spimdata.importer.SpimDataFromXmlImporter;
 
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 
 public class TestSourcesCommands {
@@ -147,6 +151,20 @@ public class TestSourcesCommands {
         Assert.assertEquals("Error - there should three sources after one is created", 3, sourceService.getSourceAndConverters().size());
     }
 
+    @Test(timeout=5000)
+    public void testCacheOwnersOfTransformedResampledSource() {
+        SourceAndConverter<?> sac = sourceService.getSourceAndConverters().get(0);
+        SourceAndConverter<?> resampled = new SourceResampler(sac, sac, "resampled",
+                false, true, false, 0).get();
+        SourceAndConverter<?> transformed = new SourceAffineTransformer(resampled,
+                new AffineTransform3D()).get();
+        // The cells of the transformed source are keyed by the resampled source
+        List<Object> owners = sourceService.getCacheOwnersOf(transformed);
+        Assert.assertTrue("Error - the resampled source should own the cells of the transformed source",
+                owners.contains(resampled.getSpimSource()));
+        Assert.assertTrue(owners.contains(transformed.getSpimSource()));
+    }
+
     @After
     public void closeFiji() {
 